@@ -0,0 +1,84 @@
+package com.google.api.ads.adwords.axis.templateengine.extension;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Made-up CSV data shaped like a CAMPAIGNMIGRATION file, for the benchmarks.
+ */
+public class BenchmarkData {
+
+  public static final String[] CAMPAIGN_HEADER = {"client_account_id", "campaignid",
+      "channel_type", "google_search", "search_network", "content_network",
+      "partner_search_network", "display_select"};
+
+  public static final String[] FEED_HEADER = {"client_account_id"};
+
+  /**
+   * One CAMPAIGNMIGRATION line
+   * @param i which line, used to make the ids
+   * @param accounts how many accounts the lines are spread over
+   */
+  public static String[] campaignLine(int i, int accounts) {
+    return new String[] {Long.toString(1000000000L + i % accounts),
+        Long.toString(200000000L + i), "SEARCH", "true", "false", "false", "false",
+        i % 2 == 0 ? "TRUE" : "FALSE"};
+  }
+
+  /** @return lines campaignLine(0) up to campaignLine(count - 1) */
+  public static String[][] campaignLines(int count, int accounts) {
+    String[][] lines = new String[count][];
+    for (int i = 0; i < count; i++) {
+      lines[i] = campaignLine(i, accounts);
+    }
+    return lines;
+  }
+
+  /**
+   * Write a CAMPAIGNMIGRATION data file, title and header lines included, to a temporary file
+   * @param rows how many data lines to write
+   * @return the file, deleted when the JVM exits
+   */
+  public static File campaignFile(int rows) throws IOException {
+    File file = File.createTempFile("benchmark-", ".csv");
+    file.deleteOnExit();
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      writer.write("CAMPAIGNMIGRATION,v201402\n");
+      writeLine(writer, CAMPAIGN_HEADER);
+      for (int i = 0; i < rows; i++) {
+        writeLine(writer, campaignLine(i, 100));
+      }
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  private static void writeLine(Writer writer, String[] line) throws IOException {
+    for (int i = 0; i < line.length; i++) {
+      if (i > 0) {
+        writer.write(',');
+      }
+      writer.write(line[i]);
+    }
+    writer.write('\n');
+  }
+}
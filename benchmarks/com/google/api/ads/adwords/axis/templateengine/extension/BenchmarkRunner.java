@@ -0,0 +1,43 @@
+package com.google.api.ads.adwords.axis.templateengine.extension;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks under the benchmarks/ source root, with the GC profiler always on so
+ * every result comes with its allocation rate (the same as -prof gc).  Build benchmarks/ against
+ * src/, the AdWords API client library and JMH (with its annotation processor), then run this
+ * class.  Any JMH command line options may be given, eg: a regex to pick benchmarks, or
+ * "-p blockSize=5000".
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws Exception {
+    Options commandLine = new CommandLineOptions(args);
+    ChainedOptionsBuilder options = new OptionsBuilder()
+        .parent(commandLine)
+        .addProfiler(GCProfiler.class);
+    if (commandLine.getIncludes().isEmpty()) {
+      options.include(BenchmarkRunner.class.getPackage().getName() + ".*Benchmark");
+    }
+    new Runner(options.build()).run();
+  }
+}
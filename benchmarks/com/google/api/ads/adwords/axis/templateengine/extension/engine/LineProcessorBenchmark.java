@@ -0,0 +1,122 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.engine;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.BenchmarkData;
+import com.google.api.ads.adwords.axis.templateengine.extension.plugins.CampaignMigration;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.CsvRow;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.FileUtils;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.MappedCsvReader;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ResultWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-line work LineProcessor does for a whole block: sameTarget() between each pair of lines
+ * (as Strings and as mapped rows), keeping every line's bytes for the FixUp file, and
+ * handleFailure() for every line, which builds the FixUp line from them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LineProcessorBenchmark {
+
+  private static final String ERRORS = "benchmark-error-output.txt";
+  private static final String FIXUPS = "benchmark-fix-up.csv";
+
+  @Param({"1", "100", "1000", "5000"})
+  public int blockSize;
+
+  private LineProcessor lineProcessor;
+  private ResultWriter results;
+  private String[][] lines;
+  private CsvRow[] rows;
+
+  @Setup
+  public void setup() throws IOException {
+    lineProcessor = new LineProcessor(new CampaignMigration.Provider(), "v201402");
+    lineProcessor.getLinePlugin().setup(BenchmarkData.CAMPAIGN_HEADER, lineProcessor);
+    results = new ResultWriter();
+    lineProcessor.listOfErrors = results.open(ERRORS);
+    lineProcessor.fixupLines = results.open(FIXUPS);
+    results.start();
+
+    // one account, so sameTarget() has to compare every id column
+    lines = BenchmarkData.campaignLines(blockSize, 1);
+    rows = new CsvRow[blockSize];
+    MappedCsvReader reader = new MappedCsvReader(BenchmarkData.campaignFile(blockSize));
+    reader.nextRow();
+    reader.nextRow();
+    for (int i = 0; i < blockSize; i++) {
+      rows[i] = reader.nextRow();
+      lineProcessor.addLine(rows[i], i + 3);
+    }
+    reader.close();
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    results.close();
+    FileUtils.deleteFile(ERRORS);
+    FileUtils.deleteFile(FIXUPS);
+  }
+
+  @Benchmark
+  public void sameTargetStrings(Blackhole blackhole) {
+    for (int i = 1; i < blockSize; i++) {
+      blackhole.consume(lineProcessor.sameTarget(lines[i - 1], lines[i]));
+    }
+  }
+
+  @Benchmark
+  public void sameTargetRows(Blackhole blackhole) {
+    for (int i = 1; i < blockSize; i++) {
+      blackhole.consume(lineProcessor.sameTarget(rows[i - 1], rows[i]));
+    }
+  }
+
+  @Benchmark
+  public void keepLines() {
+    lineProcessor.clearLines();
+    for (int i = 0; i < blockSize; i++) {
+      lineProcessor.addLine(rows[i], i + 3);
+    }
+  }
+
+  @Benchmark
+  public void handleFailure(Blackhole blackhole) {
+    for (int i = 0; i < blockSize; i++) {
+      blackhole.consume(lineProcessor.handleFailure(i, "Campaign failed with: INVALID_ID"));
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.BenchmarkData;
+import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.FakeAdWordsServices;
+import com.google.api.ads.adwords.axis.templateengine.extension.engine.LineProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a block of CampaignOperations with setOperations(), and matching a block's worth of
+ * partial failures back to their operations.  Nothing is sent: the sessions and Services come
+ * from {@link FakeAdWordsServices}, so no credentials are needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CampaignMigrationBenchmark {
+
+  private static final int ACCOUNTS = 10;
+
+  @Param({"1", "100", "1000", "5000"})
+  public int blockSize;
+
+  private CampaignMigration plugin;
+  private String[][] lines;
+  private String[] fieldPaths;
+
+  @Setup
+  public void setup() {
+    LineProcessor lineProcessor =
+        new LineProcessor(new CampaignMigration.Provider(), "v201402");
+    plugin = (CampaignMigration) lineProcessor.getLinePlugin();
+    plugin.setup(BenchmarkData.CAMPAIGN_HEADER, lineProcessor);
+    lines = BenchmarkData.campaignLines(blockSize, ACCOUNTS);
+    lineProcessor.awapi.servicesProvider = new FakeAdWordsServices();
+    fieldPaths = new String[blockSize];
+    for (int i = 0; i < blockSize; i++) {
+      fieldPaths[i] = "operations[" + i + "].operand.networkSetting.targetContentNetwork";
+    }
+  }
+
+  @Benchmark
+  public void setOperations(Blackhole blackhole) {
+    for (int i = 0; i < blockSize; i++) {
+      blackhole.consume(plugin.setOperations(lines[i], i + 3));
+    }
+    blackhole.consume(plugin.operations);
+    plugin.clearOperations();
+  }
+
+  @Benchmark
+  public void partialFailureIndex(Blackhole blackhole) {
+    for (String fieldPath : fieldPaths) {
+      blackhole.consume(PartialFailureResolver.operationIndexOf(fieldPath));
+    }
+  }
+}
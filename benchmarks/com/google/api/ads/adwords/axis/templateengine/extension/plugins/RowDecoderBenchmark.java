@@ -0,0 +1,85 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.BenchmarkData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiling each Plugin's RowDecoder from the header line, and decoding every line of a block
+ * into one reused row with it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RowDecoderBenchmark {
+
+  @Param({"1", "100", "1000", "5000"})
+  public int blockSize;
+
+  private String[][] lines;
+  private CampaignMigration.CampaignDecoder campaignDecoder;
+  private CampaignMigration.CampaignRow campaignRow = new CampaignMigration.CampaignRow();
+  private FeedDeletingPlugin.FeedDecoder feedDecoder;
+  private FeedDeletingPlugin.FeedRow feedRow = new FeedDeletingPlugin.FeedRow();
+
+  @Setup
+  public void setup() {
+    lines = BenchmarkData.campaignLines(blockSize, 100);
+    campaignDecoder = new CampaignMigration.CampaignDecoder(BenchmarkData.CAMPAIGN_HEADER);
+    feedDecoder = new FeedDeletingPlugin.FeedDecoder(BenchmarkData.FEED_HEADER);
+  }
+
+  @Benchmark
+  public Object campaignCompile() {
+    return new CampaignMigration.CampaignDecoder(BenchmarkData.CAMPAIGN_HEADER);
+  }
+
+  @Benchmark
+  public void campaignDecode(Blackhole blackhole) {
+    for (String[] line : lines) {
+      blackhole.consume(campaignDecoder.decode(line, campaignRow));
+    }
+  }
+
+  @Benchmark
+  public Object feedCompile() {
+    return new FeedDeletingPlugin.FeedDecoder(BenchmarkData.FEED_HEADER);
+  }
+
+  @Benchmark
+  public void feedDecode(Blackhole blackhole) {
+    for (String[] line : lines) {
+      blackhole.consume(feedDecoder.decode(line, feedRow));
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.shared;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.BenchmarkData;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a whole data file, the way the launcher does: opencsv's CSVReader against
+ * {@link MappedCsvReader}, both as rows of views and as String[]s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CsvReaderBenchmark {
+
+  @Param({"1", "100", "1000", "5000"})
+  public int rows;
+
+  private File file;
+
+  @Setup
+  public void setup() throws IOException {
+    file = BenchmarkData.campaignFile(rows);
+  }
+
+  @Benchmark
+  public void csvReader(Blackhole blackhole) throws IOException {
+    CSVReader reader = new CSVReader(new FileReader(file));
+    try {
+      String[] line;
+      while ((line = reader.readNext()) != null) {
+        blackhole.consume(line);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Benchmark
+  public void mappedRows(Blackhole blackhole) throws IOException {
+    MappedCsvReader reader = new MappedCsvReader(file);
+    try {
+      CsvRow row;
+      while ((row = reader.nextRow()) != null) {
+        blackhole.consume(row);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Benchmark
+  public void mappedStrings(Blackhole blackhole) throws IOException {
+    MappedCsvReader reader = new MappedCsvReader(file);
+    try {
+      String[] line;
+      while ((line = reader.readNext()) != null) {
+        blackhole.consume(line);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -14,13 +14,6 @@ package com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegrat
 //See the License for the specific language governing permissions and
 //limitations under the License.
 
-import com.google.api.ads.adwords.axis.factory.AdWordsServices;
-import com.google.api.ads.adwords.axis.v201402.cm.AdGroupAdServiceInterface;
-import com.google.api.ads.adwords.axis.v201402.cm.AdGroupCriterionServiceInterface;
-import com.google.api.ads.adwords.axis.v201402.cm.AdGroupServiceInterface;
-import com.google.api.ads.adwords.axis.v201402.cm.BudgetServiceInterface;
-import com.google.api.ads.adwords.axis.v201402.cm.CampaignAdExtensionServiceInterface;
-import com.google.api.ads.adwords.axis.v201402.cm.CampaignServiceInterface;
 import com.google.api.ads.adwords.axis.v201402.mcm.ManagedCustomerServiceInterface;
 import com.google.api.ads.adwords.lib.client.AdWordsSession;
 import com.google.api.ads.common.lib.auth.OfflineCredentials;
@@ -32,9 +25,10 @@ import com.google.api.client.auth.oauth2.Credential;
 
 import com.google.api.ads.adwords.axis.templateengine.extension.engine.LineProcessor;
 import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.Metrics;
 
 import java.io.IOException;
-import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Mark R. Bowyer
@@ -44,46 +38,50 @@ import java.util.*;
  */
 public class AWAPI implements ConstantsIF {
   public Credential credential;
-  public AdWordsSession session;
-  public CampaignAdExtensionServiceInterface campaignAdExtensionService;
-  public ManagedCustomerServiceInterface managedCustomerService;
-  public BudgetServiceInterface budgetService;
-  public CampaignServiceInterface campaignService;
-  public AdGroupServiceInterface adGroupService;
-  public AdGroupAdServiceInterface adGroupAdService;
-  public AdGroupCriterionServiceInterface adGroupCriterionService;
-
-  /** saving ObjectReferences, one per clientaccountid */
-  public HashMap<String, ObjectReferences>
-  authCache = new HashMap<String, ObjectReferences>();
-
-  /** Simple construct to hold a bunch of references */
+
+  /** where sessions and Services come from: AdWords itself, or a fake of it */
+  public ServicesProvider servicesProvider;
+
+  /** if set, new sessions only ask AdWords to check the Operations, not to carry them out */
+  public boolean validateOnly = false;
+
+  /** the Services the Plugin calls, made along with each session; any others as needed */
+  public Class<?>[] requiredServices = new Class<?>[0];
+
+  /**
+   * saving ObjectReferences, one per clientaccountid, for the {@link ConstantsIF#SESSION_CACHE_SIZE}
+   * most recently used accounts; safe to share between workers
+   */
+  public SessionCache<ObjectReferences> authCache =
+      new SessionCache<ObjectReferences>("sessions", SESSION_CACHE_SIZE, new SessionLoader());
+
+  /** Simple construct to hold a session, and the Services made for it so far */
   public class ObjectReferences {
     public AdWordsSession session;
-    public CampaignAdExtensionServiceInterface campaignAdExtensionService;
-    public ManagedCustomerServiceInterface managedCustomerService;
-    public BudgetServiceInterface budgetService;
-    public CampaignServiceInterface campaignService;
-    public AdGroupServiceInterface adGroupService;
-    public AdGroupAdServiceInterface adGroupAdService;
-    public AdGroupCriterionServiceInterface adGroupCriterionService;
-
-    public ObjectReferences(AdWordsSession session,
-        CampaignAdExtensionServiceInterface if1,
-        ManagedCustomerServiceInterface if2,
-        BudgetServiceInterface if3,
-        CampaignServiceInterface if4,
-        AdGroupServiceInterface if5,
-        AdGroupAdServiceInterface if6,
-        AdGroupCriterionServiceInterface if7) {
+
+    /** each Service is only made the first time it is asked for */
+    private final ConcurrentHashMap<Class<?>, Object> services =
+        new ConcurrentHashMap<Class<?>, Object>();
+
+    public ObjectReferences(AdWordsSession session) {
       this.session = session;
-      this.campaignAdExtensionService = if1;
-      this.managedCustomerService = if2;
-      this.budgetService = if3;
-      this.campaignService = if4;
-      this.adGroupService = if5;
-      this.adGroupAdService = if6;
-      this.adGroupCriterionService = if7;
+    }
+
+    /**
+     * Get a Service for this session, making it if this is the first time it's been asked for
+     * @param serviceInterface the Service interface, eg: CampaignServiceInterface.class
+     * @return the Service
+     */
+    public <T> T get(Class<T> serviceInterface) {
+      Object service = services.get(serviceInterface);
+      if (service == null) {
+        service = servicesProvider.get(session, serviceInterface);
+        Object made = services.putIfAbsent(serviceInterface, service);
+        if (made != null) {
+          service = made;
+        }
+      }
+      return serviceInterface.cast(service);
     }
   }
 
@@ -95,6 +93,25 @@ public class AWAPI implements ConstantsIF {
    * @throws ServiceException */
   public AWAPI(LineProcessor lineProcessor) 
       throws ServiceException, IOException, ValidationException, ConfigurationLoadException {
+    this(lineProcessor != null && lineProcessor.getLinePlugin() != null
+        ? lineProcessor.getLinePlugin().getServices() : new Class<?>[0],
+        lineProcessor == null ? null : lineProcessor.batchSizer);
+  }
+
+  /**
+   * construct an API object that can be shared by every worker in a run, as its sessions are
+   * @param requiredServices the Services the Plugin calls, made along with each session
+   * @param batchSizer told how each mutate went, or null
+   */
+  public AWAPI(Class<?>[] requiredServices, AdaptiveBatchSizer batchSizer)
+      throws ServiceException, IOException, ValidationException, ConfigurationLoadException {
+    this.requiredServices = requiredServices;
+    if (FAKE_SERVICES) {
+      // nothing goes to AdWords, so no credentials are needed
+      servicesProvider = new MeteredServicesProvider(new FakeAdWordsServices(), batchSizer);
+      return;
+    }
+    servicesProvider = new MeteredServicesProvider(new AdWordsServicesProvider(), batchSizer);
     try {
       // Generate a refreshable OAuth2 credential similar to a ClientLogin token
       // and can be used in place of a service account.
@@ -108,74 +125,70 @@ public class AWAPI implements ConstantsIF {
     }
   }
 
-  /** Add a session & ObjectReferences for this clientAccountId to the AuthCache
+  /** Get the session & ObjectReferences for this clientAccountId, from the authCache if it has
+   * them, otherwise built and added to it
    * 
    * @param clientAccountId
+   * @return the session and Services to use for that account
+   * @throws IllegalStateException if no session could be made, which isn't cached
    */
-  public void addSession(String clientAccountId){
-    if (authCache.containsKey(clientAccountId)) {
-      // load references from the map
-      ObjectReferences objs = authCache.get(clientAccountId);
-      // Get the AdWords Services.
-      campaignAdExtensionService = objs.campaignAdExtensionService;
-      managedCustomerService = objs.managedCustomerService;
-      budgetService = objs.budgetService;
-      campaignService = objs.campaignService;
-      adGroupService = objs.adGroupService;
-      adGroupAdService = objs.adGroupAdService;
-      adGroupCriterionService = objs.adGroupCriterionService;
-    } else {
-      // Construct an AdWordsSession.
-      try {  
-        // Construct an AdWordsSession.
-        session = new AdWordsSession.Builder()
-        .fromFile()
-        .withOAuth2Credential(credential)
-        .build();
+  public ObjectReferences addSession(String clientAccountId) {
+    return authCache.get(clientAccountId);
+  }
+
+  /**
+   * Get the ManagedCustomerService for a manager account, which finds the accounts under it
+   * @param managerAccountId the manager (MCC) account
+   * @return the Service, from that account's cached session
+   */
+  public ManagedCustomerServiceInterface managedCustomerService(String managerAccountId) {
+    return addSession(managerAccountId).get(ManagedCustomerServiceInterface.class);
+  }
 
+  /** Builds the session and Services for an account the first time it is asked for */
+  private class SessionLoader implements SessionCache.Loader<ObjectReferences> {
+
+    @Override
+    public ObjectReferences load(String clientAccountId) {
+      AdWordsSession session;
+      long start = System.nanoTime();
+      try {
+        // Construct an AdWordsSession.
+        session = servicesProvider.newSession(credential);
       } catch (Exception e) {
-        e.printStackTrace();
+        // thrown, so the cache keeps nothing and the next line for the account tries again
+        throw new IllegalStateException("Couldn't make a session for account "
+            + clientAccountId + ": " + e, e);
       }
+      // a provider that doesn't need one, eg: the fake, has no session
+      if (session != null) {
+        session.setClientCustomerId(clientAccountId);
+        if (validateOnly) {
+          session.setValidateOnly(true);
+        }
+      }
+      Metrics.histogram("session_create_ms").record((System.nanoTime() - start) / 1000000);
 
-      AdWordsServices adWordsServices = new AdWordsServices();
-      campaignService =
-          adWordsServices.get(session, CampaignServiceInterface.class);
-      campaignAdExtensionService =
-          adWordsServices.get(session, CampaignAdExtensionServiceInterface.class);
-      managedCustomerService =
-          adWordsServices.get(session, ManagedCustomerServiceInterface.class);
-      budgetService = 
-          adWordsServices.get(session, BudgetServiceInterface.class);
-      adGroupService =
-          adWordsServices.get(session, AdGroupServiceInterface.class);
-      adGroupAdService =
-          adWordsServices.get(session, AdGroupAdServiceInterface.class);
-      adGroupCriterionService =
-          adWordsServices.get(session, AdGroupCriterionServiceInterface.class);
-
-      // save these for use later
-      authCache.put(clientAccountId,
-          new ObjectReferences(session,
-              campaignAdExtensionService,
-              managedCustomerService,
-              budgetService,
-              campaignService,
-              adGroupService,
-              adGroupAdService,
-              adGroupCriterionService));
-
-      voluntaryWaitLogic();
+      ObjectReferences objs = new ObjectReferences(session);
+      for (Class<?> serviceInterface : requiredServices) {
+        objs.get(serviceInterface);
+      }
+      return objs;
     }
-  }
 
-  /** wait for {@link #PROGRAM_SMALL_PAUSE_LENGTH_MS} after an API operation is invoked */
-  private void voluntaryWaitLogic() {
-    // small pause
-    try {
-      Thread.currentThread();
-      Thread.sleep(ConstantsIF.PROGRAM_SMALL_PAUSE_LENGTH_MS);
-    } catch (InterruptedException e) {
-      e.printStackTrace();
+    @Override
+    public long lifetimeMs(ObjectReferences objs) {
+      if (SESSION_CACHE_EXPIRY_MS > 0) {
+        return SESSION_CACHE_EXPIRY_MS;
+      }
+      // rebuild the session once the credential it was made with runs out
+      if (SESSION_EXPIRY_FOLLOWS_CREDENTIAL && credential != null) {
+        Long expiresInSeconds = credential.getExpiresInSeconds();
+        if (expiresInSeconds != null && expiresInSeconds > 0) {
+          return expiresInSeconds * 1000;
+        }
+      }
+      return 0;
     }
   }
 }
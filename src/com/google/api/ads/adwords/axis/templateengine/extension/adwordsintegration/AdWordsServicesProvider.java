@@ -0,0 +1,45 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.factory.AdWordsServices;
+import com.google.api.ads.adwords.lib.client.AdWordsSession;
+import com.google.api.ads.common.lib.conf.ConfigurationLoadException;
+import com.google.api.ads.common.lib.exception.ValidationException;
+import com.google.api.client.auth.oauth2.Credential;
+
+/**
+ * The real AdWords API: sessions built from the ads.properties file, and Services from the client
+ * library's AdWordsServices.
+ */
+public class AdWordsServicesProvider implements ServicesProvider {
+
+  /** building the factory is slow, so every provider in the process shares one */
+  private static final AdWordsServices ADWORDS_SERVICES = new AdWordsServices();
+
+  @Override
+  public AdWordsSession newSession(Credential credential)
+      throws ConfigurationLoadException, ValidationException {
+    return new AdWordsSession.Builder()
+        .fromFile()
+        .withOAuth2Credential(credential)
+        .build();
+  }
+
+  @Override
+  public <T> T get(AdWordsSession session, Class<T> serviceInterface) {
+    return ADWORDS_SERVICES.get(session, serviceInterface);
+  }
+}
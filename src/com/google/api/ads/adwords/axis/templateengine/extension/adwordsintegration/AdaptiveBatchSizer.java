@@ -0,0 +1,143 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.Metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks how many operations to put in each mutate, for each Service, from how that Service's
+ * mutates have been going: additive increase while they come back quickly, multiplicative
+ * decrease when one is slow, times out or hits a RateExceededError.  Sizes stay between
+ * {@link ConstantsIF#ADAPTIVE_MIN_OPERATIONS} and {@link ConstantsIF#MAX_OPERATIONS}, and start
+ * at the top, so a Service that copes with full blocks is never held back.
+ *
+ * Many mutates are in flight at once, and when a Service struggles they all tend to fail
+ * together, so a size is only cut once per round trip: failures of mutates sent before the last
+ * cut don't cut it again.  Each size is published as the adaptive_batch_operations gauge.
+ */
+public class AdaptiveBatchSizer implements ConstantsIF {
+
+  /** The size for one Service, and when it was last cut */
+  private static class Size {
+    double operations = MAX_OPERATIONS;
+    boolean decreased = false;
+    long lastDecreaseNanos;
+  }
+
+  private final ConcurrentHashMap<Class<?>, Size> sizes = new ConcurrentHashMap<Class<?>, Size>();
+
+  /**
+   * @param service the Service interface about to be mutated
+   * @return how many operations to send it in one mutate
+   */
+  public int operations(Class<?> service) {
+    if (!ADAPTIVE_BATCH_SIZING) {
+      return MAX_OPERATIONS;
+    }
+    Size size = size(service);
+    synchronized (size) {
+      return (int) size.operations;
+    }
+  }
+
+  /**
+   * @param services the Services a Plugin mutates
+   * @return the most operations that suit all of them
+   */
+  public int operations(Class<?>[] services) {
+    int operations = MAX_OPERATIONS;
+    for (Class<?> service : services) {
+      operations = Math.min(operations, operations(service));
+    }
+    return operations;
+  }
+
+  /**
+   * A mutate came back
+   * @param service the Service interface it was sent to
+   * @param operations how many operations it held
+   * @param latencyNanos how long it took
+   */
+  public void succeeded(Class<?> service, int operations, long latencyNanos) {
+    if (TimeUnit.NANOSECONDS.toMillis(latencyNanos) > ADAPTIVE_TARGET_LATENCY_MS) {
+      decrease(service, latencyNanos, ADAPTIVE_SLOW_DECREASE_FACTOR);
+      return;
+    }
+    Size size = size(service);
+    synchronized (size) {
+      // a small block, eg: the last of an account's lines, says little about a bigger one
+      if (operations * 2 >= size.operations) {
+        size.operations = Math.min(MAX_OPERATIONS, size.operations + ADAPTIVE_INCREASE_OPERATIONS);
+      }
+    }
+  }
+
+  /**
+   * A mutate hit a RateExceededError, or timed out
+   * @param service the Service interface it was sent to
+   * @param latencyNanos how long it took to fail
+   */
+  public void failed(Class<?> service, long latencyNanos) {
+    decrease(service, latencyNanos, ADAPTIVE_DECREASE_FACTOR);
+  }
+
+  /** @return the operations per mutate for each Service so far, eg: for the end of run report */
+  public String report() {
+    Map<String, Integer> sorted = new TreeMap<String, Integer>();
+    for (Class<?> service : sizes.keySet()) {
+      sorted.put(service.getSimpleName(), operations(service));
+    }
+    return "operations per mutate: " + sorted;
+  }
+
+  private void decrease(Class<?> service, long latencyNanos, double factor) {
+    Size size = size(service);
+    long now = System.nanoTime();
+    synchronized (size) {
+      if (size.decreased && now - latencyNanos - size.lastDecreaseNanos < 0) {
+        // sent before the last cut, at the old size
+        return;
+      }
+      size.operations = Math.max(ADAPTIVE_MIN_OPERATIONS, size.operations * factor);
+      size.decreased = true;
+      size.lastDecreaseNanos = now;
+    }
+    Metrics.counter("adaptive_batch_decreases_total", "service", service.getSimpleName()).inc();
+  }
+
+  private Size size(final Class<?> service) {
+    Size size = sizes.get(service);
+    if (size == null) {
+      size = new Size();
+      Size existing = sizes.putIfAbsent(service, size);
+      if (existing != null) {
+        return existing;
+      }
+      Metrics.gauge("adaptive_batch_operations", new Metrics.Gauge() {
+        @Override
+        public double value() {
+          return operations(service);
+        }
+      }, "service", service.getSimpleName());
+    }
+    return size;
+  }
+}
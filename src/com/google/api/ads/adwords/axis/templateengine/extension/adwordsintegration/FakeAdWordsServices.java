@@ -0,0 +1,370 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.v201402.cm.ApiError;
+import com.google.api.ads.adwords.axis.v201402.cm.ApiException;
+import com.google.api.ads.adwords.axis.v201402.cm.AuthenticationError;
+import com.google.api.ads.adwords.axis.v201402.cm.AuthenticationErrorReason;
+import com.google.api.ads.adwords.axis.v201402.cm.EntityNotFound;
+import com.google.api.ads.adwords.axis.v201402.cm.Paging;
+import com.google.api.ads.adwords.axis.v201402.cm.RateExceededError;
+import com.google.api.ads.adwords.axis.v201402.cm.Selector;
+import com.google.api.ads.adwords.lib.client.AdWordsSession;
+import com.google.api.client.auth.oauth2.Credential;
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the AdWords API, so the launcher can be load tested offline.  Any
+ * Service interface with the usual get(Selector) and mutate(Operation[]) methods is answered by a
+ * dynamic proxy (so CampaignService and the Feed, FeedItem, FeedMapping and CampaignFeed Services
+ * all work), after a made-up network delay:
+ * <ul>
+ * <li>mutate() returns every operand back as the result, with a partial failure ApiError (with an
+ * "operations[n]" fieldPath) for each operation picked to fail, or throws an ApiException (naming
+ * the bad operations, or not) if any of them are ones it always refuses;</li>
+ * <li>get() finds {@link #pageEntries} entities, with their ids filled in (and every tenth with its
+ * flags set, so some ManagedCustomers are managers), and returns the page of them the Selector's
+ * Paging asks for (a query() gets them all);</li>
+ * <li>a call can throw an ApiException holding a RateExceededError (with retryAfterSeconds), either
+ * at random or once the calls go over {@link #rateLimitOperationsPerSecond}, or holding an
+ * AuthenticationError.</li>
+ * </ul>
+ * Object and Axis stub methods get harmless answers; anything else is an IllegalStateException.
+ * Set {@link ConstantsIF#FAKE_SERVICES} to run the launcher against it.  The public fields start
+ * from the FAKE_ constants, and can be changed before the run starts.
+ */
+public class FakeAdWordsServices implements ServicesProvider, ConstantsIF {
+
+  /** the middle of the made-up call latency, in ms */
+  public long latencyMedianMs = FAKE_LATENCY_MEDIAN_MS;
+
+  /** the 99th percentile of the latency (it is log-normal), in ms */
+  public long latencyP99Ms = FAKE_LATENCY_P99_MS;
+
+  /** extra latency for each operation in a call, in microseconds */
+  public long latencyPerOperationMicros = FAKE_LATENCY_PER_OPERATION_MICROS;
+
+  /** if set, the latencies (in ms) to use call by call, over and over, instead of the above */
+  public long[] latencyScriptMs = null;
+
+  /** operations per second allowed before RateExceededErrors are thrown; 0 for no limit */
+  public double rateLimitOperationsPerSecond = FAKE_RATE_LIMIT_OPERATIONS_PER_SECOND;
+
+  /** chance of any call throwing a RateExceededError anyway */
+  public double rateExceededProbability = FAKE_RATE_EXCEEDED_PROBABILITY;
+
+  /** the retryAfterSeconds given in the RateExceededErrors */
+  public int retryAfterSeconds = FAKE_RETRY_AFTER_SECONDS;
+
+  /** chance of each operation in a mutate failing with a partial failure */
+  public double partialFailureProbability = FAKE_PARTIAL_FAILURE_PROBABILITY;
+
+  /** chance of each operand being one whose mutate is always refused as a whole */
+  public double rejectionProbability = FAKE_REJECTION_PROBABILITY;
+
+  /** true to name the bad operations when refusing a mutate, false to give one error for it all */
+  public boolean rejectionNamesOperations = FAKE_REJECTION_NAMES_OPERATIONS;
+
+  /** chance of any call throwing an AuthenticationError */
+  public double authenticationErrorProbability = FAKE_AUTHENTICATION_ERROR_PROBABILITY;
+
+  /** how many entities each get() finds in all, returned a page at a time */
+  public int pageEntries = FAKE_PAGE_ENTRIES;
+
+  /** what the fake has been asked to do, and what it threw back */
+  public final AtomicLong calls = new AtomicLong();
+  public final AtomicLong operations = new AtomicLong();
+  public final AtomicLong rateExceededErrors = new AtomicLong();
+  public final AtomicLong authenticationErrors = new AtomicLong();
+  public final AtomicLong partialFailures = new AtomicLong();
+
+  private final Random random;
+  private final AtomicLong scriptPosition = new AtomicLong();
+  private final AtomicLong nextId = new AtomicLong(1);
+
+  private long windowStartMillis = System.currentTimeMillis();
+  private double windowOperations = 0;
+
+  public FakeAdWordsServices() {
+    this(System.nanoTime());
+  }
+
+  /** @param seed for the random latencies and errors, so a run can be repeated */
+  public FakeAdWordsServices(long seed) {
+    this.random = new Random(seed);
+  }
+
+  /** The fake doesn't need a session, so this is always null. */
+  @Override
+  public AdWordsSession newSession(Credential credential) {
+    return null;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T get(AdWordsSession session, final Class<T> serviceInterface) {
+    return (T) Proxy.newProxyInstance(serviceInterface.getClassLoader(),
+        new Class<?>[] {serviceInterface}, new InvocationHandler() {
+          /** what the Axis stub methods have set, eg: with _setProperty() */
+          private final Map<String, Object> properties = new ConcurrentHashMap<String, Object>();
+
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+              return invokeObjectMethod(proxy, method, args, serviceInterface);
+            } else if (method.getName().startsWith("_")) {
+              return invokeStubMethod(properties, method, args);
+            }
+            return call(method, args);
+          }
+        });
+  }
+
+  /** @return a one line summary of the calls made so far */
+  public String report() {
+    return String.format("fake AdWords: %d calls, %d operations, %d RateExceededErrors, "
+        + "%d AuthenticationErrors, %d partial failures", calls.get(), operations.get(),
+        rateExceededErrors.get(), authenticationErrors.get(), partialFailures.get());
+  }
+
+  private Object call(Method method, Object[] args) throws ApiException {
+    boolean mutate = method.getName().equals("mutate");
+    if (!mutate && !method.getName().equals("get") && !method.getName().equals("query")) {
+      throw new IllegalStateException(String.format(
+          "The fake AdWords only answers get(), query() and mutate(), not %s.%s()",
+          method.getDeclaringClass().getSimpleName(), method.getName()));
+    }
+    Object[] operationArray = mutate ? (Object[]) args[0] : null;
+    int operationCount = mutate ? operationArray.length : 1;
+    calls.incrementAndGet();
+    operations.addAndGet(operationCount);
+
+    try {
+      Thread.sleep(latencyMillis(operationCount));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (random.nextDouble() < authenticationErrorProbability) {
+      authenticationErrors.incrementAndGet();
+      AuthenticationError error = new AuthenticationError();
+      error.setReason(AuthenticationErrorReason.CLIENT_CUSTOMER_ID_INVALID);
+      error.setErrorString("AuthenticationError.CLIENT_CUSTOMER_ID_INVALID");
+      error.setApiErrorType("AuthenticationError");
+      throw apiException(error);
+    }
+    if (overRateLimit(operationCount) || random.nextDouble() < rateExceededProbability) {
+      rateExceededErrors.incrementAndGet();
+      RateExceededError error = new RateExceededError();
+      error.setRateName("RATE_LIMIT");
+      error.setRateScope("DEVELOPER");
+      error.setRetryAfterSeconds(retryAfterSeconds);
+      error.setErrorString("RateExceededError.RATE_EXCEEDED");
+      error.setApiErrorType("RateExceededError");
+      throw apiException(error);
+    }
+
+    try {
+      if (mutate) {
+        return mutateResult(method.getReturnType(), operationArray, operationCount);
+      }
+      // a query() has no Selector, so gets every entity in one page
+      return page(method.getReturnType(), args != null && args.length > 0
+          && args[0] instanceof Selector ? ((Selector) args[0]).getPaging() : null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("The fake can't build a result for " + method, e);
+    }
+  }
+
+  private long latencyMillis(int operationCount) {
+    long latency;
+    if (latencyScriptMs != null && latencyScriptMs.length > 0) {
+      latency = latencyScriptMs[(int) (scriptPosition.getAndIncrement() % latencyScriptMs.length)];
+    } else {
+      // log-normal: median * e^(sigma * z), with sigma chosen so 99% fall under the p99
+      double sigma = Math.log(Math.max(latencyP99Ms, latencyMedianMs) / (double) Math.max(1,
+          latencyMedianMs)) / 2.326;
+      latency = Math.round(latencyMedianMs * Math.exp(sigma * random.nextGaussian()));
+    }
+    return latency + operationCount * latencyPerOperationMicros / 1000;
+  }
+
+  private synchronized boolean overRateLimit(int operationCount) {
+    if (rateLimitOperationsPerSecond <= 0) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    if (now - windowStartMillis >= 1000) {
+      windowStartMillis = now;
+      windowOperations = 0;
+    }
+    windowOperations += operationCount;
+    return windowOperations > rateLimitOperationsPerSecond;
+  }
+
+  private static ApiException apiException(ApiError error) {
+    ApiException apiException = new ApiException();
+    apiException.setErrors(new ApiError[] {error});
+    apiException.setMessage1(error.getErrorString());
+    return apiException;
+  }
+
+  /** Build the ReturnValue: each operand back as its result, bar the partial failures. */
+  private Object mutateResult(Class<?> returnType, Object[] operationArray, int operationCount)
+      throws ReflectiveOperationException, ApiException {
+    refuseBadOperations(operationArray, operationCount);
+    Class<?> operandType =
+        operationArray.getClass().getComponentType().getMethod("getOperand").getReturnType();
+    Object values = Array.newInstance(operandType, operationCount);
+    List<ApiError> errors = new ArrayList<ApiError>();
+    for (int i = 0; i < operationCount; i++) {
+      Array.set(values, i,
+          operationArray[i].getClass().getMethod("getOperand").invoke(operationArray[i]));
+      if (random.nextDouble() < partialFailureProbability) {
+        partialFailures.incrementAndGet();
+        EntityNotFound error = new EntityNotFound();
+        error.setFieldPath("operations[" + i + "].operand.id");
+        error.setErrorString("EntityNotFound.INVALID_ID");
+        error.setApiErrorType("EntityNotFound");
+        errors.add(error);
+      }
+    }
+    Object returnValue = returnType.newInstance();
+    returnType.getMethod("setValue", values.getClass()).invoke(returnValue, values);
+    if (!errors.isEmpty()) {
+      returnType.getMethod("setPartialFailureErrors", ApiError[].class)
+          .invoke(returnValue, (Object) errors.toArray(new ApiError[errors.size()]));
+    }
+    return returnValue;
+  }
+
+  /**
+   * Throw an ApiException naming every bad operation (or, if {@link #rejectionNamesOperations} is
+   * false, with one error naming none of them), if there are any.  Whether an operand is bad
+   * comes from its identity, so it is bad every time it is sent.
+   */
+  private void refuseBadOperations(Object[] operationArray, int operationCount)
+      throws ReflectiveOperationException, ApiException {
+    if (rejectionProbability <= 0) {
+      return;
+    }
+    List<ApiError> errors = new ArrayList<ApiError>();
+    for (int i = 0; i < operationCount; i++) {
+      Object operand =
+          operationArray[i].getClass().getMethod("getOperand").invoke(operationArray[i]);
+      // spread the identity hash over [0, 1)
+      long mixed = (System.identityHashCode(operand) * 0x9E3779B97F4A7C15L) >>> 11;
+      if (mixed / (double) (1L << 53) < rejectionProbability) {
+        EntityNotFound error = new EntityNotFound();
+        error.setFieldPath(rejectionNamesOperations ? "operations[" + i + "].operand.id" : "");
+        error.setErrorString("EntityNotFound.INVALID_ID");
+        error.setApiErrorType("EntityNotFound");
+        errors.add(error);
+      }
+    }
+    if (!rejectionNamesOperations && errors.size() > 1) {
+      errors.subList(1, errors.size()).clear();
+    }
+    if (!errors.isEmpty()) {
+      ApiException apiException = new ApiException();
+      apiException.setErrors(errors.toArray(new ApiError[errors.size()]));
+      apiException.setMessage1(errors.get(0).getErrorString());
+      throw apiException;
+    }
+  }
+
+  /**
+   * Build a Page of made-up entities, with every Long property (the ids) filled in, and every
+   * Boolean property set on every tenth one.
+   * @param paging which of the {@link #pageEntries} to return; all of them if null
+   */
+  private Object page(Class<?> pageType, Paging paging) throws ReflectiveOperationException {
+    Class<?> entryType = pageType.getMethod("getEntries").getReturnType().getComponentType();
+    int start = 0;
+    int size = pageEntries;
+    if (paging != null) {
+      start = paging.getStartIndex() == null ? 0 : Math.min(pageEntries, paging.getStartIndex());
+      size = paging.getNumberResults() == null ? pageEntries - start
+          : Math.min(pageEntries - start, paging.getNumberResults());
+    }
+    Object entries = Array.newInstance(entryType, size);
+    for (int i = 0; i < size; i++) {
+      Object entry = entryType.newInstance();
+      for (Method setter : entryType.getMethods()) {
+        if (setter.getName().startsWith("set") && setter.getParameterTypes().length == 1
+            && setter.getParameterTypes()[0] == Long.class) {
+          setter.invoke(entry, nextId.getAndIncrement());
+        } else if (setter.getName().startsWith("set") && setter.getParameterTypes().length == 1
+            && setter.getParameterTypes()[0] == Boolean.class) {
+          setter.invoke(entry, (start + i) % 10 == 9);
+        }
+      }
+      Array.set(entries, i, entry);
+    }
+    Object page = pageType.newInstance();
+    pageType.getMethod("setEntries", entries.getClass()).invoke(page, entries);
+    pageType.getMethod("setTotalNumEntries", Integer.class).invoke(page, pageEntries);
+    return page;
+  }
+
+  private static Object invokeObjectMethod(Object proxy, Method method, Object[] args,
+      Class<?> serviceInterface) {
+    if (method.getName().equals("equals")) {
+      return proxy == args[0];
+    } else if (method.getName().equals("hashCode")) {
+      return System.identityHashCode(proxy);
+    }
+    return "Fake" + serviceInterface.getSimpleName();
+  }
+
+  /**
+   * Answer the methods an Axis stub adds to a Service, eg: _setProperty(), which only keep
+   * settings that the fake has no use for
+   */
+  private static Object invokeStubMethod(Map<String, Object> properties, Method method,
+      Object[] args) {
+    String name = method.getName();
+    if (name.equals("_setProperty") && args != null && args.length == 2) {
+      if (args[1] == null) {
+        properties.remove((String) args[0]);
+      } else {
+        properties.put((String) args[0], args[1]);
+      }
+      return null;
+    } else if (name.equals("_getProperty") && args != null && args.length == 1) {
+      return properties.get(args[0]);
+    } else if (name.equals("_getPropertyNames")) {
+      return new ArrayList<String>(properties.keySet()).iterator();
+    } else if (method.getReturnType() == void.class) {
+      return null;
+    }
+    throw new IllegalStateException(String.format(
+        "The fake AdWords has no answer for the stub method %s.%s()",
+        method.getDeclaringClass().getSimpleName(), name));
+  }
+}
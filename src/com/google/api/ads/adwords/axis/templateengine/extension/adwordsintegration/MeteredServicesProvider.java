@@ -0,0 +1,223 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.v201402.cm.ApiError;
+import com.google.api.ads.adwords.axis.v201402.cm.ApiException;
+import com.google.api.ads.adwords.axis.v201402.cm.RateExceededError;
+import com.google.api.ads.adwords.lib.client.AdWordsSession;
+import com.google.api.ads.common.lib.conf.ConfigurationLoadException;
+import com.google.api.ads.common.lib.exception.ValidationException;
+import com.google.api.client.auth.oauth2.Credential;
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.Metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wraps another {@link ServicesProvider} so that every call made on its Services is counted and
+ * timed in {@link Metrics}, per Service interface and method: calls, latency, operations sent,
+ * partial failures returned and errors thrown.  How each mutate went is also passed to an
+ * {@link AdaptiveBatchSizer}, if there is one.
+ */
+public class MeteredServicesProvider implements ServicesProvider {
+
+  private final ServicesProvider delegate;
+  private final AdaptiveBatchSizer batchSizer;
+
+  public MeteredServicesProvider(ServicesProvider delegate) {
+    this(delegate, null);
+  }
+
+  /**
+   * @param delegate the provider to meter
+   * @param batchSizer told how each mutate went; may be null
+   */
+  public MeteredServicesProvider(ServicesProvider delegate, AdaptiveBatchSizer batchSizer) {
+    this.delegate = delegate;
+    this.batchSizer = batchSizer;
+  }
+
+  /** @return the provider being metered */
+  public ServicesProvider getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public AdWordsSession newSession(Credential credential)
+      throws ConfigurationLoadException, ValidationException {
+    return delegate.newSession(credential);
+  }
+
+  /**
+   * The metrics of one Service interface, looked up once and shared by every stub made for it, so
+   * a call only has to count and time itself
+   */
+  private static class ServiceMeters {
+    final String serviceName;
+    final Metrics.Counter operations;
+    final Metrics.Counter partialFailures;
+
+    /** the calls and latency of each method of the interface */
+    final Map<Method, Metrics.Counter> calls = new HashMap<Method, Metrics.Counter>();
+    final Map<Method, Metrics.Histogram> latency = new HashMap<Method, Metrics.Histogram>();
+
+    /** the errors thrown, by their type, as they are first seen */
+    final ConcurrentHashMap<Class<?>, Metrics.Counter> errors =
+        new ConcurrentHashMap<Class<?>, Metrics.Counter>();
+
+    ServiceMeters(Class<?> serviceInterface) {
+      serviceName = serviceInterface.getSimpleName();
+      operations = Metrics.counter("adwords_operations_total", "service", serviceName);
+      partialFailures = Metrics.counter("adwords_partial_failures_total",
+          "service", serviceName);
+      for (Method method : serviceInterface.getMethods()) {
+        calls.put(method, Metrics.counter("adwords_calls_total",
+            "service", serviceName, "method", method.getName()));
+        latency.put(method, Metrics.histogram("adwords_call_latency_ms",
+            "service", serviceName, "method", method.getName()));
+      }
+      Metrics.gauge("adwords_partial_failure_ratio", new Metrics.Gauge() {
+        @Override
+        public double value() {
+          long sent = operations.get();
+          return sent == 0 ? 0 : (double) partialFailures.get() / sent;
+        }
+      }, "service", serviceName);
+    }
+
+    Metrics.Counter errors(Throwable error) {
+      Metrics.Counter counter = errors.get(error.getClass());
+      if (counter == null) {
+        counter = Metrics.counter("adwords_errors_total", "service", serviceName,
+            "error", error.getClass().getSimpleName());
+        errors.putIfAbsent(error.getClass(), counter);
+      }
+      return counter;
+    }
+  }
+
+  /** the metrics of each Service interface a stub has been made for */
+  private final ConcurrentHashMap<Class<?>, ServiceMeters> meters =
+      new ConcurrentHashMap<Class<?>, ServiceMeters>();
+
+  private ServiceMeters metersFor(Class<?> serviceInterface) {
+    ServiceMeters serviceMeters = meters.get(serviceInterface);
+    if (serviceMeters == null) {
+      synchronized (meters) {
+        serviceMeters = meters.get(serviceInterface);
+        if (serviceMeters == null) {
+          serviceMeters = new ServiceMeters(serviceInterface);
+          meters.put(serviceInterface, serviceMeters);
+        }
+      }
+    }
+    return serviceMeters;
+  }
+
+  @Override
+  public <T> T get(AdWordsSession session, final Class<T> serviceInterface) {
+    final T service = delegate.get(session, serviceInterface);
+    final ServiceMeters serviceMeters = metersFor(serviceInterface);
+    Object proxy = Proxy.newProxyInstance(serviceInterface.getClassLoader(),
+        new Class<?>[] {serviceInterface}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+              return method.invoke(service, args);
+            }
+            Metrics.Counter calls = serviceMeters.calls.get(method);
+            Metrics.Histogram latency = serviceMeters.latency.get(method);
+            if (calls != null) {
+              calls.inc();
+            }
+            int operationCount = -1;
+            if (args != null && args.length > 0 && args[0] instanceof Object[]) {
+              operationCount = ((Object[]) args[0]).length;
+              serviceMeters.operations.add(operationCount);
+            }
+            boolean sized = batchSizer != null && operationCount >= 0
+                && method.getName().equals("mutate");
+            long start = System.nanoTime();
+            try {
+              Object result = method.invoke(service, args);
+              serviceMeters.partialFailures.add(partialFailuresIn(result));
+              if (sized) {
+                batchSizer.succeeded(serviceInterface, operationCount, System.nanoTime() - start);
+              }
+              return result;
+            } catch (InvocationTargetException e) {
+              serviceMeters.errors(e.getCause()).inc();
+              if (sized && tooMuch(e.getCause())) {
+                batchSizer.failed(serviceInterface, System.nanoTime() - start);
+              }
+              throw e.getCause();
+            } finally {
+              if (latency != null) {
+                latency.record((System.nanoTime() - start) / 1000000);
+              }
+            }
+          }
+        });
+    return serviceInterface.cast(proxy);
+  }
+
+  /**
+   * @return true if the error says the Service was sent too much: a RateExceededError, or a
+   *     timeout
+   */
+  private static boolean tooMuch(Throwable error) {
+    if (error instanceof ApiException && ((ApiException) error).getErrors() != null) {
+      for (ApiError apiError : ((ApiException) error).getErrors()) {
+        if (apiError instanceof RateExceededError) {
+          return true;
+        }
+      }
+      return false;
+    }
+    for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SocketTimeoutException) {
+        return true;
+      }
+      if (cause.getCause() == cause) {
+        break;
+      }
+    }
+    // Axis wraps timeouts in an AxisFault that only says so in its message
+    return error instanceof RemoteException && String.valueOf(error.getMessage())
+        .toLowerCase().contains("timed out");
+  }
+
+  /** @return how many partial failure errors a ReturnValue carries, 0 for anything else */
+  private static int partialFailuresIn(Object result) {
+    if (result == null) {
+      return 0;
+    }
+    try {
+      Object errors = result.getClass().getMethod("getPartialFailureErrors").invoke(result);
+      return errors instanceof Object[] ? ((Object[]) errors).length : 0;
+    } catch (ReflectiveOperationException e) {
+      return 0;
+    }
+  }
+}
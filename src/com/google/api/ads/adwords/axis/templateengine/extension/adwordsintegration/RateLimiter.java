@@ -0,0 +1,171 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.v201402.cm.RateExceededError;
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.Metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps every get and mutate call under the AdWords API rate limits, using a token bucket for each
+ * rate scope: one for the developer token, one per client account and one per Service.  Buckets
+ * refill at the rates in {@link ConstantsIF}, each operation sent takes a token from every bucket
+ * it falls in, and a RateExceededError empties the bucket for its scope and holds it shut for the
+ * retryAfterSeconds the server asked for.  Only calls in that scope wait; everything else carries
+ * on at full speed.
+ */
+public class RateLimiter implements ConstantsIF {
+
+  /** The rate scopes AdWords reports in RateExceededError.getRateScope(), plus our own */
+  public enum Scope {DEVELOPER, ACCOUNT, SERVICE};
+
+  /** A single bucket of tokens, one token per operation */
+  static class TokenBucket {
+    private final double ratePerSecond;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private long closedUntilNanos = 0;
+
+    TokenBucket(double ratePerSecond) {
+      this.ratePerSecond = ratePerSecond;
+      this.capacity = ratePerSecond * RATE_LIMIT_BURST_SECONDS;
+      this.tokens = capacity;
+    }
+
+    private void refill(long now) {
+      tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * ratePerSecond / 1e9);
+      lastRefillNanos = now;
+    }
+
+    /**
+     * Take tokens for some operations, going into debt if there aren't enough, so big blocks
+     * still get through once the bucket has refilled.
+     * @return how long (in ns) the caller must wait before sending
+     */
+    synchronized long reserve(int permits, long now) {
+      refill(now);
+      long wait = Math.max(0, closedUntilNanos - now);
+      if (tokens < 0) {
+        wait = Math.max(wait, (long) (-tokens / ratePerSecond * 1e9));
+      }
+      tokens -= permits;
+      return wait;
+    }
+
+    /** Empty the bucket and keep it shut for a while, as the server asked us to. */
+    synchronized void close(long durationNanos, long now) {
+      refill(now);
+      tokens = Math.min(tokens, 0);
+      closedUntilNanos = Math.max(closedUntilNanos, now + durationNanos);
+    }
+  }
+
+  private final TokenBucket developerBucket = new TokenBucket(DEVELOPER_OPERATIONS_PER_SECOND);
+  private final ConcurrentHashMap<String, TokenBucket> accountBuckets =
+      new ConcurrentHashMap<String, TokenBucket>();
+  private final ConcurrentHashMap<String, TokenBucket> serviceBuckets =
+      new ConcurrentHashMap<String, TokenBucket>();
+
+  private TokenBucket bucket(ConcurrentHashMap<String, TokenBucket> buckets, String key,
+      double ratePerSecond) {
+    TokenBucket bucket = buckets.get(key);
+    if (bucket == null) {
+      TokenBucket created = new TokenBucket(ratePerSecond);
+      bucket = buckets.putIfAbsent(key, created);
+      if (bucket == null) {
+        bucket = created;
+      }
+    }
+    return bucket;
+  }
+
+  private TokenBucket accountBucket(String clientAccountId) {
+    return bucket(accountBuckets, String.valueOf(clientAccountId), ACCOUNT_OPERATIONS_PER_SECOND);
+  }
+
+  private TokenBucket serviceBucket(Class<?> service) {
+    return bucket(serviceBuckets, service.getSimpleName(), SERVICE_OPERATIONS_PER_SECOND);
+  }
+
+  /**
+   * Wait until it's our turn to send some operations to a Service for an account.  Call this
+   * before every get or mutate.
+   * @param clientAccountId the account the call is for
+   * @param service the Service interface being called
+   * @param operations how many operations are in the call (1 for a get)
+   * @return how long we waited, in ms
+   */
+  public long acquire(String clientAccountId, Class<?> service, int operations)
+      throws InterruptedException {
+    int permits = Math.max(1, operations);
+    long now = System.nanoTime();
+    long wait = developerBucket.reserve(permits, now);
+    wait = Math.max(wait, accountBucket(clientAccountId).reserve(permits, now));
+    wait = Math.max(wait, serviceBucket(service).reserve(permits, now));
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+    Metrics.histogram("rate_limit_wait_ms", "service", service.getSimpleName())
+        .record(TimeUnit.NANOSECONDS.toMillis(wait));
+    return TimeUnit.NANOSECONDS.toMillis(wait);
+  }
+
+  /**
+   * The server told us we went too fast: shut the bucket for the scope it named for as long as it
+   * asked.
+   * @param clientAccountId the account the call was for
+   * @param service the Service interface that was called
+   * @param error what the server sent back
+   */
+  public void rateExceeded(String clientAccountId, Class<?> service, RateExceededError error) {
+    Integer retryAfterSeconds = error.getRetryAfterSeconds();
+    long wait = TimeUnit.SECONDS.toNanos(
+        retryAfterSeconds == null ? RATE_LIMIT_DEFAULT_RETRY_SECONDS : retryAfterSeconds);
+    Scope scope;
+    try {
+      scope = Scope.valueOf(String.valueOf(error.getRateScope()));
+    } catch (IllegalArgumentException e) {
+      scope = Scope.ACCOUNT;
+    }
+    Metrics.counter("rate_limit_exceeded_total", "scope", scope.name()).inc();
+    close(scope, clientAccountId, service, wait);
+  }
+
+  /**
+   * Hold back all calls in one scope for a while
+   * @param scope which bucket to shut
+   * @param clientAccountId the account, for an ACCOUNT scope
+   * @param service the Service interface, for a SERVICE scope
+   * @param durationNanos how long to hold them
+   */
+  public void close(Scope scope, String clientAccountId, Class<?> service, long durationNanos) {
+    long now = System.nanoTime();
+    switch (scope) {
+    case DEVELOPER:
+      developerBucket.close(durationNanos, now);
+      break;
+    case SERVICE:
+      serviceBucket(service).close(durationNanos, now);
+      break;
+    default:
+      accountBucket(clientAccountId).close(durationNanos, now);
+    }
+  }
+}
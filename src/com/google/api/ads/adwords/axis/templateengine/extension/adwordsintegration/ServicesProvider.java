@@ -0,0 +1,44 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.lib.client.AdWordsSession;
+import com.google.api.ads.common.lib.conf.ConfigurationLoadException;
+import com.google.api.ads.common.lib.exception.ValidationException;
+import com.google.api.client.auth.oauth2.Credential;
+
+/**
+ * Where {@link AWAPI} and the Plugins get their sessions and Services from.  Normally that is
+ * {@link AdWordsServicesProvider}, which talks to AdWords; {@link FakeAdWordsServices} answers
+ * in-process instead, for load testing without using any quota.
+ */
+public interface ServicesProvider {
+
+  /**
+   * Build a new session
+   * @param credential the OAuth2 credential to use, may be null if the provider doesn't need one
+   * @return the session
+   */
+  AdWordsSession newSession(Credential credential)
+      throws ConfigurationLoadException, ValidationException;
+
+  /**
+   * Get a Service for a session, in the same way as AdWordsServices.get()
+   * @param session the session the Service should use
+   * @param serviceInterface the Service interface, eg: CampaignServiceInterface.class
+   * @return the Service
+   */
+  <T> T get(AdWordsSession session, Class<T> serviceInterface);
+}
@@ -0,0 +1,192 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.Metrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A bounded cache of per-account values, eg: a session and its Services, shared by every worker.
+ * Once it holds maxSize entries the least recently used one is dropped, and entries can expire
+ * after a while, eg: when the credential they were built with runs out.  Only one thread builds
+ * the value for a key; any others asking for it at the same time wait for that one.
+ *
+ * Hits, misses, evictions and expiries are counted in {@link Metrics} under the cache's name.
+ *
+ * @param <V> what is cached
+ */
+public class SessionCache<V> {
+
+  /** Builds the value for a key that isn't cached */
+  public interface Loader<V> {
+    /**
+     * @param key the key, eg: a client account id
+     * @return the value to cache
+     */
+    V load(String key);
+
+    /**
+     * @param value a value just built
+     * @return how long (in ms) it may be used for, or 0 for as long as it stays in the cache
+     */
+    long lifetimeMs(V value);
+  }
+
+  /** A value, or the promise of one while it is being built */
+  private static class Entry<V> {
+    final CountDownLatch built = new CountDownLatch(1);
+    volatile V value;
+    volatile RuntimeException failure;
+    long expiresAtNanos = Long.MAX_VALUE;
+
+    V await() {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          built.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return value;
+    }
+  }
+
+  private final int maxSize;
+  private final Loader<V> loader;
+  private final Metrics.Counter hits;
+  private final Metrics.Counter misses;
+  private final Metrics.Counter evictions;
+  private final Metrics.Counter expiries;
+
+  /** in access order, so the eldest entry is the least recently used */
+  private final LinkedHashMap<String, Entry<V>> entries =
+      new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+
+  /**
+   * @param name what to count hits, misses, evictions and expiries under
+   * @param maxSize the most entries to keep
+   * @param loader builds values that aren't cached
+   */
+  public SessionCache(String name, int maxSize, Loader<V> loader) {
+    this.maxSize = Math.max(1, maxSize);
+    this.loader = loader;
+    hits = Metrics.counter("cache_hits_total", "cache", name);
+    misses = Metrics.counter("cache_misses_total", "cache", name);
+    evictions = Metrics.counter("cache_evictions_total", "cache", name);
+    expiries = Metrics.counter("cache_expiries_total", "cache", name);
+    Metrics.gauge("cache_size", new Metrics.Gauge() {
+      @Override
+      public double value() {
+        return size();
+      }
+    }, "cache", name);
+  }
+
+  /**
+   * Get the value for a key, building it if it isn't cached or has expired
+   * @param key the key, eg: a client account id
+   * @return the value
+   */
+  public V get(String key) {
+    Entry<V> entry;
+    boolean build = false;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry != null && entry.expiresAtNanos <= System.nanoTime()) {
+        expiries.inc();
+        entries.remove(key);
+        entry = null;
+      }
+      if (entry == null) {
+        misses.inc();
+        entry = new Entry<V>();
+        entries.put(key, entry);
+        evictOverflow();
+        build = true;
+      } else {
+        hits.inc();
+      }
+    }
+    if (build) {
+      build(key, entry);
+    }
+    return entry.await();
+  }
+
+  private void build(String key, Entry<V> entry) {
+    try {
+      V value = loader.load(key);
+      long lifetimeMs = loader.lifetimeMs(value);
+      synchronized (this) {
+        if (lifetimeMs > 0) {
+          entry.expiresAtNanos = System.nanoTime() + lifetimeMs * 1000000;
+        }
+      }
+      entry.value = value;
+    } catch (RuntimeException e) {
+      // don't keep the failure; the next call for this key tries again
+      synchronized (this) {
+        if (entries.get(key) == entry) {
+          entries.remove(key);
+        }
+      }
+      entry.failure = e;
+    } finally {
+      entry.built.countDown();
+    }
+  }
+
+  /**
+   * Put a value in the cache, replacing any there already
+   * @param key the key, eg: a client account id
+   * @param value the value
+   */
+  public void put(String key, V value) {
+    Entry<V> entry = new Entry<V>();
+    entry.value = value;
+    entry.built.countDown();
+    synchronized (this) {
+      entries.put(key, entry);
+      evictOverflow();
+    }
+  }
+
+  /** @return how many entries are cached, or being built */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** Drop the least recently used entries until we're back within maxSize */
+  private void evictOverflow() {
+    Iterator<Map.Entry<String, Entry<V>>> eldest = entries.entrySet().iterator();
+    while (entries.size() > maxSize && eldest.hasNext()) {
+      eldest.next();
+      eldest.remove();
+      evictions.inc();
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.engine;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.plugins.BasePlugin;
+import com.google.api.ads.adwords.axis.templateengine.extension.plugins.BlockFuture;
+import com.google.api.ads.adwords.axis.templateengine.extension.plugins.BlockResult;
+import com.google.api.ads.adwords.axis.templateengine.extension.plugins.OperationBlock;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Takes blocks off its own queue and pushes them through its own {@link LineProcessor} and
+ * Plugin, one at a time.  Every block for a given account key goes to the same worker, so each
+ * account's blocks are still mutated in file order.
+ *
+ * The mutate for each block runs asynchronously, so the worker builds the next block while up to
+ * {@link ConstantsIF#MAX_IN_FLIGHT_BLOCKS} earlier ones are still on the wire.  A block is only
+ * sent once the previous block for the same account, or any account if the Plugin's blocks
+ * depend on each other, has finished.  Finished blocks are recorded
+ * on the {@link Pipeline}'s record stage, and only then does the block's in-flight slot free up.
+ */
+public class BlockWorker implements Runnable, ConstantsIF {
+
+  /** put on the queue to tell the worker there is nothing more to do */
+  static final LineBlock END_OF_INPUT = new LineBlock("", 0);
+
+  private final LineProcessor lineProcessor;
+  private final OutcomeLedger ledger;
+  private final Pipeline pipeline;
+  private final BlockingQueue<LineBlock> queue =
+      new ArrayBlockingQueue<LineBlock>(WORKER_QUEUE_CAPACITY);
+
+  /** where the mutates run */
+  private final Executor mutateExecutor;
+
+  /** one permit per block this worker may have in flight */
+  private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT_BLOCKS);
+
+  private final Metrics.Counter operationsBuilt = Metrics.counter("operations_built_total");
+  private final Metrics.Counter linesFailedToBuild = Metrics.counter("lines_build_failed_total");
+  private final Metrics.Histogram blockMutateMs = Metrics.histogram("block_mutate_ms");
+
+  /** the latest block in flight for each account key */
+  private final ConcurrentHashMap<String, BlockFuture> inFlightByKey =
+      new ConcurrentHashMap<String, BlockFuture>();
+
+  /** if not, every block waits for the one before, whatever its account key */
+  private final boolean independentKeys;
+
+  public BlockWorker(LineProcessor lineProcessor, OutcomeLedger ledger,
+      Pipeline pipeline, Executor mutateExecutor) {
+    this.lineProcessor = lineProcessor;
+    this.ledger = ledger;
+    this.pipeline = pipeline;
+    this.mutateExecutor = mutateExecutor;
+    this.independentKeys = lineProcessor.getLinePlugin().capabilities.independentKeys;
+  }
+
+  public LineProcessor getLineProcessor() {
+    return lineProcessor;
+  }
+
+  public BlockingQueue<LineBlock> getQueue() {
+    return queue;
+  }
+
+  /** Queue a block for this worker, waiting for space if it is already busy. */
+  public void submit(LineBlock block) throws InterruptedException {
+    queue.put(block);
+  }
+
+  @Override
+  public void run() {
+    try {
+      LineBlock block;
+      while ((block = queue.take()) != END_OF_INPUT) {
+        if (!lineProcessor.preflight) {
+          ledger.submitted(block);
+        }
+        try {
+          process(block);
+        } catch (RuntimeException e) {
+          // The lines have no outcome in the ledger, which is kept at the end of the run as they
+          // are unresolved, so a restart picks them up again.
+          System.err.println("Block starting at line " + block.getFirstLineNumber()
+              + " failed: " + e);
+          e.printStackTrace();
+          lineProcessor.getLinePlugin().clearOperations();
+          lineProcessor.clearLines();
+        }
+      }
+      // Wait for everything still in flight before reporting we are done.
+      inFlight.acquire(MAX_IN_FLIGHT_BLOCKS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Build the Operations for every line in the block, then start the mutate for them in one call.
+   * @param block the lines to process
+   */
+  private void process(final LineBlock block) throws InterruptedException {
+    long start = System.nanoTime();
+    BasePlugin linePlugin = lineProcessor.getLinePlugin();
+    linePlugin.lastBlockLineNumber = block.getFirstLineNumber() - 1;
+
+    for (int i = 0; i < block.size(); i++) {
+      long currentLineNumber = block.lineNumbers[i];
+      // the line only becomes Strings here, on the worker, rather than on the reader, and only
+      // its bytes are kept once it is built
+      String[] line = block.lines[i].toArray();
+      lineProcessor.addLine(block.lines[i], currentLineNumber);
+
+      if (!linePlugin.setOperations(line, currentLineNumber)) {
+        linesFailedToBuild.inc();
+        // a line validate() turned down has been reported already, with why
+        if (!lineProcessor.hasFailed(currentLineNumber)) {
+          lineProcessor.handleFailure(i * linePlugin.opsPerLine,
+              "Failed reading CSV line " + currentLineNumber);
+        }
+      } else {
+        operationsBuilt.add(linePlugin.opsPerLine);
+        // dump output to console
+        System.out.println("Finished processing line # " + currentLineNumber);
+      }
+    }
+
+    // We now have an Operations array in the Plugin waiting to be used, so hand it over
+    // and push it out to AdWords while we get on with the next block.
+    OperationBlock operationBlock = linePlugin.detachBlock();
+    lineProcessor.clearLines();
+    if (lineProcessor.preflight && !lineProcessor.awapi.validateOnly) {
+      // building the Operations was the whole check, so nothing is sent
+      operationBlock.release();
+      ledger.commit();
+      pipeline.build.add(block.size(), System.nanoTime() - start);
+      return;
+    }
+    pipeline.build.add(block.size(), System.nanoTime() - start);
+
+    final String key = independentKeys ? block.key : "";
+    awaitPreviousBlock(key);
+    inFlight.acquire();
+    BlockFuture future;
+    try {
+      future = linePlugin.mutateAsync(operationBlock, mutateExecutor,
+          new BlockFuture.Listener() {
+            @Override
+            public void blockCompleted(final OperationBlock operationBlock,
+                final BlockResult result) {
+              pipeline.mutate.add(block.size(), result.getElapsedNanos());
+              blockMutateMs.record(result.getElapsedNanos() / 1000000);
+              BlockFuture current = inFlightByKey.get(key);
+              if (current != null && current.getBlock() == operationBlock) {
+                inFlightByKey.remove(key, current);
+              }
+              try {
+                pipeline.record(new Runnable() {
+                  @Override
+                  public void run() {
+                    recordBlock(block, operationBlock, result);
+                  }
+                });
+              } catch (InterruptedException e) {
+                // the record stage couldn't take it, so record it here: its lines still get
+                // their outcomes, and the block and permit are still given back
+                Thread.currentThread().interrupt();
+                recordBlock(block, operationBlock, result);
+              }
+            }
+          });
+    } catch (RuntimeException e) {
+      // eg: a RejectedExecutionException; the mutate never started, so nothing else will give
+      // back the permit or the block
+      inFlight.release();
+      operationBlock.release();
+      throw e;
+    }
+    inFlightByKey.put(key, future);
+    if (future.isDone()) {
+      // it finished before we could note it down
+      inFlightByKey.remove(key, future);
+    }
+  }
+
+  /**
+   * Write out the results of a finished block, and commit their outcomes to the ledger.  Runs on
+   * the record stage.
+   */
+  private void recordBlock(LineBlock block, OperationBlock operationBlock, BlockResult result) {
+    long start = System.nanoTime();
+    try {
+      lineProcessor.record(operationBlock, result);
+      if (result.isSuccess()) {
+        System.out.println("Success from Mutate block ending at line "
+            + block.getLastLineNumber());
+      } else {
+        System.out.println("Errors from Mutate block ending at line "
+            + block.getLastLineNumber());
+      }
+      ledger.commit();
+    } finally {
+      operationBlock.release();
+      inFlight.release();
+      pipeline.record.add(block.size(), System.nanoTime() - start);
+    }
+  }
+
+  /** Wait until the last block sent for this account key has finished, to keep them in order. */
+  private void awaitPreviousBlock(String key) throws InterruptedException {
+    BlockFuture previous = inFlightByKey.get(key);
+    if (previous != null) {
+      try {
+        previous.get();
+      } catch (ExecutionException e) {
+        // already reported by the listener
+      }
+    }
+  }
+}
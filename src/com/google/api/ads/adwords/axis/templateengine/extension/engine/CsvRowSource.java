@@ -0,0 +1,57 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.engine;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.CsvRow;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.MappedCsvReader;
+
+import java.io.IOException;
+
+/**
+ * The rows of the CSV file in file order, straight from the reader.
+ */
+public class CsvRowSource implements RowSource {
+
+  private final MappedCsvReader reader;
+  private long lineNumber;
+
+  /**
+   * @param reader the CSV file, already past the title and header lines
+   * @param lastLineNumber the line number of the last line already read
+   */
+  public CsvRowSource(MappedCsvReader reader, long lastLineNumber) {
+    this.reader = reader;
+    this.lineNumber = lastLineNumber;
+  }
+
+  @Override
+  public CsvRow nextRow() throws IOException {
+    CsvRow row = reader.nextRow();
+    if (row != null) {
+      lineNumber++;
+    }
+    return row;
+  }
+
+  @Override
+  public long getLineNumber() {
+    return lineNumber;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
@@ -0,0 +1,320 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.engine;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.CsvRow;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.MappedCsvReader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Groups the rows of the CSV file by the Plugin's idColumns before they are made into blocks, so
+ * an unsorted file still gets full blocks rather than one mutate() per change of account.  Rows
+ * with the same key keep their file order, and each keeps its original line number.
+ *
+ * Rows are sorted in memory until they reach {@link ConstantsIF#GROUP_MEMORY_BYTES}, then written
+ * out as a sorted run ("lineNumber,the,original,fields") next to the CSV file.  If everything fit
+ * in memory the rows come straight from there; otherwise the runs are merged back together, at
+ * most {@link ConstantsIF#GROUP_MERGE_FAN_IN} at a time, and deleted on {@link #close()}.
+ *
+ * A grouper made to be read more than once keeps its rows until it is closed, so
+ * {@link #rewind()} can hand them out again without sorting the file a second time.
+ */
+public class ExternalGrouper implements RowSource, ConstantsIF {
+
+  /** what a row held in memory costs, besides its bytes in the file */
+  private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+  private static class Entry {
+    final String key;
+    final long lineNumber;
+    final CsvRow row;
+
+    Entry(String key, long lineNumber, CsvRow row) {
+      this.key = key;
+      this.lineNumber = lineNumber;
+      this.row = row;
+    }
+  }
+
+  /** by key, then by line number so a key's rows stay in file order */
+  private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      int byKey = a.key.compareTo(b.key);
+      if (byKey != 0) {
+        return byKey;
+      }
+      return a.lineNumber < b.lineNumber ? -1 : (a.lineNumber == b.lineNumber ? 0 : 1);
+    }
+  };
+
+  /** The rows of one sorted run file, read back one at a time */
+  private class Run {
+    final File file;
+    final MappedCsvReader reader;
+    Entry head;
+
+    Run(File file) throws IOException {
+      this.file = file;
+      this.reader = new MappedCsvReader(file);
+    }
+
+    /** @return false once the run is used up */
+    boolean advance() throws IOException {
+      CsvRow stored = reader.nextRow();
+      if (stored == null) {
+        head = null;
+        return false;
+      }
+      CsvRow row = stored.subRow(1);
+      head = new Entry(LineBlock.keyOf(row, idColumns), Long.parseLong(stored.get(0)), row);
+      return true;
+    }
+  }
+
+  private final int idColumns;
+  private final File tempDirectory;
+
+  /** keep the rows for {@link #rewind()}, rather than letting them go as they are handed on */
+  private final boolean reusable;
+  private final List<File> runFiles = new LinkedList<File>();
+
+  /** set if every row fit in memory */
+  private List<Entry> sorted = null;
+  private int next = 0;
+
+  /** set if the runs are being merged */
+  private PriorityQueue<Run> merging = null;
+
+  private long lineNumber;
+
+  /** each run line is built here before it is written */
+  private final StringBuilder line = new StringBuilder();
+
+  /**
+   * Read every row from the input and sort it into groups, ready for {@link #nextRow()}.
+   * @param input the rows in file order
+   * @param idColumns how many columns from the left identify the target
+   * @param tempDirectory where to write the sorted runs if they don't fit in memory
+   */
+  public ExternalGrouper(RowSource input, int idColumns, File tempDirectory) throws IOException {
+    this(input, idColumns, tempDirectory, false);
+  }
+
+  /**
+   * As above, but able to be read more than once
+   * @param reusable true to keep the rows until closed, so they can be read again after
+   *     {@link #rewind()}
+   */
+  public ExternalGrouper(RowSource input, int idColumns, File tempDirectory, boolean reusable)
+      throws IOException {
+    this.idColumns = idColumns;
+    this.tempDirectory = tempDirectory;
+    this.reusable = reusable;
+
+    List<Entry> buffer = new ArrayList<Entry>();
+    long bufferBytes = 0;
+    long rows = 0;
+    CsvRow row;
+    while ((row = input.nextRow()) != null) {
+      buffer.add(new Entry(LineBlock.keyOf(row, idColumns), input.getLineNumber(), row));
+      bufferBytes += row.length() + ENTRY_OVERHEAD_BYTES;
+      rows++;
+      if (bufferBytes >= GROUP_MEMORY_BYTES) {
+        Collections.sort(buffer, ORDER);
+        runFiles.add(writeRun(buffer));
+        buffer.clear();
+        bufferBytes = 0;
+      }
+    }
+    Collections.sort(buffer, ORDER);
+    if (runFiles.isEmpty()) {
+      sorted = buffer;
+    } else {
+      if (!buffer.isEmpty()) {
+        runFiles.add(writeRun(buffer));
+      }
+      buffer = null;
+      while (runFiles.size() > GROUP_MERGE_FAN_IN) {
+        mergeRuns();
+      }
+      merging = openRuns(runFiles);
+    }
+    System.out.println(String.format("Grouped %d rows by their first %d column(s)%s.", rows,
+        idColumns, runFiles.isEmpty() ? "" : " using " + runFiles.size() + " sorted run(s)"));
+  }
+
+  @Override
+  public CsvRow nextRow() throws IOException {
+    Entry entry;
+    if (sorted != null) {
+      if (next >= sorted.size()) {
+        return null;
+      }
+      entry = sorted.get(next);
+      if (!reusable) {
+        // let the row go once it has been handed on
+        sorted.set(next, null);
+      }
+      next++;
+    } else {
+      Run run = merging.poll();
+      if (run == null) {
+        return null;
+      }
+      entry = run.head;
+      if (run.advance()) {
+        merging.add(run);
+      } else {
+        run.reader.close();
+      }
+    }
+    lineNumber = entry.lineNumber;
+    return entry.row;
+  }
+
+  @Override
+  public long getLineNumber() {
+    return lineNumber;
+  }
+
+  /**
+   * Start again from the first row, for a grouper made reusable
+   * @throws IllegalStateException if it wasn't
+   */
+  public void rewind() throws IOException {
+    if (!reusable) {
+      throw new IllegalStateException("Only a reusable ExternalGrouper can be rewound");
+    }
+    if (sorted != null) {
+      next = 0;
+    } else {
+      // the run files are all still there, so merging them again gives the same order
+      for (Run run : merging) {
+        run.reader.close();
+      }
+      merging = openRuns(runFiles);
+    }
+  }
+
+  /** Close and delete the run files. */
+  @Override
+  public void close() throws IOException {
+    if (merging != null) {
+      for (Run run : merging) {
+        run.reader.close();
+      }
+      merging.clear();
+    }
+    for (File file : runFiles) {
+      file.delete();
+    }
+    runFiles.clear();
+  }
+
+  /** Merge the oldest runs into one new run, to keep the number open at once down. */
+  private void mergeRuns() throws IOException {
+    List<File> batch = new ArrayList<File>();
+    for (int i = 0; i < GROUP_MERGE_FAN_IN; i++) {
+      batch.add(runFiles.remove(0));
+    }
+    PriorityQueue<Run> runs = openRuns(batch);
+    File merged = newRunFile();
+    Writer writer = openRunWriter(merged);
+    try {
+      Run run;
+      while ((run = runs.poll()) != null) {
+        writeEntry(writer, run.head);
+        if (run.advance()) {
+          runs.add(run);
+        } else {
+          run.reader.close();
+        }
+      }
+    } finally {
+      writer.close();
+    }
+    for (File file : batch) {
+      file.delete();
+    }
+    runFiles.add(merged);
+  }
+
+  private PriorityQueue<Run> openRuns(List<File> files) throws IOException {
+    PriorityQueue<Run> runs = new PriorityQueue<Run>(Math.max(1, files.size()),
+        new Comparator<Run>() {
+          @Override
+          public int compare(Run a, Run b) {
+            return ORDER.compare(a.head, b.head);
+          }
+        });
+    for (File file : files) {
+      Run run = new Run(file);
+      if (run.advance()) {
+        runs.add(run);
+      } else {
+        run.reader.close();
+      }
+    }
+    return runs;
+  }
+
+  private File writeRun(List<Entry> entries) throws IOException {
+    File file = newRunFile();
+    Writer writer = openRunWriter(file);
+    try {
+      for (Entry entry : entries) {
+        writeEntry(writer, entry);
+      }
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  private File newRunFile() throws IOException {
+    File file = File.createTempFile(GROUP_RUN_FILE_PREFIX, ".csv", tempDirectory);
+    file.deleteOnExit();
+    return file;
+  }
+
+  private Writer openRunWriter(File file) throws IOException {
+    return new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(file), CSV_CHARSET), RESULT_BUFFER_BYTES);
+  }
+
+  /** write the line number, then the row's fields, quoting them only where they need it */
+  private void writeEntry(Writer writer, Entry entry) throws IOException {
+    line.setLength(0);
+    line.append(entry.lineNumber);
+    for (int i = 0; i < entry.row.size(); i++) {
+      CsvRow.appendField(line.append(','), entry.row.get(i));
+    }
+    writer.append(line).write('\n');
+  }
+}
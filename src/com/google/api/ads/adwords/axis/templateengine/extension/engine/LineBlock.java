@@ -0,0 +1,81 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.engine;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.CsvRow;
+
+/**
+ * A run of CSV lines that share the same account key (the first idColumns fields of the line),
+ * and so can be sent to AdWords in a single mutate() call.
+ */
+public class LineBlock {
+
+  /** the idColumns prefix shared by every line in this block, used to pick a worker */
+  public final String key;
+
+  /** the CSV lines in this block, in file order, still as views onto the mapped file */
+  public final CsvRow[] lines;
+
+  /** the line number (from the data CSV file) of each entry in {@link #lines} */
+  public final long[] lineNumbers;
+
+  private int size = 0;
+
+  public LineBlock(String key, int capacity) {
+    this.key = key;
+    this.lines = new CsvRow[capacity];
+    this.lineNumbers = new long[capacity];
+  }
+
+  /**
+   * Add a line to the end of this block
+   * @param line the fields of the CSV line
+   * @param lineNumber the line number it came from
+   */
+  public void add(CsvRow line, long lineNumber) {
+    lines[size] = line;
+    lineNumbers[size] = lineNumber;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long getFirstLineNumber() {
+    return lineNumbers[0];
+  }
+
+  public long getLastLineNumber() {
+    return lineNumbers[size - 1];
+  }
+
+  /**
+   * Build the account key for a line: the first idColumns fields joined together.
+   * @param line the fields of the CSV line
+   * @param idColumns how many columns from the left identify the target
+   * @return the key
+   */
+  public static String keyOf(CsvRow line, int idColumns) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < idColumns && i < line.size(); i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(line.get(i));
+    }
+    return sb.toString();
+  }
+}
@@ -20,15 +20,23 @@ import com.google.api.ads.adwords.axis.v201402.cm.AuthenticationError;
 import com.google.api.ads.adwords.axis.v201402.cm.PolicyViolationError;
 import com.google.api.ads.adwords.axis.v201402.cm.RateExceededError;
 
+import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.AdaptiveBatchSizer;
 import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.AWAPI;
+import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.RateLimiter;
 import com.google.api.ads.adwords.axis.templateengine.extension.plugins.*;
 import com.google.api.ads.adwords.axis.templateengine.extension.engine.LineProcessor;
 import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.CsvRow;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ResultWriter;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.RowStore;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /** 
- * Manages the lines given in the CSV file, based on the first String within it
+ * Manages the lines given in the CSV file, based on the first String within it.  Each
+ * {@link BlockWorker} has its own LineProcessor and Plugin; only the AWAPI, RateLimiter and
+ * AdaptiveBatchSizer it is given are shared between threads, and they are safe to share.
  * 
  * @author Mark Bowyer
  * @author Nazmul Idris
@@ -37,9 +45,6 @@ import java.util.ArrayList;
  */
 
 public class LineProcessor implements ConstantsIF {
-  /** if this bit is set, then just retry processing the current line */
-  public boolean retry = false;
-
   public String version = "NoVersion";
 
   /**
@@ -52,22 +57,38 @@ public class LineProcessor implements ConstantsIF {
   /** this is populated in case of error - it holds the error details */
   public String errorCauseMessage = "N/A";
 
-  public ArrayList<String> listOfErrors;
-  public ArrayList<String> listOfSuccesses;
+  /** written to the error and success log files as they are added */
+  public ResultWriter.Stream listOfErrors;
+  public ResultWriter.Stream listOfSuccesses;
 
   /** This allows us to generate a new CSV file of all the lines that failed, with why at the end,
    *  for easy fix-and-relaunch processing.
    */
-  public ArrayList<String> fixupLines;
-  public ArrayList<String> headerLine;
-  public String lines[][] = new String[MAX_OPERATIONS][];
-
-  /** These are the currently supported Plugin types for this Package.  Add new Plugin names here:
-   */
-  public enum ProcessorTypes {TEST, FEEDDELETE, CAMPAIGNMIGRATION};
+  public ResultWriter.Stream fixupLines;
+  public List<String> headerLine;
+  /** the lines of the block being built, with their line numbers; null until one is added */
+  public RowStore rows = null;
 
     private BasePlugin linePlugin = null;
     public AWAPI awapi = null;
+
+    /** every get and mutate waits its turn here; the workers in a run share one */
+    public RateLimiter rateLimiter;
+
+    /** how many operations to put in each mutate; the workers in a run share one */
+    public AdaptiveBatchSizer batchSizer;
+
+    /** where the outcome of each line is recorded, for restarts; null if not kept */
+    public OutcomeLedger ledger = null;
+
+    /**
+     * set for a pre-flight pass: only failures are recorded, as lines that pass still have to be
+     * sent for real
+     */
+    public boolean preflight = false;
+
+    /** the last line {@link #handleLineFailure} reported, set on the worker building the lines */
+    private long lineFailedWhileBuilding = -1;
     
     public BasePlugin getLinePlugin() {
       return linePlugin;
@@ -78,21 +99,11 @@ public class LineProcessor implements ConstantsIF {
      * and the field index is provided by the header row in the CSV file {@link
      * BasePlugin#setup(String[], LineProcessor)} (String[])}
      * 
-     * @param processorType which Plugin to use to read the CSV file lines
+     * @param plugin makes the Plugin to use to read the CSV file lines, see {@link Plugins}
      * @param version the Version String given as the second word of the file
      */
-    public LineProcessor(ProcessorTypes processorType, String version) {
-      switch (processorType) {
-      case FEEDDELETE:
-        linePlugin = new FeedDeletingPlugin();
-        break;
-      case CAMPAIGNMIGRATION:
-        linePlugin = new CampaignMigration();
-        break;
-      default:
-        throw new NullPointerException();
-      }
-      this.version = version;
+    public LineProcessor(PluginProvider plugin, String version) {
+      this(plugin, version, null, new RateLimiter(), new AdaptiveBatchSizer());
 
       // create a new AdWords client object for the given client account
       try {
@@ -107,10 +118,51 @@ public class LineProcessor implements ConstantsIF {
       }
     }
 
-    /** Clear the local lines[][] ready for creating a new one. */
+    /**
+     * As above, but with the pieces that are the same for every worker in a run made once by the
+     * caller, rather than by each LineProcessor
+     * @param plugin makes the Plugin to use to read the CSV file lines
+     * @param version the Version String given as the second word of the file
+     * @param awapi where sessions and Services come from
+     * @param rateLimiter where every get and mutate waits its turn
+     * @param batchSizer how many operations to put in each mutate
+     */
+    public LineProcessor(PluginProvider plugin, String version, AWAPI awapi,
+        RateLimiter rateLimiter, AdaptiveBatchSizer batchSizer) {
+      linePlugin = plugin.newPlugin();
+      linePlugin.capabilities = plugin.getCapabilities();
+      this.version = version;
+      this.awapi = awapi;
+      this.rateLimiter = rateLimiter;
+      this.batchSizer = batchSizer;
+    }
+
+    /**
+     * Keep a line of the block being built, for the FixUp file if it fails
+     * @param line the fields of the CSV line
+     * @param lineNumber the line number it came from
+     */
+    public void addLine(CsvRow line, long lineNumber) {
+      if (rows == null) {
+        rows = RowStore.take();
+      }
+      rows.add(line, lineNumber);
+    }
+
+    /**
+     * Hand over the lines kept so far, eg: to the block built from them, and start afresh.
+     * @return the lines, or null if there are none
+     */
+    public RowStore takeLines() {
+      RowStore taken = rows;
+      rows = null;
+      return taken;
+    }
+
+    /** Clear the local lines ready for creating a new block. */
     public void clearLines() {
-      for (int i = 0; i < MAX_OPERATIONS; i++) {
-        lines[i] = null;
+      if (rows != null) {
+        rows.clear();
       }
     }
 
@@ -142,10 +194,38 @@ public class LineProcessor implements ConstantsIF {
       return true;
     }
 
-    /** Process Authentication Errors 
+    /** As {@link #sameTarget(String[], String[])}, but comparing the mapped bytes of the rows
+     * rather than Strings.
+     * 
+     * @param lastLine the previous row we're comparing against
+     * @param line the current row we're checking match
+     */
+    public boolean sameTarget(CsvRow lastLine, CsvRow line) {
+      BasePlugin linePlugin = getLinePlugin();
+      if (lastLine == null || line == null) {
+        return true;
+      }
+      if (line.size() < linePlugin.idColumns) {
+        System.err.println(
+            String.format("Empty lines in input CSV file! '%d' < '%d'.",
+                line.size(), linePlugin.idColumns)
+            );
+        return false;
+      }
+      for (int i = 0; i < linePlugin.idColumns; i++) {
+        if (!lastLine.fieldEquals(i, line)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Process Authentication Errors, by holding back the account for
+     * {@link ConstantsIF#SLOW_DOWN_TIMEOUT_MS}
      * @param awapiex the AdWords API Exception to process
+     * @param clientAccountId the account the call was for
      */
-    public void processAuthenticationError(ApiException awapiex) {
+    public void processAuthenticationError(ApiException awapiex, String clientAccountId) {
       ApiError[] errorRay = awapiex.getErrors();
       for (ApiError apiError : errorRay) {
         if (apiError instanceof AuthenticationError) {
@@ -154,7 +234,8 @@ public class LineProcessor implements ConstantsIF {
               String.format("AdWords API AuthenticationError was thrown: '%s'",
                   ((AuthenticationError) apiError).getReason().toString())
               );
-          slowDownNow("Captcha hit!!!");
+          rateLimiter.close(RateLimiter.Scope.ACCOUNT, clientAccountId, null,
+              TimeUnit.MILLISECONDS.toNanos(SLOW_DOWN_TIMEOUT_MS));
         } else {
           System.err.println(awapiex.getMessage());
         }
@@ -165,15 +246,19 @@ public class LineProcessor implements ConstantsIF {
     }
 
     /** Process Rate Exceeded Errors 
-     * @param awapiex the AdWords API Exception to process
+     * @param apiException the AdWords API Exception to process
+     * @param result the result of the block that hit it, which is marked for a retry
+     * @param clientAccountId the account the call was for
+     * @param service the Service interface that was called
      */
-    public void processRateExceededError(ApiException apiException) {
+    public void processRateExceededError(ApiException apiException, BlockResult result,
+        String clientAccountId, Class<?> service) {
       ApiError[] errorRay = apiException.getErrors();
       for (ApiError apiError : errorRay) {
         if (apiError instanceof RateExceededError) {
           // Ensure we were called for the right reason: RateExceededError
-          slowDownNow("Rate limit hit!!!", 
-              ((RateExceededError) apiError).getRetryAfterSeconds() * 1000);
+          rateLimiter.rateExceeded(clientAccountId, service, (RateExceededError) apiError);
+          result.setRetry(true);
         } else {
           System.err.println(apiError);
           // some other kind of ApiError
@@ -181,67 +266,18 @@ public class LineProcessor implements ConstantsIF {
               + apiError.getApiErrorType());
         }
       }
-      errorSummaryMessage = "AdWords API Exception for line #" + linePlugin.currentLineNumber;
+      String causeMessage;
       try {
         ApiError apiError = errorRay[0];
-        errorCauseMessage =
+        causeMessage =
             String.format(
                 "Error: '%s', Problematic-parameter: '%s', Problematic-value: '%s'",
                 apiError.getErrorString(), apiError.getFieldPath(), apiError.getTrigger());
 
       } catch (Exception e) {
-        errorCauseMessage = apiException.toString();
-      } finally {
-        listOfErrors.add(errorCauseMessage);
-      }
-    }
-
-    /** slows the program down by waiting for {@link ConstantsIF#SLOW_DOWN_TIMEOUT_MS} 
-     * @param msg the reason for slowing down
-     */
-    public void slowDownNow(String msg) {
-      slowDownNow(msg, (int) ConstantsIF.SLOW_DOWN_TIMEOUT_MS);
-    }
-
-    /** Slows down by provided int value MS 
-     * @param msg the reson for slowing down
-     * @param retryAfterMS a non-default period to wait
-     * */
-    public void slowDownNow(String msg, int retryAfterMS) {
-      try {
-        System.out.printf("SLOWING DOWN!!! Reason: %s%n", msg);
-        retry = true;
-        Thread.currentThread();
-        Thread.sleep(retryAfterMS);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
-
-    private int programExecutionPauseCounter = 0;
-
-    /** voluntary wait logic implementation */
-    public void voluntaryWaitLogic() {
-      // long pause
-      if (++programExecutionPauseCounter > PROGRAM_PAUSE_AFTER_PROCESSING_RECORD_BLOCK) {
-        programExecutionPauseCounter = 0;
-        try {
-          System.out.printf("Voluntarily pausing program after processing %d lines...%n",
-              PROGRAM_PAUSE_AFTER_PROCESSING_RECORD_BLOCK);
-          Thread.currentThread();
-          Thread.sleep(PROGRAM_PAUSE_LENGTH_MS);
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-        }
+        causeMessage = apiException.toString();
       }
-    }
-
-    /** retry logic implementation */
-    public void retryLogic(long currentLineNumber) {
-      if (retry) {
-        System.out.printf("Retrying processing line #%d ... %n", currentLineNumber);
-      }
-      retry = false;
+      result.error(causeMessage);
     }
 
     /** in case process fails, this will contain the error message for the output error log file */
@@ -272,9 +308,7 @@ public class LineProcessor implements ConstantsIF {
      * @param successMessage the message to log/report
      */
     public boolean handleSuccess(long line, String successMessage) {
-      listOfSuccesses.add(String.format("Line: '%d': '%s'.", 
-          (linePlugin.lastBlockLineNumber + (line / linePlugin.opsPerLine) + 1), successMessage));
-      return true;
+      return handleSuccess(linePlugin.lastBlockLineNumber, rows, line, successMessage);
     }
 
     /** Handle failure, and build listOfErrors and the FixUp file 
@@ -282,19 +316,93 @@ public class LineProcessor implements ConstantsIF {
      * @param errorMessage the message to log/report
      */
     public boolean handleFailure(int line, String errorMessage) {
-      listOfErrors.add(
-          String.format("Line: '%d': '%s'.", 
-              (linePlugin.lastBlockLineNumber + (line / linePlugin.opsPerLine) + 1), errorMessage));
-      String data = "";
-      int fixline = line / linePlugin.opsPerLine;
-      if (lines[fixline] != null) {
-        boolean first = true;
-        for (int i = 0; i < lines[fixline].length; i++) {
-          data += ((first) ? "" : ",") + lines[fixline][i];
-          first = false;
+      return handleFailure(linePlugin.lastBlockLineNumber, rows, line, errorMessage);
+    }
+
+    /** Handle failure of a line the Plugin is building, given its line number in the CSV file
+     * @param lineNumber the line of the CSV file this happened on
+     * @param errorMessage the message to log/report
+     */
+    public boolean handleLineFailure(long lineNumber, String errorMessage) {
+      lineFailedWhileBuilding = lineNumber;
+      int line = rows == null ? -1 : rows.indexOf(lineNumber);
+      if (line < 0) {
+        line = (int) (lineNumber - linePlugin.lastBlockLineNumber - 1);
+      }
+      return handleFailure(line * linePlugin.opsPerLine, errorMessage);
+    }
+
+    /**
+     * @param lineNumber the line of the CSV file being built
+     * @return true if the Plugin has already reported that line as failed, so it isn't again
+     */
+    public boolean hasFailed(long lineNumber) {
+      return lineFailedWhileBuilding == lineNumber;
+    }
+
+    /**
+     * Record everything that happened to a block once its mutate has finished.  This may be called
+     * from the thread that ran the mutate, while this LineProcessor is building the next block.
+     * @param block the block that was sent
+     * @param result what happened to each of its operations
+     */
+    public void record(OperationBlock block, BlockResult result) {
+      for (BlockResult.Entry entry : result.getEntries()) {
+        switch (entry.outcome) {
+        case SUCCESS:
+          handleSuccess(block.lastBlockLineNumber, block.rows, entry.operation, entry.message);
+          break;
+        case FAILURE:
+        case NOT_SENT:
+          handleFailure(block.lastBlockLineNumber, block.rows, entry.operation, entry.message);
+          break;
+        default:
+          listOfErrors.add(entry.message);
+        }
+      }
+    }
+
+    /**
+     * Work out which line of the CSV file an operation came from: the block's own line numbers
+     * where they are known, otherwise counting on from the line before the block.
+     */
+    private long lineNumberOf(long lastBlockLineNumber, RowStore rows, long operation) {
+      long index = operation / linePlugin.opsPerLine;
+      if (rows != null && index >= 0 && index < rows.size()) {
+        return rows.lineNumberOf((int) index);
+      }
+      return lastBlockLineNumber + index + 1;
+    }
+
+    private synchronized boolean handleSuccess(long lastBlockLineNumber, RowStore rows,
+        long line, String successMessage) {
+      if (preflight) {
+        return true;
+      }
+      long lineNumber = lineNumberOf(lastBlockLineNumber, rows, line);
+      listOfSuccesses.add(String.format("Line: '%d': '%s'.", lineNumber, successMessage));
+      if (ledger != null) {
+        ledger.succeeded(lineNumber);
+      }
+      return true;
+    }
+
+    private synchronized boolean handleFailure(long lastBlockLineNumber, RowStore rows,
+        int line, String errorMessage) {
+      long lineNumber = lineNumberOf(lastBlockLineNumber, rows, line);
+      listOfErrors.add(String.format("Line: '%d': '%s'.", lineNumber, errorMessage));
+      if (ledger != null) {
+        ledger.failed(lineNumber, errorMessage);
+      }
+      // only a failed line is ever made back into Strings
+      String[] fixline = rows == null ? null : rows.get(line / linePlugin.opsPerLine);
+      if (fixline != null) {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < fixline.length; i++) {
+          CsvRow.appendField(data, fixline[i]).append(',');
         }
-        data += "," + errorMessage;
-        fixupLines.add(data); 
+        CsvRow.appendField(data, errorMessage);
+        fixupLines.add(data.toString()); 
       }
       return true;
     }
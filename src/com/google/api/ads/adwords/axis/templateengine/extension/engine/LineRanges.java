@@ -0,0 +1,105 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.engine;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of CSV line numbers, kept as merged [first, last] ranges, so the lines committed by a
+ * multi-million line run take a handful of entries rather than one per line.
+ */
+public class LineRanges {
+
+  /** first line of each range to last line of that range; ranges never overlap or touch */
+  private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+  /**
+   * Add the range [first, last] to the set
+   * @param first the first line number
+   * @param last the last line number
+   */
+  public synchronized void add(long first, long last) {
+    Map.Entry<Long, Long> before = ranges.floorEntry(first);
+    if (before != null && before.getValue() >= first - 1) {
+      first = before.getKey();
+      last = Math.max(last, before.getValue());
+    }
+    Map.Entry<Long, Long> after = ranges.ceilingEntry(first);
+    while (after != null && after.getKey() <= last + 1) {
+      last = Math.max(last, after.getValue());
+      ranges.remove(after.getKey());
+      after = ranges.ceilingEntry(first);
+    }
+    ranges.put(first, last);
+  }
+
+  /**
+   * Add each run of consecutive line numbers as a range
+   * @param lineNumbers line numbers, in ascending order
+   * @param count how many of them to use
+   */
+  public synchronized void addAll(long[] lineNumbers, int count) {
+    int start = 0;
+    for (int i = 1; i <= count; i++) {
+      if (i == count || lineNumbers[i] != lineNumbers[i - 1] + 1) {
+        add(lineNumbers[start], lineNumbers[i - 1]);
+        start = i;
+      }
+    }
+  }
+
+  public synchronized boolean contains(long lineNumber) {
+    Map.Entry<Long, Long> range = ranges.floorEntry(lineNumber);
+    return range != null && range.getValue() >= lineNumber;
+  }
+
+  public synchronized boolean isEmpty() {
+    return ranges.isEmpty();
+  }
+
+  public synchronized void clear() {
+    ranges.clear();
+  }
+
+  /**
+   * @param other another set of lines
+   * @return how many lines of this set aren't in the other
+   */
+  public long countNotIn(LineRanges other) {
+    TreeMap<Long, Long> theirs = other.getRanges();
+    long count = 0;
+    for (Map.Entry<Long, Long> range : getRanges().entrySet()) {
+      long first = range.getKey();
+      long last = range.getValue();
+      count += last - first + 1;
+      // theirs never overlap each other, so each overlap comes off once
+      Map.Entry<Long, Long> before = theirs.floorEntry(first);
+      if (before != null && before.getValue() >= first) {
+        count -= Math.min(last, before.getValue()) - first + 1;
+      }
+      for (Map.Entry<Long, Long> inside : theirs.subMap(first, false, last, true).entrySet()) {
+        count -= Math.min(last, inside.getValue()) - inside.getKey() + 1;
+      }
+    }
+    return count;
+  }
+
+  /** @return a copy of the ranges, first line to last line */
+  public synchronized TreeMap<Long, Long> getRanges() {
+    return new TreeMap<Long, Long>(ranges);
+  }
+}
@@ -0,0 +1,321 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.engine;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.v201402.cm.ApiError;
+import com.google.api.ads.adwords.axis.v201402.cm.ApiException;
+import com.google.api.ads.adwords.axis.v201402.cm.OrderBy;
+import com.google.api.ads.adwords.axis.v201402.cm.Paging;
+import com.google.api.ads.adwords.axis.v201402.cm.Predicate;
+import com.google.api.ads.adwords.axis.v201402.cm.PredicateOperator;
+import com.google.api.ads.adwords.axis.v201402.cm.RateExceededError;
+import com.google.api.ads.adwords.axis.v201402.cm.Selector;
+import com.google.api.ads.adwords.axis.v201402.cm.SortOrder;
+import com.google.api.ads.adwords.axis.v201402.mcm.ManagedCustomer;
+import com.google.api.ads.adwords.axis.v201402.mcm.ManagedCustomerPage;
+import com.google.api.ads.adwords.axis.v201402.mcm.ManagedCustomerServiceInterface;
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.CsvRow;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.Metrics;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Turns rows naming a manager account ({@link ConstantsIF#MANAGER_ACCOUNT_COLUMN}) into one row
+ * for each client account under it, with the rest of the manager's row after the account id.
+ *
+ * The ManagedCustomerService returns the whole hierarchy under the account its session is for, so
+ * there is no need to go down it a level at a time: the first page says how many accounts there
+ * are, and the rest of the pages are then got {@link ConstantsIF#HIERARCHY_WALK_THREADS} at a
+ * time, for every manager in the file at once.  Accounts are handed on as each page comes in, so
+ * the first ones are being worked on while the rest are still being found.  Sub-managers are left
+ * out, as their accounts are in the same hierarchy, and an account under more than one of the
+ * managers is only given once.
+ *
+ * Every account found is given the line number of its manager's row, so that is where its
+ * outcomes are recorded.
+ */
+public class ManagedAccountSource implements RowSource, ConstantsIF {
+
+  /** An account, and the line of the manager it was found under */
+  private static class Found {
+    final CsvRow row;
+    final long lineNumber;
+
+    Found(CsvRow row, long lineNumber) {
+      this.row = row;
+      this.lineNumber = lineNumber;
+    }
+  }
+
+  /** marks the end of the accounts */
+  private static final Found END = new Found(null, 0);
+
+  private final RowSource managers;
+  private final LineProcessor lineProcessor;
+  private final ExecutorService walkers;
+  private final BlockingQueue<Found> found =
+      new LinkedBlockingQueue<Found>(HIERARCHY_WALK_THREADS * MANAGED_CUSTOMER_PAGE_SIZE);
+  private final Set<Long> seen =
+      Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+  /** the line numbers of the managers already reported, as each of their pages may fail */
+  private final Set<Long> failedManagers =
+      Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+  /** the pages still to be got, plus one until every manager has been read */
+  private final AtomicInteger pending = new AtomicInteger(1);
+  private final Thread reader;
+  private final Metrics.Counter accountsFound = Metrics.counter("accounts_found_total");
+
+  private long lineNumber;
+  private volatile IOException failure = null;
+
+  /**
+   * Start finding the accounts
+   * @param managers the rows naming the manager accounts
+   * @param lineProcessor whose AWAPI and rate limiter the calls go through, and whose error log
+   *     and ledger a manager that can't be walked is reported to
+   */
+  public ManagedAccountSource(RowSource managers, LineProcessor lineProcessor) {
+    this.managers = managers;
+    this.lineProcessor = lineProcessor;
+    this.walkers = Executors.newFixedThreadPool(HIERARCHY_WALK_THREADS, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "hierarchy-walker-" + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        readManagers();
+      }
+    }, "hierarchy-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  @Override
+  public CsvRow nextRow() throws IOException {
+    Found next;
+    try {
+      next = found.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while finding accounts", e);
+    }
+    if (next == END) {
+      // leave it there for any later calls
+      found.offer(END);
+      if (failure != null) {
+        throw failure;
+      }
+      return null;
+    }
+    lineNumber = next.lineNumber;
+    return next.row;
+  }
+
+  @Override
+  public long getLineNumber() {
+    return lineNumber;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.interrupt();
+    walkers.shutdownNow();
+    managers.close();
+  }
+
+  /** Read each manager's row, and start on its first page */
+  private void readManagers() {
+    try {
+      CsvRow row;
+      while ((row = managers.nextRow()) != null) {
+        final String[] fields = row.toArray();
+        final long managerLineNumber = managers.getLineNumber();
+        try {
+          Long.parseLong(fields[0]);
+        } catch (NumberFormatException e) {
+          failed(fields, managerLineNumber, String.format(
+              "Problem parsing data in row #%d. Field value was expected to be numeric",
+              managerLineNumber));
+          continue;
+        }
+        walk(fields, managerLineNumber, 0);
+      }
+    } catch (IOException e) {
+      failure = e;
+    } finally {
+      done();
+    }
+  }
+
+  /**
+   * Get one page of a manager's accounts on a walker thread; the first page starts on the rest
+   * @param manager the manager's row
+   * @param managerLineNumber its line number
+   * @param start the index of the first account in the page
+   */
+  private void walk(final String[] manager, final long managerLineNumber, final int start) {
+    pending.incrementAndGet();
+    walkers.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          ManagedCustomerPage page = getPage(manager[0], start);
+          if (page == null) {
+            failed(manager, managerLineNumber,
+                "Couldn't find the accounts under " + manager[0]);
+            return;
+          }
+          Integer total = page.getTotalNumEntries();
+          if (start == 0 && total != null) {
+            for (int next = MANAGED_CUSTOMER_PAGE_SIZE; next < total;
+                next += MANAGED_CUSTOMER_PAGE_SIZE) {
+              walk(manager, managerLineNumber, next);
+            }
+          }
+          if (page.getEntries() != null) {
+            for (ManagedCustomer customer : page.getEntries()) {
+              found(manager, managerLineNumber, customer);
+            }
+          }
+        } catch (ApiException e) {
+          ApiError[] errors = e.getErrors();
+          failed(manager, managerLineNumber, errors != null && errors.length > 0
+              ? errors[0].getErrorString() : e.toString());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          failed(manager, managerLineNumber,
+              "Interrupted while finding the accounts under " + manager[0]);
+        } catch (Exception e) {
+          failed(manager, managerLineNumber,
+              "Couldn't find the accounts under " + manager[0] + ": " + e);
+        } finally {
+          done();
+        }
+      }
+    });
+  }
+
+  /**
+   * Get a page of the client accounts under a manager, waiting for the rate limiter first, and
+   * trying again after a RateExceededError
+   * @param managerAccountId the manager account
+   * @param start the index of the first account in the page
+   * @return the page
+   */
+  private ManagedCustomerPage getPage(String managerAccountId, int start) throws Exception {
+    Selector selector = new Selector();
+    selector.setFields(new String[] {"CustomerId", "CanManageClients"});
+    selector.setPredicates(new Predicate[] {new Predicate("CanManageClients",
+        PredicateOperator.EQUALS, new String[] {"false"})});
+    // a fixed order, so the pages don't overlap
+    selector.setOrdering(new OrderBy[] {new OrderBy("CustomerId", SortOrder.ASCENDING)});
+    Paging paging = new Paging();
+    paging.setStartIndex(start);
+    paging.setNumberResults(MANAGED_CUSTOMER_PAGE_SIZE);
+    selector.setPaging(paging);
+    ManagedCustomerServiceInterface service =
+        lineProcessor.awapi.managedCustomerService(managerAccountId);
+    for (int attempt = 0; ; attempt++) {
+      lineProcessor.rateLimiter.acquire(managerAccountId, ManagedCustomerServiceInterface.class,
+          1);
+      try {
+        return service.get(selector);
+      } catch (ApiException e) {
+        RateExceededError rateExceeded = null;
+        if (e.getErrors() != null) {
+          for (ApiError error : e.getErrors()) {
+            if (error instanceof RateExceededError) {
+              rateExceeded = (RateExceededError) error;
+            }
+          }
+        }
+        if (rateExceeded == null || attempt >= MAX_BLOCK_RETRIES) {
+          throw e;
+        }
+        // the limiter holds the next acquire back for as long as we were asked to wait
+        lineProcessor.rateLimiter.rateExceeded(managerAccountId,
+            ManagedCustomerServiceInterface.class, rateExceeded);
+      }
+    }
+  }
+
+  /** Hand an account on, unless it's a manager or has already been found */
+  private void found(String[] manager, long managerLineNumber, ManagedCustomer customer)
+      throws InterruptedException {
+    if (customer.getCustomerId() == null || Boolean.TRUE.equals(customer.getCanManageClients())
+        || !seen.add(customer.getCustomerId())) {
+      return;
+    }
+    String[] fields = manager.clone();
+    fields[0] = String.valueOf(customer.getCustomerId());
+    found.put(new Found(CsvRow.of(fields), managerLineNumber));
+    accountsFound.inc();
+  }
+
+  /** One of the pending pages is finished; after the last, mark the end of the accounts */
+  private void done() {
+    if (pending.decrementAndGet() == 0) {
+      try {
+        found.put(END);
+      } catch (InterruptedException e) {
+        // only when closed, and then nothing is waiting for it
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Report a manager whose accounts couldn't be found, and put its row in the FixUp file, once
+   * @param manager the manager's row
+   * @param managerLineNumber its line number
+   * @param message the message to log/report
+   */
+  private void failed(String[] manager, long managerLineNumber, String message) {
+    if (!failedManagers.add(managerLineNumber)) {
+      return;
+    }
+    lineProcessor.listOfErrors.add(String.format("Line: '%d': '%s'.", managerLineNumber,
+        message));
+    if (lineProcessor.ledger != null) {
+      lineProcessor.ledger.failed(managerLineNumber, message);
+    }
+    StringBuilder data = new StringBuilder();
+    for (String field : manager) {
+      CsvRow.appendField(data, field).append(',');
+    }
+    CsvRow.appendField(data, message);
+    lineProcessor.fixupLines.add(data.toString());
+  }
+}
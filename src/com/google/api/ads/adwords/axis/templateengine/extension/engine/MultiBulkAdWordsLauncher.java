@@ -15,10 +15,20 @@ package com.google.api.ads.adwords.axis.templateengine.extension.engine;
 //limitations under the License.
 
 import com.google.api.ads.adwords.axis.templateengine.extension.engine.LineProcessor;
+import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.AdaptiveBatchSizer;
+import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.FakeAdWordsServices;
+import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.MeteredServicesProvider;
+import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.ServicesProvider;
+import com.google.api.ads.adwords.axis.templateengine.extension.plugins.PluginCapabilities;
+import com.google.api.ads.adwords.axis.templateengine.extension.plugins.PluginProvider;
+import com.google.api.ads.adwords.axis.templateengine.extension.plugins.Plugins;
 import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.CsvRow;
 import com.google.api.ads.adwords.axis.templateengine.extension.shared.FileUtils;
-
-import au.com.bytecode.opencsv.*;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.MappedCsvReader;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.Metrics;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.MetricsExporter;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ResultWriter;
 
 import java.io.*;
 import java.util.*;
@@ -28,6 +38,14 @@ import java.util.*;
  * Mutate call, rather than doing each line of the CSV file per mutate request.  Both are supported,
  * but this is cheaper and more efficient.
  * 
+ * Blocks are handed to a {@link ShardedBlockExecutor}, so blocks for different accounts are
+ * mutated in parallel on {@link ConstantsIF#WORKER_THREADS} workers.  Reading, building, mutating
+ * and recording each run as their own {@link Pipeline} stage.
+ * 
+ * A file whose header starts with {@link ConstantsIF#MANAGER_ACCOUNT_COLUMN} names manager
+ * accounts instead, and the client accounts under them are found and handed to the workers as
+ * they turn up (see {@link ManagedAccountSource}).
+ * 
  * @author markbowyer
  *
  */
@@ -38,29 +56,36 @@ public class MultiBulkAdWordsLauncher implements ConstantsIF {
 
   public static void main(String[] args) {
 
-    CSVReader reader = null;
+    MappedCsvReader reader = null;
+    RowSource source = null;
+    ShardedBlockExecutor executor = null;
+    OutcomeLedger ledger = null;
+    ResultWriter results = null;
+    MetricsExporter metrics = new MetricsExporter();
+    boolean finished = false;
 
     try {
+      metrics.start();
+
       // read the CSV file
-      reader = new CSVReader(
-          new FileReader(
-              FileUtils.getFile(SOURCE_DATA_FILE)));
+      File dataFile = FileUtils.getFile(SOURCE_DATA_FILE);
+      reader = new MappedCsvReader(dataFile);
 
-      long previousRunSavedLineNumber = -1;
+      // lines already answered by a previous run are in the ledger
+      ledger = new OutcomeLedger();
 
-      if (FileUtils.existsFile(EXECUTION_CURSOR_FILE)) {
-        previousRunSavedLineNumber = FileUtils.readLongFromFile(EXECUTION_CURSOR_FILE);
-      } else {
+      if (!ledger.isResumed()) {
         FileUtils.deleteFile(ERROR_LOG_FILE);
         FileUtils.deleteFile(SUCCESS_LOG_FILE);
         FileUtils.deleteFile(FIX_UP_FILE);
+      } else {
+        reportPreviousFailures(ledger);
       }
 
       String[] line = reader.readNext();
 
       //Select the LineProcessor plugin type based on the first String in the input CSV file.
-      LineProcessor.ProcessorTypes processorType =
-          LineProcessor.ProcessorTypes.valueOf(line[0]);
+      PluginProvider plugin = Plugins.get(line[0]);
       String version = line[1];
 
       // Copy the first line to the FixUp file, ready for any broken lines.
@@ -68,17 +93,17 @@ public class MultiBulkAdWordsLauncher implements ConstantsIF {
       firstLine.add(line[0] + "," + line[1]);
       FileUtils.write(firstLine, FIX_UP_FILE, true);
 
-      // Set the plugin type, and pass in this file version
-      lineProcessor = new LineProcessor(processorType, version);
-      lineProcessor.listOfErrors = new ArrayList<String>();
-      lineProcessor.listOfSuccesses = new ArrayList<String>();
-      lineProcessor.headerLine = new ArrayList<String>();
-      lineProcessor.fixupLines = new ArrayList<String>();
-
       long currentLineNumber = 2;  // Skip title and header lines for processing
 
-      // read the 1st line to setup the parser (field mapping based on header row)
-      lineProcessor.getLinePlugin().setup(line = reader.readNext(), lineProcessor);
+      // read the 1st line to setup the parsers (field mapping based on header row), one per worker
+      line = reader.readNext();
+
+      // rows naming manager accounts are walked down to their client accounts, which is what
+      // the Plugin sees, and what any failed ones go to the FixUp file as
+      boolean walk = line.length > 0 && MANAGER_ACCOUNT_COLUMN.equals(line[0]);
+      if (walk) {
+        line[0] = "client_account_id";
+      }
 
       // Gather the header column titles, and copy them into the Fixup file.
       String headers = "";
@@ -87,68 +112,256 @@ public class MultiBulkAdWordsLauncher implements ConstantsIF {
         headers += ((first) ? "" : ",") + line[i];
         first = false;
       }
+      ArrayList<String> headerLine = new ArrayList<String>();
+      headerLine.add(headers);
+      FileUtils.write(headerLine, FIX_UP_FILE, true);
+
+      // results are written out as they come in, after the header
+      results = new ResultWriter();
+      results.start();
+
+      if (PREFLIGHT_VALIDATION && !walk) {
+        // find the bad lines first, so the real run only sends clean ones in full blocks
+        source = preflight(reader, dataFile, plugin, version, line, ledger, results);
+      }
+
+      Pipeline pipeline = new Pipeline(ShardedBlockExecutor.workerCount(plugin, WORKER_THREADS));
+      executor = new ShardedBlockExecutor(plugin, version, line, ledger, results, pipeline);
+      lineProcessor = executor.getLineProcessors().get(0);
       lineProcessor.headerLine.add(headers);
-      FileUtils.write(lineProcessor.headerLine, FIX_UP_FILE, true);
-      String lastLine[] = null;
-      line = reader.readNext();
+      executor.start();
 
-      do {
-        int opIterator = 0;
-        int lineIterator = 0;
-        while (line != null 
-            && (opIterator += lineProcessor.getLinePlugin().opsPerLine) < MAX_OPERATIONS
-            && lineProcessor.sameTarget(lastLine, line)) {
-          currentLineNumber++;
-          lineProcessor.lines[lineIterator++] = line;
-          lastLine = line;
-
-          do {
-            lineProcessor.retryLogic(currentLineNumber);
-            // don't process lines if they have already been processed in previous run
-            if (currentLineNumber > previousRunSavedLineNumber) {
-              // actually process line numbers
-              // voluntary wait logic...
-              lineProcessor.voluntaryWaitLogic();
-
-              if (!lineProcessor.getLinePlugin().setOperations(line, currentLineNumber)) {
-                lineProcessor.handleFailure(0, "Failed reading CSV line " + currentLineNumber);
-              } else {
-                // We've used this line now, so get the next one
-                line = reader.readNext();
-                // update the execution cursor (marking processing of currentLineNumber/row)
-                FileUtils.writeLongToFile(EXECUTION_CURSOR_FILE, currentLineNumber);
-                // dump output to console
-                System.out.println("Finished processing line # " + currentLineNumber);
-              }
-            }
-          } while (lineProcessor.retry == true && !line.equals(""));
-        }
-        // We now have an Operations array in the Plugin waiting to be used, so call
-        // mutate() on it to push them out to AdWords.
-        if (lineProcessor.getLinePlugin().mutate()) {
-          System.out.println("Success from Mutate block before line " + currentLineNumber);
-        } else {
-          System.out.println("Errors from Mutate block before line " + currentLineNumber);
-        }
-        lineProcessor.getLinePlugin().clearOperations();
-        lineProcessor.clearLines();
-        lastLine = line;
-      } while (line != null);
+      // the rows stay as views onto the mapped file until a worker builds them
+      if (source == null) {
+        source = openRows(reader, currentLineNumber, dataFile, lineProcessor, walk);
+      }
+      submitRows(source, executor, pipeline, ledger, lineProcessor);
+      finished = true;
     } catch (IOException e) {
       e.printStackTrace();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
     } finally {
       // Clean up when done...
-      FileUtils.write(lineProcessor.listOfSuccesses, SUCCESS_LOG_FILE, true);
-      FileUtils.write(lineProcessor.listOfErrors, ERROR_LOG_FILE, true);
-      FileUtils.write(lineProcessor.fixupLines, FIX_UP_FILE, true);
-      FileUtils.deleteFile(EXECUTION_CURSOR_FILE);
-      System.out.println("success count: " + lineProcessor.listOfSuccesses.size());
-      System.out.println("failure count: " + lineProcessor.listOfErrors.size());
+      if (executor != null) {
+        try {
+          executor.shutdown();
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+        // every worker writes to the same streams
+        System.out.println("success count: " + lineProcessor.listOfSuccesses.size());
+        System.out.println("failure count: " + lineProcessor.listOfErrors.size());
+        ServicesProvider servicesProvider = lineProcessor.awapi.servicesProvider;
+        if (servicesProvider instanceof MeteredServicesProvider) {
+          servicesProvider = ((MeteredServicesProvider) servicesProvider).getDelegate();
+        }
+        if (servicesProvider instanceof FakeAdWordsServices) {
+          System.out.println(((FakeAdWordsServices) servicesProvider).report());
+        }
+        System.out.println(lineProcessor.batchSizer.report());
+      }
+      if (results != null) {
+        try {
+          results.close();
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+      }
+      metrics.close();
+      // keep the ledger unless every line was read and answered, so a restart can carry on
+      if (ledger != null) {
+        try {
+          ledger.close(finished);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
       try {
-        reader.close();
+        if (source != null) {
+          source.close();
+        }
+        if (reader != null) {
+          reader.close();
+        }
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
   }
+
+  /**
+   * Open the rows after the title and header lines, grouped by account if
+   * {@link ConstantsIF#GROUP_BY_ID_COLUMNS} is set
+   * @param reader the data file, already past the header line
+   * @param currentLineNumber the line number of the header line
+   * @param dataFile the data file, next to which any sort runs are spilled
+   * @param lineProcessor the LineProcessor whose Plugin says how many columns identify a target
+   * @param walk true if the rows name manager accounts, to be turned into the accounts under them
+   * @return the rows
+   */
+  private static RowSource openRows(MappedCsvReader reader, long currentLineNumber, File dataFile,
+      LineProcessor lineProcessor, boolean walk) throws IOException {
+    RowSource source = new CsvRowSource(reader, currentLineNumber);
+    if (walk) {
+      // each account is only found once, so there is nothing to group, and grouping would wait
+      // for them all before the first could be worked on
+      return new ManagedAccountSource(source, lineProcessor);
+    }
+    if (GROUP_BY_ID_COLUMNS) {
+      // bring each account's rows together, so unsorted files still make full blocks
+      source = new ExternalGrouper(source, lineProcessor.getLinePlugin().idColumns,
+          dataFile.getParentFile());
+    }
+    return source;
+  }
+
+  /**
+   * Read the rows into blocks, one account and at most a mutate's worth of Operations each, and
+   * hand them to the executor.  Lines that already have an outcome in the ledger are skipped.
+   * @param source the rows of the data file
+   * @param executor the workers to hand the blocks to
+   * @param pipeline where the read stage reports to
+   * @param ledger the outcomes so far
+   * @param lineProcessor the LineProcessor whose Plugin sets the block sizes
+   */
+  private static void submitRows(RowSource source, ShardedBlockExecutor executor,
+      Pipeline pipeline, OutcomeLedger ledger, LineProcessor lineProcessor)
+      throws IOException, InterruptedException {
+    int idColumns = lineProcessor.getLinePlugin().idColumns;
+    int opsPerLine = lineProcessor.getLinePlugin().opsPerLine;
+    int maxLinesPerBlock = Math.max(1, (MAX_OPERATIONS - 1) / opsPerLine);
+    PluginCapabilities capabilities = lineProcessor.getLinePlugin().capabilities;
+    AdaptiveBatchSizer batchSizer = lineProcessor.batchSizer;
+    int linesPerBlock = maxLinesPerBlock;
+    Metrics.Counter rowsRead = Metrics.counter("rows_read_total", "stage", pipeline.name + "read");
+    CsvRow row;
+    CsvRow lastLine = null;
+    LineBlock block = null;
+
+    // every account found under a manager shares its line, which has an outcome as soon as the
+    // first of them is recorded, so none are skipped; a resumed run goes through them all again
+    boolean skipAnswered = !(source instanceof ManagedAccountSource);
+
+    long readStart = System.nanoTime();
+    while ((row = source.nextRow()) != null) {
+      long currentLineNumber = source.getLineNumber();
+      rowsRead.inc();
+      // don't send lines again if they got a success or failure in a previous run
+      if (skipAnswered && ledger.hasOutcome(currentLineNumber)) {
+        continue;
+      }
+      // Start a new block when the target changes or this one is full, and hand the
+      // finished one to the worker that owns its account.
+      if (block != null
+          && (block.size() == linesPerBlock || !lineProcessor.sameTarget(lastLine, row))) {
+        pipeline.read.add(block.size(), System.nanoTime() - readStart);
+        executor.submit(block);
+        readStart = System.nanoTime();
+        block = null;
+      }
+      if (block == null) {
+        // each new block is as big as the Services have lately been coping with
+        int operations = Math.min(capabilities.preferredOperations,
+            batchSizer.operations(capabilities.services));
+        linesPerBlock = Math.max(1, Math.min(maxLinesPerBlock, operations / opsPerLine));
+        block = new LineBlock(LineBlock.keyOf(row, idColumns), linesPerBlock);
+      }
+      block.add(row, currentLineNumber);
+      lastLine = row;
+    }
+    if (block != null) {
+      pipeline.read.add(block.size(), System.nanoTime() - readStart);
+      executor.submit(block);
+    }
+  }
+
+  /**
+   * Say which lines failed in the run being resumed, and why, since they are not sent again
+   * @param ledger the outcomes recovered from that run
+   */
+  private static void reportPreviousFailures(OutcomeLedger ledger) {
+    Map<Long, String> failures = ledger.getFailures();
+    if (failures.isEmpty()) {
+      return;
+    }
+    System.out.println(failures.size() + " lines failed in the previous run and are not sent "
+        + "again; they are in " + FIX_UP_FILE + ":");
+    int shown = 0;
+    for (Map.Entry<Long, String> failure : failures.entrySet()) {
+      if (shown++ == 10) {
+        System.out.println("...");
+        break;
+      }
+      System.out.println(String.format("Line: '%d': '%s'.", failure.getKey(), failure.getValue()));
+    }
+  }
+
+  /**
+   * Check every line before anything is changed: each is validated and built on every core, and
+   * with {@link ConstantsIF#PREFLIGHT_VALIDATE_ONLY} sent to AdWords with the validateOnly header
+   * too.  Lines that fail go to the error log, the FixUp file and the ledger, so the real run
+   * skips them.
+   *
+   * With {@link ConstantsIF#GROUP_BY_ID_COLUMNS} the rows are grouped here, from the run's own
+   * reader, and the grouped rows are handed back for the real run to read again rather than
+   * sorting the file twice.
+   * @param reader the data file, already past the header line
+   * @param dataFile the CSV file
+   * @param plugin makes the Plugin to use
+   * @param version the Version String given as the second word of the file
+   * @param header the header line of the CSV file
+   * @param ledger where the failures are recorded
+   * @param results where the error and FixUp lines are written
+   * @return the grouped rows, from the first again, or null if they weren't grouped
+   */
+  private static RowSource preflight(MappedCsvReader reader, File dataFile,
+      PluginProvider plugin, String version, String[] header, OutcomeLedger ledger,
+      ResultWriter results) throws IOException, InterruptedException {
+    // without the API calls this is all CPU, so use every core
+    int workers = PREFLIGHT_VALIDATE_ONLY
+        ? WORKER_THREADS : Runtime.getRuntime().availableProcessors();
+    Pipeline pipeline = new Pipeline("preflight-",
+        ShardedBlockExecutor.workerCount(plugin, workers));
+    ShardedBlockExecutor executor = new ShardedBlockExecutor(plugin, version, header,
+        ledger, results, pipeline, workers);
+    executor.preflight(PREFLIGHT_VALIDATE_ONLY);
+    LineProcessor lineProcessor = executor.getLineProcessors().get(0);
+    long errorsBefore = lineProcessor.listOfErrors.size();
+
+    MappedCsvReader ownReader = null;
+    RowSource source = null;
+    boolean checked = false;
+    try {
+      if (GROUP_BY_ID_COLUMNS) {
+        source = new ExternalGrouper(new CsvRowSource(reader, 2),
+            lineProcessor.getLinePlugin().idColumns, dataFile.getParentFile(), true);
+      } else {
+        ownReader = new MappedCsvReader(dataFile);
+        // skip the title and header lines
+        ownReader.readNext();
+        ownReader.readNext();
+        source = new CsvRowSource(ownReader, 2);
+      }
+      executor.start();
+      submitRows(source, executor, pipeline, ledger, lineProcessor);
+      checked = true;
+    } finally {
+      executor.shutdown();
+      if (source != null && (ownReader != null || !checked)) {
+        source.close();
+      }
+      if (ownReader != null) {
+        ownReader.close();
+      }
+    }
+    ledger.commit();
+    System.out.println("Pre-flight finished: "
+        + (lineProcessor.listOfErrors.size() - errorsBefore) + " errors logged");
+    if (ownReader != null) {
+      return null;
+    }
+    ((ExternalGrouper) source).rewind();
+    return source;
+  }
 }
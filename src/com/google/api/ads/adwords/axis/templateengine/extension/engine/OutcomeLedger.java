@@ -0,0 +1,229 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.engine;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.FileUtils;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.MappedJournal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What has happened to every line of the CSV file, kept in the
+ * {@link ConstantsIF#OUTCOME_LEDGER_FILE} journal so a run can be restarted exactly where it
+ * stopped.  A line is SUCCEEDED or FAILED once {@link LineProcessor#handleSuccess} or
+ * {@link LineProcessor#handleFailure} has seen it.  Successes are gathered up as ranges of lines
+ * and written as one record each time they are committed, which is once a block; each failure is a
+ * record of its own, holding the reason it failed, so a restart can say why.  On restart, only
+ * lines without a SUCCEEDED or FAILED outcome are sent again, so a crash in the middle of a block
+ * neither loses nor repeats the lines that had already been answered.
+ *
+ * Lines are not recorded as PENDING or SENT: a line without an outcome is sent again whichever of
+ * those it had got to, so writing them would only double the records for nothing on restart.
+ *
+ * The lines handed to the workers are counted too, so that at the end of a run the ledger is only
+ * removed if every one of them got an outcome.
+ */
+public class OutcomeLedger implements ConstantsIF {
+
+  /** The outcomes kept, whose ordinal is the code that starts each record */
+  public enum State {
+    SUCCEEDED, FAILED
+  };
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final MappedJournal journal;
+
+  /** lines with a SUCCEEDED or FAILED outcome, from a previous run or this one */
+  private final LineRanges answered = new LineRanges();
+
+  /** lines handed to the workers in this run */
+  private final LineRanges submitted = new LineRanges();
+
+  /** why each line failed in a previous run or this one */
+  private final Map<Long, String> failures = new TreeMap<Long, String>();
+
+  /** successes not yet written to the journal */
+  private final LineRanges uncommittedSuccesses = new LineRanges();
+
+  /** failures not yet written to the journal, with their reasons */
+  private final Map<Long, String> uncommittedFailures = new LinkedHashMap<Long, String>();
+
+  private final boolean resumed;
+
+  /**
+   * Open the ledger, recovering the outcomes a previous run recorded.
+   */
+  public OutcomeLedger() throws IOException {
+    journal = new MappedJournal(FileUtils.getFile(OUTCOME_LEDGER_FILE), JOURNAL_SYNC_POLICY);
+    for (byte[] record : journal.getRecoveredRecords()) {
+      ByteBuffer buffer = ByteBuffer.wrap(record);
+      byte code = buffer.get();
+      if (code == State.SUCCEEDED.ordinal()) {
+        int rangeCount = buffer.getInt();
+        for (int i = 0; i < rangeCount; i++) {
+          long first = buffer.getLong();
+          long last = buffer.getLong();
+          answered.add(first, last);
+        }
+      } else if (code == State.FAILED.ordinal()) {
+        long lineNumber = buffer.getLong();
+        byte[] reason = new byte[buffer.remaining()];
+        buffer.get(reason);
+        answered.add(lineNumber, lineNumber);
+        failures.put(lineNumber, new String(reason, UTF_8));
+      } else {
+        throw new IOException(OUTCOME_LEDGER_FILE + " has a record of unknown state " + code);
+      }
+    }
+    resumed = !journal.getRecoveredRecords().isEmpty();
+  }
+
+  /** @return true if a previous run had already recorded some lines */
+  public boolean isResumed() {
+    return resumed;
+  }
+
+  /** @return true if this line already has a definitive outcome, so shouldn't be sent again */
+  public boolean hasOutcome(long lineNumber) {
+    return answered.contains(lineNumber);
+  }
+
+  /** @return the lines that have failed, in a previous run or this one, with why */
+  public Map<Long, String> getFailures() {
+    synchronized (failures) {
+      return new TreeMap<Long, String>(failures);
+    }
+  }
+
+  /** The block's lines have been handed to a worker, so should each get an outcome */
+  public void submitted(LineBlock block) {
+    submitted.addAll(block.lineNumbers, block.size());
+  }
+
+  /**
+   * The line's Operation(s) went through
+   * @param lineNumber the line of the CSV file
+   */
+  public void succeeded(long lineNumber) {
+    synchronized (uncommittedSuccesses) {
+      uncommittedSuccesses.add(lineNumber, lineNumber);
+    }
+    answered.add(lineNumber, lineNumber);
+  }
+
+  /**
+   * The line failed, and has gone to the FixUp file
+   * @param lineNumber the line of the CSV file
+   * @param reason why it failed, kept so a restart can report it
+   */
+  public void failed(long lineNumber, String reason) {
+    if (reason == null) {
+      reason = "";
+    }
+    synchronized (uncommittedFailures) {
+      uncommittedFailures.put(lineNumber, reason);
+    }
+    synchronized (failures) {
+      failures.put(lineNumber, reason);
+    }
+    answered.add(lineNumber, lineNumber);
+  }
+
+  /**
+   * Write the outcomes recorded since the last commit, and make them durable according to the
+   * {@link ConstantsIF#JOURNAL_SYNC_POLICY}.  Called once each block has been recorded, so all of
+   * a block's outcomes share one commit.
+   */
+  public void commit() {
+    Map<Long, Long> ranges = null;
+    synchronized (uncommittedSuccesses) {
+      if (!uncommittedSuccesses.isEmpty()) {
+        ranges = uncommittedSuccesses.getRanges();
+        uncommittedSuccesses.clear();
+      }
+    }
+    if (ranges != null) {
+      appendSucceeded(ranges);
+    }
+    Map<Long, String> failed;
+    synchronized (uncommittedFailures) {
+      failed = new LinkedHashMap<Long, String>(uncommittedFailures);
+      uncommittedFailures.clear();
+    }
+    for (Map.Entry<Long, String> failure : failed.entrySet()) {
+      appendFailed(failure.getKey(), failure.getValue());
+    }
+    journal.commit();
+  }
+
+  /** @return how many of the lines handed to the workers in this run have no outcome yet */
+  public long unresolved() {
+    return submitted.countNotIn(answered);
+  }
+
+  /**
+   * Close the ledger.  It is removed only if the run got to the end of the file and every line
+   * handed to the workers got an outcome; otherwise it is kept, so a restart sends the rest.
+   * @param finished true if every line of the file has been read
+   */
+  public void close(boolean finished) throws IOException {
+    commit();
+    journal.close();
+    long unresolved = unresolved();
+    if (finished && unresolved == 0) {
+      FileUtils.deleteFile(OUTCOME_LEDGER_FILE);
+    } else if (unresolved > 0) {
+      System.out.println(unresolved + " lines have no outcome yet; " + OUTCOME_LEDGER_FILE
+          + " is kept so a restart sends them again.");
+    }
+  }
+
+  /** record: SUCCEEDED, range count, then (first, last) for each range */
+  private void appendSucceeded(Map<Long, Long> ranges) {
+    ByteBuffer record = ByteBuffer.allocate(1 + 4 + 16 * ranges.size());
+    record.put((byte) State.SUCCEEDED.ordinal());
+    record.putInt(ranges.size());
+    for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+      record.putLong(range.getKey());
+      record.putLong(range.getValue());
+    }
+    append(record);
+  }
+
+  /** record: FAILED, the line, then its reason as UTF-8 */
+  private void appendFailed(long lineNumber, String reason) {
+    byte[] text = reason.getBytes(UTF_8);
+    ByteBuffer record = ByteBuffer.allocate(1 + 8 + text.length);
+    record.put((byte) State.FAILED.ordinal());
+    record.putLong(lineNumber);
+    record.put(text);
+    append(record);
+  }
+
+  private void append(ByteBuffer record) {
+    try {
+      journal.append(record.array());
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.engine;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.Metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The stages a run goes through: read (CSV parsing on the main thread), build (setOperations on
+ * each worker), mutate (the shared mutate pool) and record (a single thread writing results and
+ * committing them to the ledger).  Each hand-off is a bounded queue, so a slow stage holds the
+ * ones before it back instead of letting blocks pile up in memory, and each stage reports its own
+ * throughput.
+ */
+public class Pipeline implements ConstantsIF {
+
+  public final StageStats read;
+  public final StageStats build;
+  public final StageStats mutate;
+  public final StageStats record;
+
+  /** put in front of the stage and queue names, to tell pipelines apart in the metrics */
+  public final String name;
+
+  /** put on the record queue to tell the record stage there is nothing more to do */
+  private static final Runnable END_OF_INPUT = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+
+  private final BlockingQueue<Runnable> recordQueue =
+      new ArrayBlockingQueue<Runnable>(RECORD_QUEUE_CAPACITY);
+
+  /** the hand-off queues between stages, reported by depth */
+  private final Map<String, BlockingQueue<?>> queues =
+      new LinkedHashMap<String, BlockingQueue<?>>();
+
+  private Thread recordThread = null;
+  private Thread reportThread = null;
+
+  /**
+   * @param workers how many build workers there are
+   */
+  public Pipeline(int workers) {
+    this("", workers);
+  }
+
+  /**
+   * @param name put in front of the stage and queue names, eg: "preflight-"
+   * @param workers how many build workers there are
+   */
+  public Pipeline(String name, int workers) {
+    this.name = name;
+    read = new StageStats(name + "read", 1);
+    build = new StageStats(name + "build", workers);
+    mutate = new StageStats(name + "mutate", workers * MAX_IN_FLIGHT_BLOCKS);
+    record = new StageStats(name + "record", 1);
+    addQueue(name + "record", recordQueue);
+  }
+
+  /**
+   * Include a queue in the progress report and the metrics
+   * @param name what to report it as
+   * @param queue the queue
+   */
+  public synchronized void addQueue(String name, final BlockingQueue<?> queue) {
+    queues.put(name, queue);
+    Metrics.gauge("pipeline_queue_depth", new Metrics.Gauge() {
+      @Override
+      public double value() {
+        return queue.size();
+      }
+    }, "queue", name);
+  }
+
+  /** Start the record stage, and the thread that prints progress every
+   * {@link ConstantsIF#STAGE_REPORT_INTERVAL_MS} */
+  public void start() {
+    recordThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Runnable task;
+          while ((task = recordQueue.take()) != END_OF_INPUT) {
+            try {
+              task.run();
+            } catch (RuntimeException e) {
+              e.printStackTrace();
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "record-stage");
+    recordThread.start();
+
+    reportThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            Thread.sleep(STAGE_REPORT_INTERVAL_MS);
+            System.out.println(report());
+          }
+        } catch (InterruptedException e) {
+          // we're done
+        }
+      }
+    }, "stage-report");
+    reportThread.setDaemon(true);
+    reportThread.start();
+  }
+
+  /**
+   * Hand the recording of a finished block to the record stage, waiting if it is behind.
+   * @param task writes the results of one block
+   */
+  public void record(Runnable task) throws InterruptedException {
+    recordQueue.put(task);
+  }
+
+  /** Let the record stage finish what it has been given, then print the final report. */
+  public void shutdown() throws InterruptedException {
+    if (recordThread != null) {
+      recordQueue.put(END_OF_INPUT);
+      recordThread.join();
+    }
+    if (reportThread != null) {
+      reportThread.interrupt();
+    }
+    System.out.println(report());
+  }
+
+  /** @return the throughput of each stage, and how full each queue between them is */
+  public synchronized String report() {
+    StringBuilder sb = new StringBuilder("Pipeline progress:\n");
+    sb.append("  ").append(read.report()).append('\n');
+    sb.append("  ").append(build.report()).append('\n');
+    sb.append("  ").append(mutate.report()).append('\n');
+    sb.append("  ").append(record.report()).append('\n');
+    sb.append("  queue depths:");
+    for (Map.Entry<String, BlockingQueue<?>> queue : queues.entrySet()) {
+      sb.append(' ').append(queue.getKey()).append('=').append(queue.getValue().size());
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,34 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.engine;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.CsvRow;
+
+import java.io.IOException;
+
+/**
+ * Where the launcher gets the data rows from, along with the line of the CSV file each came from,
+ * so the rows can arrive in a different order to the file (see {@link ExternalGrouper}).
+ */
+public interface RowSource {
+
+  /** @return the next row, or null when there are no more */
+  CsvRow nextRow() throws IOException;
+
+  /** @return the line number in the CSV file of the row last returned by {@link #nextRow()} */
+  long getLineNumber();
+
+  void close() throws IOException;
+}
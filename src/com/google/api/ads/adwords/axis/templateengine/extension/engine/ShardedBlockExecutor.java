@@ -0,0 +1,166 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.engine;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.AWAPI;
+import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.AdaptiveBatchSizer;
+import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.RateLimiter;
+import com.google.api.ads.adwords.axis.templateengine.extension.plugins.PluginCapabilities;
+import com.google.api.ads.adwords.axis.templateengine.extension.plugins.PluginProvider;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ResultWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Spreads blocks over {@link ConstantsIF#WORKER_THREADS} workers by their account key.  Blocks for
+ * different accounts are independent, if the Plugin's {@link PluginCapabilities} say so, so they
+ * can be mutated at the same time, while blocks for the same account always land on the same
+ * worker and stay in order.  The mutates themselves run
+ * on a shared pool sized for every worker to have {@link ConstantsIF#MAX_IN_FLIGHT_BLOCKS} blocks
+ * on the wire at once.
+ */
+public class ShardedBlockExecutor implements ConstantsIF {
+
+  private final List<BlockWorker> workers = new ArrayList<BlockWorker>();
+  private final List<Thread> threads = new ArrayList<Thread>();
+  private final Pipeline pipeline;
+  private final ExecutorService mutateExecutor;
+
+  /**
+   * Create the workers, each with its own LineProcessor and Plugin set up from the header line,
+   * and one AWAPI, RateLimiter and AdaptiveBatchSizer for them all.
+   *
+   * @param plugin makes the Plugin to use to read the CSV file lines
+   * @param version the Version String given as the second word of the file
+   * @param header the header line of the CSV file
+   * @param ledger where the outcome of every line is recorded
+   * @param results where the success, error and FixUp lines are written
+   * @param pipeline the stages and stats the workers report to
+   */
+  public ShardedBlockExecutor(PluginProvider plugin, String version,
+      String[] header, OutcomeLedger ledger, ResultWriter results, Pipeline pipeline)
+      throws IOException {
+    this(plugin, version, header, ledger, results, pipeline, WORKER_THREADS);
+  }
+
+  /**
+   * @param plugin makes the Plugin to use
+   * @param requested how many workers were asked for
+   * @return how many workers will actually run, eg: to size the {@link Pipeline} with
+   */
+  public static int workerCount(PluginProvider plugin, int requested) {
+    // blocks that depend on other accounts' blocks all go through one worker, one at a time
+    return plugin.getCapabilities().independentKeys ? Math.max(1, requested) : 1;
+  }
+
+  /**
+   * As above, but with a given number of workers rather than {@link ConstantsIF#WORKER_THREADS}
+   * @param workerCount how many workers to run
+   */
+  public ShardedBlockExecutor(PluginProvider plugin, String version,
+      String[] header, OutcomeLedger ledger, ResultWriter results, Pipeline pipeline,
+      int workerCount) throws IOException {
+    this.pipeline = pipeline;
+    workerCount = workerCount(plugin, workerCount);
+    this.mutateExecutor = Executors.newFixedThreadPool(workerCount * MAX_IN_FLIGHT_BLOCKS);
+    // the rate limits are for the whole developer token, so every worker shares one limiter
+    RateLimiter rateLimiter = new RateLimiter();
+    // and one batch sizer, as they all send to the same Services
+    AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer();
+    // and one AWAPI, so each account's session is only built once and a fake AdWords sees every
+    // worker's calls
+    AWAPI awapi;
+    try {
+      awapi = new AWAPI(plugin.getCapabilities().services, batchSizer);
+    } catch (Exception e) {
+      throw new IOException("Could not construct an AdWords user object given the credentials", e);
+    }
+    // and all write to the same output files
+    ResultWriter.Stream errors = results.open(ERROR_LOG_FILE);
+    ResultWriter.Stream successes = results.open(SUCCESS_LOG_FILE);
+    ResultWriter.Stream fixups = results.open(FIX_UP_FILE);
+    for (int i = 0; i < workerCount; i++) {
+      LineProcessor lineProcessor =
+          new LineProcessor(plugin, version, awapi, rateLimiter, batchSizer);
+      lineProcessor.ledger = ledger;
+      lineProcessor.listOfErrors = errors;
+      lineProcessor.listOfSuccesses = successes;
+      lineProcessor.headerLine = new ArrayList<String>();
+      lineProcessor.fixupLines = fixups;
+      lineProcessor.getLinePlugin().setup(header, lineProcessor);
+      BlockWorker worker = new BlockWorker(lineProcessor, ledger, pipeline, mutateExecutor);
+      pipeline.addQueue(pipeline.name + "worker-" + i, worker.getQueue());
+      workers.add(worker);
+    }
+  }
+
+  /**
+   * Make this a pre-flight pass: lines are checked and built, and only their failures recorded.
+   * Call before {@link #start()}.
+   * @param validateOnly also send each block to AdWords with the validateOnly header, so it checks
+   *     the Operations without carrying them out
+   */
+  public void preflight(boolean validateOnly) {
+    for (BlockWorker worker : workers) {
+      worker.getLineProcessor().preflight = true;
+      worker.getLineProcessor().awapi.validateOnly = validateOnly;
+    }
+  }
+
+  /** Start the worker threads, and the pipeline stages after them. */
+  public void start() {
+    pipeline.start();
+    for (int i = 0; i < workers.size(); i++) {
+      Thread thread = new Thread(workers.get(i), "block-worker-" + i);
+      threads.add(thread);
+      thread.start();
+    }
+  }
+
+  /**
+   * Hand a block to the worker that owns its account key.  Blocks if that worker's queue is full.
+   * @param block the lines to process
+   */
+  public void submit(LineBlock block) throws InterruptedException {
+    workers.get((block.key.hashCode() & Integer.MAX_VALUE) % workers.size()).submit(block);
+  }
+
+  /** Let every worker finish its queue, then wait for them all to stop.  The record stage keeps
+   * running until then, as the workers wait for their last blocks to be recorded. */
+  public void shutdown() throws InterruptedException {
+    for (BlockWorker worker : workers) {
+      worker.submit(BlockWorker.END_OF_INPUT);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    mutateExecutor.shutdown();
+    pipeline.shutdown();
+  }
+
+  /** @return every worker's LineProcessor, for collecting results at the end of the run */
+  public List<LineProcessor> getLineProcessors() {
+    List<LineProcessor> lineProcessors = new ArrayList<LineProcessor>();
+    for (BlockWorker worker : workers) {
+      lineProcessors.add(worker.getLineProcessor());
+    }
+    return lineProcessors;
+  }
+}
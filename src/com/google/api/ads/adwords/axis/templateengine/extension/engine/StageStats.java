@@ -0,0 +1,76 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.engine;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.Metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how many rows a pipeline stage has handled and how long its threads spent busy, so the
+ * bottleneck stage shows up as the one with the lowest rate and the highest busy percentage.  Both
+ * are also published in {@link Metrics}.
+ */
+public class StageStats {
+
+  private final String name;
+  private final int threads;
+  private final long startNanos = System.nanoTime();
+  private final AtomicLong rows = new AtomicLong();
+  private final AtomicLong busyNanos = new AtomicLong();
+
+  /**
+   * @param name the stage name to report under
+   * @param threads how many threads work on this stage, to scale the busy percentage
+   */
+  public StageStats(String name, int threads) {
+    this.name = name;
+    this.threads = Math.max(1, threads);
+    Metrics.gauge("pipeline_rows_total", new Metrics.Gauge() {
+      @Override
+      public double value() {
+        return rows.get();
+      }
+    }, "stage", name);
+    Metrics.gauge("pipeline_busy_seconds_total", new Metrics.Gauge() {
+      @Override
+      public double value() {
+        return busyNanos.get() / 1e9;
+      }
+    }, "stage", name);
+  }
+
+  /**
+   * Add some finished work to this stage
+   * @param rowCount how many rows were handled
+   * @param elapsedNanos how long it took
+   */
+  public void add(long rowCount, long elapsedNanos) {
+    rows.addAndGet(rowCount);
+    busyNanos.addAndGet(elapsedNanos);
+  }
+
+  public long getRows() {
+    return rows.get();
+  }
+
+  /** @return a one line summary of this stage's throughput */
+  public String report() {
+    double elapsedSeconds = Math.max(1L, System.nanoTime() - startNanos) / 1e9;
+    double busy = 100.0 * busyNanos.get() / (elapsedSeconds * 1e9 * threads);
+    return String.format("%-7s %12d rows %10.1f rows/s  busy %5.1f%%",
+        name, rows.get(), rows.get() / elapsedSeconds, busy);
+  }
+}
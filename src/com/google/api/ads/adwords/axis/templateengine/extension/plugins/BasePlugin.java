@@ -16,14 +16,23 @@ package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
 
 import com.google.api.ads.adwords.axis.templateengine.extension.engine.LineProcessor;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 /** The Abstract Class for all the Plugins in the Package. */
 public abstract class BasePlugin {
-  
-  public static LineProcessor lineProcessor = null;
+
+  /** the LineProcessor that owns this Plugin; each worker has its own pair */
+  public LineProcessor lineProcessor = null;
 
   /** current line number (from data CSV file) that's used for logging */
   public long currentLineNumber = 0;
 
+  /** The client account the Operations being built are for */
+  public String clientAccountId = null;
+
   /** The line number of the last line in the last block operated on */
   public long lastBlockLineNumber = 2;
 
@@ -35,6 +44,9 @@ public abstract class BasePlugin {
 
   public int opsPerLine = 1;
 
+  /** what the engine may do with this Plugin's blocks, as given by its {@link PluginProvider} */
+  public PluginCapabilities capabilities = PluginCapabilities.NONE;
+
   /** 
    * The old way of doing the creation of operations and then mutate with them, still here for historic reasons
    * @param lineRay the current line of entries to be processed
@@ -57,10 +69,82 @@ public abstract class BasePlugin {
   public abstract void clearOperations();
 
   /**
-   * Call the mutate method on the correct Service(s) with the Operation(s) arrays as built
+   * Move the Operations built so far into a new block, of the Plugin's own OperationBlock type,
+   * along with the Services they should be sent to.
+   * @return the block holding them
+   */
+  protected abstract OperationBlock takeOperations();
+
+  /**
+   * Call the mutate method on the correct Service(s) with the Operation(s) arrays in the block.
+   * This must only use what is in the block, as the Plugin may already be building the next one.
+   * @param block the Operations to send
+   * @return what happened to each operation
+   */
+  public abstract BlockResult mutate(OperationBlock block);
+
+  /**
+   * Hand over the Operations built so far as a block, and clear them ready for the next block.
+   * @return the block, ready for {@link #mutate(OperationBlock)} or {@link #mutateAsync}
+   */
+  public OperationBlock detachBlock() {
+    OperationBlock block = takeOperations();
+    block.lastBlockLineNumber = lastBlockLineNumber;
+    block.lastLineNumber = currentLineNumber;
+    block.clientAccountId = clientAccountId;
+    block.rows = lineProcessor.takeLines();
+    block.lineNumbers = block.rows == null ? new long[0] : block.rows.lineNumbers();
+    clearOperations();
+    return block;
+  }
+
+  /**
+   * Start the mutate for a block on the given Executor, without waiting for it.
+   * @param block the Operations to send
+   * @param executor where to run the mutate
+   * @param listener told once the block has a final result; may be null
+   * @return the mutate in flight
+   */
+  public BlockFuture mutateAsync(OperationBlock block, Executor executor,
+      BlockFuture.Listener listener) {
+    BlockFuture future = new BlockFuture(this, block, listener);
+    executor.execute(future);
+    return future;
+  }
+
+  /**
+   * Call the mutate method on the correct Service(s) with the Operation(s) arrays as built, and
+   * record the results straight away.
    * @return did we succeed
    */
-  public abstract boolean mutate();
+  public boolean mutate() {
+    OperationBlock block = detachBlock();
+    BlockResult result = mutate(block);
+    lineProcessor.record(block, result);
+    block.release();
+    return result.isSuccess();
+  }
+
+  /**
+   * The Services this Plugin calls, so they can be made as soon as each account's session is.
+   * Any others are made the first time they are asked for.
+   * @return the Service interfaces, eg: CampaignServiceInterface.class
+   */
+  public Class<?>[] getServices() {
+    return capabilities.services;
+  }
+
+  /**
+   * The values a mutate returned, which are missing when the session is validateOnly
+   * @param values the getValue() of a ReturnValue
+   * @return the values, or an empty list if there are none
+   */
+  protected static <T> List<T> valuesOf(T[] values) {
+    if (values == null) {
+      return Collections.emptyList();
+    }
+    return Arrays.asList(values);
+  }
 
   /**
    * The initial setup for this Plugin
@@ -0,0 +1,182 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.Metrics;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A mutate of one {@link OperationBlock} that is in flight.  It re-sends the block while the
+ * Plugin asks for a retry, or after a timeout if the Plugin's {@link PluginCapabilities} say that
+ * is safe (up to {@link ConstantsIF#MAX_BLOCK_RETRIES} times), sends again whatever AdWords may
+ * still take from a block it refused as a whole, and tells its {@link Listener} once it has a
+ * final result, so the caller never has to block on it.
+ */
+public class BlockFuture extends FutureTask<BlockResult> implements ConstantsIF {
+
+  /** Told about each block once its mutate has finished, on the thread that ran it */
+  public interface Listener {
+    void blockCompleted(OperationBlock block, BlockResult result);
+  }
+
+  private final OperationBlock block;
+  private final Listener listener;
+
+  public BlockFuture(final BasePlugin plugin, final OperationBlock block, Listener listener) {
+    super(new Callable<BlockResult>() {
+      @Override
+      public BlockResult call() {
+        long start = System.nanoTime();
+        BlockResult result = settle(plugin, block, send(plugin, block), true);
+        result.setElapsedNanos(System.nanoTime() - start);
+        return result;
+      }
+    });
+    this.block = block;
+    this.listener = listener;
+  }
+
+  /**
+   * Mutate a block, sending it again while the Plugin asks for a retry, or while it fails without
+   * an answer if sending it twice does no harm; any lines still without an answer after that fail
+   */
+  private static BlockResult send(BasePlugin plugin, OperationBlock block) {
+    int tries = 1;
+    BlockResult result = plugin.mutate(block);
+    while ((result.isRetry() || result.isInDoubt() && plugin.capabilities.idempotent)
+        && tries < MAX_BLOCK_RETRIES) {
+      System.out.printf("Retrying block ending at line #%d ... %n", block.lastLineNumber);
+      result = plugin.mutate(block);
+      tries++;
+    }
+    // out of tries, so each line still waiting on an answer fails and goes to the FixUp file
+    if (result.isRetry()) {
+      result.failUnanswered(block.outcomes(plugin.opsPerLine), String.format(
+          "Not sent after %d tries, as AdWords kept asking for it to be sent later.", tries));
+    } else if (result.isInDoubt()) {
+      result.failUnanswered(block.outcomes(plugin.opsPerLine), String.format(
+          "No answer came back after %d tries, so it may or may not have gone through.", tries));
+    }
+    return result;
+  }
+
+  /**
+   * Send again whatever AdWords may still take from a block it refused as a whole
+   * @param plugin the Plugin that sent it
+   * @param block the block
+   * @param result its result
+   * @param resend false if the block is already the rest of a refused one, so isn't sent again
+   * @return the outcomes of the block, with those of anything sent again
+   */
+  private static BlockResult settle(BasePlugin plugin, OperationBlock block, BlockResult result,
+      boolean resend) {
+    if (result.getRefused() != null && resend && RESEND_REFUSED_BLOCKS) {
+      return resend(plugin, block, result);
+    }
+    if (result.isRejected() && BISECT_REJECTED_BLOCKS) {
+      return bisect(plugin, block, result);
+    }
+    return result;
+  }
+
+  /**
+   * Send the rest of a refused block again, once, without the operations AdWords named
+   * @param plugin the Plugin that sent it
+   * @param block the refused block
+   * @param refused its result, kept as it is if the block can't be split up
+   * @return the named operations' failures, and the outcomes of the rest
+   */
+  private static BlockResult resend(BasePlugin plugin, OperationBlock block,
+      BlockResult refused) {
+    OperationBlock rest = block.except(refused.getRefused());
+    if (rest == null) {
+      return refused;
+    }
+    Metrics.counter("block_resends_total").inc();
+    try {
+      BlockResult part = settle(plugin, rest, send(plugin, rest), false);
+      refused.dropNotSent();
+      refused.addAll(part);
+      refused.setRefused(null);
+      return refused;
+    } finally {
+      rest.release();
+    }
+  }
+
+  /**
+   * Send each half of a refused block again, and each half of any half that is refused too, down
+   * to {@link ConstantsIF#BISECT_MIN_OPERATIONS}.  The k bad operations in n are found in about
+   * 2k.log(n) mutates, and everything else goes through.
+   * @param plugin the Plugin that sent it
+   * @param block the refused block
+   * @param rejected its result, kept if it can't be split any further
+   * @return the outcomes of the halves
+   */
+  private static BlockResult bisect(BasePlugin plugin, OperationBlock block,
+      BlockResult rejected) {
+    int size = block.size();
+    if (size <= Math.max(1, BISECT_MIN_OPERATIONS)) {
+      return rejected;
+    }
+    int middle = size / 2;
+    OperationBlock first = block.slice(0, middle);
+    if (first == null) {
+      return rejected;
+    }
+    Metrics.counter("block_bisections_total").inc();
+    BlockResult result = new BlockResult();
+    boolean success = true;
+    for (OperationBlock half : new OperationBlock[] {first, block.slice(middle, size)}) {
+      try {
+        BlockResult part = settle(plugin, half, send(plugin, half), true);
+        result.addAll(part);
+        success &= part.isSuccess();
+      } finally {
+        half.release();
+      }
+    }
+    result.setSuccess(success);
+    return result;
+  }
+
+  public OperationBlock getBlock() {
+    return block;
+  }
+
+  @Override
+  protected void done() {
+    if (listener == null) {
+      return;
+    }
+    BlockResult result;
+    try {
+      result = get();
+    } catch (ExecutionException e) {
+      result = BlockResult.failed(e.getCause());
+    } catch (CancellationException e) {
+      result = BlockResult.failed(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result = BlockResult.failed(e);
+    }
+    listener.blockCompleted(block, result);
+  }
+}
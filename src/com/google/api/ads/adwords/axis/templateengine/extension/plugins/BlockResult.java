@@ -0,0 +1,270 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.v201402.cm.PolicyViolationError;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What happened to each operation in an {@link OperationBlock} when it was mutated.  Plugins
+ * collect outcomes here rather than writing them to the LineProcessor straight away, so blocks can
+ * be mutated on another thread and recorded later with
+ * {@link com.google.api.ads.adwords.axis.templateengine.extension.engine.LineProcessor#record}.
+ */
+public class BlockResult {
+
+  public enum Outcome {SUCCESS, FAILURE, NOT_SENT, ERROR};
+
+  /** A single outcome: which operation it was for, and the message to log */
+  public static class Entry {
+    public final Outcome outcome;
+    public final int operation;
+    public final String message;
+
+    Entry(Outcome outcome, int operation, String message) {
+      this.outcome = outcome;
+      this.operation = operation;
+      this.message = message;
+    }
+  }
+
+  private final List<Entry> entries = new ArrayList<Entry>();
+  private boolean success = true;
+  private boolean retry = false;
+  private boolean rejected = false;
+  private BitSet refused = null;
+  private boolean inDoubt = false;
+  private long elapsedNanos = 0;
+
+  /**
+   * The operation went through
+   * @param operation the index of the operation in the block
+   * @param message the message to log/report
+   */
+  public void success(long operation, String message) {
+    entries.add(new Entry(Outcome.SUCCESS, (int) operation, message));
+  }
+
+  /**
+   * The operation failed, so its line should go to the FixUp file
+   * @param operation the index of the operation in the block
+   * @param message the message to log/report
+   */
+  public void failure(int operation, String message) {
+    entries.add(new Entry(Outcome.FAILURE, operation, message));
+  }
+
+  /**
+   * The operation wasn't applied because AdWords refused its block, though it may go through if
+   * it is sent again; unless it is, it is recorded as a failure
+   * @param operation the index of the operation in the block
+   * @param message the message to log/report
+   */
+  public void notSent(int operation, String message) {
+    entries.add(new Entry(Outcome.NOT_SENT, operation, message));
+  }
+
+  /**
+   * The operation broke a policy
+   * @param operation the index of the operation in the block
+   * @param type which type of entity violated the policy
+   * @param policyViolationError the actual error object
+   */
+  public void policyViolation(int operation, String type,
+      PolicyViolationError policyViolationError) {
+    failure(operation, String.format("%s violated %s policy \"%s\".", type,
+        policyViolationError.getIsExemptable() ? "exemptable" : "non-exemptable",
+            policyViolationError.getExternalPolicyName()));
+  }
+
+  /**
+   * Something went wrong that isn't tied to one operation; this only goes to the error log
+   * @param message the message to log/report
+   */
+  public void error(String message) {
+    entries.add(new Entry(Outcome.ERROR, -1, message));
+  }
+
+  /**
+   * Fail each of some operations that hasn't already failed, eg: once the block has been sent as
+   * many times as it may be without an answer
+   * @param operations the index of each operation, as given to {@link #failure}
+   * @param message the message to log/report
+   */
+  public void failUnanswered(int[] operations, String message) {
+    BitSet failed = new BitSet();
+    for (Entry entry : entries) {
+      if (entry.outcome != Outcome.SUCCESS && entry.operation >= 0) {
+        failed.set(entry.operation);
+      }
+    }
+    for (int operation : operations) {
+      if (!failed.get(operation)) {
+        failure(operation, message);
+        failed.set(operation);
+      }
+    }
+    success = false;
+  }
+
+  /**
+   * Add the outcomes of part of the block that was done separately, eg: on another thread
+   * @param part the result of that part
+   */
+  public void addAll(BlockResult part) {
+    entries.addAll(part.entries);
+    if (part.retry) {
+      retry = true;
+    }
+    if (part.inDoubt) {
+      inDoubt = true;
+    }
+  }
+
+  /**
+   * Add the outcomes of parts of the block that were done separately but answer for the same
+   * operations, eg: each type of entity removed for one line, so each operation still gets a
+   * single outcome.  It fails, with every part's failure messages, if any part failed it, and
+   * otherwise succeeds with all their success messages.
+   * @param parts the results of those parts
+   */
+  public void addCombined(List<BlockResult> parts) {
+    Map<Integer, StringBuilder> successes = new TreeMap<Integer, StringBuilder>();
+    Map<Integer, StringBuilder> failures = new TreeMap<Integer, StringBuilder>();
+    for (BlockResult part : parts) {
+      for (Entry entry : part.entries) {
+        if (entry.outcome == Outcome.SUCCESS || entry.outcome == Outcome.FAILURE) {
+          Map<Integer, StringBuilder> messages =
+              entry.outcome == Outcome.SUCCESS ? successes : failures;
+          StringBuilder message = messages.get(entry.operation);
+          if (message == null) {
+            messages.put(entry.operation, new StringBuilder(entry.message));
+          } else {
+            message.append(' ').append(entry.message);
+          }
+        } else {
+          entries.add(entry);
+        }
+      }
+      if (part.retry) {
+        retry = true;
+      }
+      if (part.inDoubt) {
+        inDoubt = true;
+      }
+    }
+    for (Map.Entry<Integer, StringBuilder> failure : failures.entrySet()) {
+      failure(failure.getKey(), failure.getValue().toString());
+      successes.remove(failure.getKey());
+    }
+    for (Map.Entry<Integer, StringBuilder> success : successes.entrySet()) {
+      success(success.getKey(), success.getValue().toString());
+    }
+  }
+
+  /** Drop the outcomes of the operations that weren't sent, once they have been sent again */
+  void dropNotSent() {
+    for (Iterator<Entry> i = entries.iterator(); i.hasNext();) {
+      if (i.next().outcome == Outcome.NOT_SENT) {
+        i.remove();
+      }
+    }
+  }
+
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  public boolean isSuccess() {
+    return success;
+  }
+
+  public void setSuccess(boolean success) {
+    this.success = success;
+  }
+
+  /** @return true if the whole block should be sent again, eg: after a RateExceededError */
+  public boolean isRetry() {
+    return retry;
+  }
+
+  public void setRetry(boolean retry) {
+    this.retry = retry;
+  }
+
+  /**
+   * @return true if AdWords refused the mutate as a whole without saying which operations were to
+   *     blame, so none of them were applied, and parts of the block may go through on their own
+   */
+  public boolean isRejected() {
+    return rejected;
+  }
+
+  public void setRejected(boolean rejected) {
+    this.rejected = rejected;
+  }
+
+  /**
+   * @return the operations AdWords named when it refused the mutate as a whole, or null; none of
+   *     the block was applied, and the rest may go through without them
+   */
+  public BitSet getRefused() {
+    return refused;
+  }
+
+  public void setRefused(BitSet refused) {
+    this.refused = refused;
+  }
+
+  /**
+   * @return true if a mutate failed without an answer, eg: it timed out, so it may or may not
+   *     have gone through; it is only sent again if the Plugin is
+   *     {@link PluginCapabilities#idempotent}
+   */
+  public boolean isInDoubt() {
+    return inDoubt;
+  }
+
+  public void setInDoubt(boolean inDoubt) {
+    this.inDoubt = inDoubt;
+  }
+
+  /** @return how long the mutate(s) for this block took, including any retries */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  public void setElapsedNanos(long elapsedNanos) {
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  /**
+   * Build the result for a block whose mutate threw something the Plugin didn't catch
+   * @param cause what was thrown
+   * @return a failed result
+   */
+  public static BlockResult failed(Throwable cause) {
+    BlockResult result = new BlockResult();
+    result.error("Mutate failed: " + cause);
+    result.setSuccess(false);
+    return result;
+  }
+}
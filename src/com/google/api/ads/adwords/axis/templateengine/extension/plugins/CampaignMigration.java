@@ -29,8 +29,10 @@ import com.google.api.ads.adwords.axis.v201402.cm.RateExceededError;
 import com.google.api.ads.adwords.axis.templateengine.extension.engine.LineProcessor;
 import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.rmi.RemoteException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
 
 /** Handle Campaign migration for the Package
  * @author Mark Bowyer
@@ -42,95 +44,175 @@ public class CampaignMigration extends BasePlugin implements ConstantsIF {
   /** holds the fields in a single row, from the CSV file */
   private String[] lineRay = null;
 
-  public CampaignOperation[] operations = null;
-  public int operationsIterator = 0;
+  /** finds the columns in each row, as set up from the header line */
+  private CampaignDecoder decoder = null;
 
-  private static CampaignServiceInterface campaignService = null;
+  /** the columns of the current row, converted */
+  private final CampaignRow row = new CampaignRow();
 
-  private static Pattern operationIndexPattern = 
-      Pattern.compile("^.*operations\\[(\\d+)\\].*$");
+  /** the CampaignOperations being built, shared out to workers from {@link #BATCHES} */
+  public OperationBatch<CampaignOperation> operations = null;
+
+  private static final OperationBatch.Pool<CampaignOperation> BATCHES =
+      new OperationBatch.Pool<CampaignOperation>(CampaignOperation.class, MAX_OPERATIONS);
 
   /**
-   * This enumeration pulls field values out of the given line (String[]). The field names and
-   * indices are mapped at runtime, based on the information in the header of the CSV file.
+   * Makes CampaignMigration Plugins for CAMPAIGNMIGRATION files.  Each account's Campaigns are
+   * independent of every other's, and SETting a Campaign's settings twice leaves it the same.
    */
-  enum FieldExtractor {
-    ClientAccountId("client_account_id"),
-    CampaignId("campaignid"),
-    ChannelType("channel_type"),
-    GoogleSearch("google_search"),
-    SearchNetwork("search_network"),
-    ContentNetwork("content_network"),
-    PartnerSearchNetwork("partner_search_network"),
-    DisplaySelect("display_select");
-
-    String fieldname;
-    int fieldindex = -1;
-
-    public String getFieldName() {
-      return fieldname;
+  public static class Provider implements PluginProvider {
+    private static final PluginCapabilities CAPABILITIES = new PluginCapabilities(true, true,
+        new Class<?>[] {CampaignServiceInterface.class}, MAX_OPERATIONS);
+
+    @Override
+    public String getName() {
+      return "CAMPAIGNMIGRATION";
     }
 
-    public int getFieldIndex() {
-      return fieldindex;
+    @Override
+    public PluginCapabilities getCapabilities() {
+      return CAPABILITIES;
     }
 
-    FieldExtractor(String fieldname) {
-      this.fieldname = fieldname;
+    @Override
+    public BasePlugin newPlugin() {
+      return new CampaignMigration();
     }
+  }
 
-    /** 
-     * calculate all the field indices in lineRay for all the desired fields 
-     * 
-     * @param lineRay the incoming line of entries from the CSV file
-     */
-    public static void setup(String[] lineRay) {
-      for (String fieldname : lineRay) {
-        FieldExtractor[] values = values();
-        FieldExtractor extractor = null;
-        for (int i = 0, length = values.length; i < length; i++) {
-          extractor = values[i];
-          if (extractor.fieldname.equals(fieldname)) {
-            extractor.fieldindex = i;
-            break;
-          }
-        }
-        if (extractor.fieldindex == -1) {
-          System.err.println("Header line contains spaces or invalid column name.");
-          System.exit(1);
-        }
+  /** the CampaignService of the account the Operations being built are for */
+  private CampaignServiceInterface campaignService = null;
+
+  /** The CampaignOperations for one block, and the CampaignService of the account they are for */
+  static class CampaignBlock extends OperationBlock {
+    OperationBatch<CampaignOperation> operations;
+    CampaignServiceInterface campaignService;
+
+    @Override
+    public int size() {
+      return operations.size();
+    }
+
+    @Override
+    public OperationBlock slice(int from, int to) {
+      CampaignBlock slice = sliceOf(new CampaignBlock());
+      slice.operations = operations.slice(from, to);
+      slice.campaignService = campaignService;
+      return slice;
+    }
+
+    @Override
+    public int[] outcomes(int opsPerLine) {
+      // only the lines that built have operations, and a slice only has some of those
+      int[] outcomes = new int[operations.size()];
+      for (int i = 0; i < outcomes.length; i++) {
+        outcomes[i] = operationOf(operations.lineNumberOf(i), opsPerLine);
+      }
+      return outcomes;
+    }
+
+    @Override
+    public OperationBlock except(BitSet left) {
+      CampaignBlock rest = sliceOf(new CampaignBlock());
+      rest.operations = operations.except(left);
+      rest.campaignService = campaignService;
+      return rest;
+    }
+
+    @Override
+    public void release() {
+      operations.release();
+      super.release();
+    }
+  }
+
+  /** The columns of one CAMPAIGNMIGRATION line, converted; reused for every line */
+  static class CampaignRow {
+    String clientAccountId;
+    long campaignId;
+    AdvertisingChannelType channelType;
+    boolean googleSearch;
+    boolean searchNetwork;
+    boolean contentNetwork;
+    boolean partnerSearchNetwork;
+    /** false if display_select was neither TRUE nor FALSE, so it is left as it is */
+    boolean hasDisplaySelect;
+    boolean displaySelect;
+  }
+
+  /** Finds the CAMPAIGNMIGRATION columns by the header line, and converts each line's. */
+  static class CampaignDecoder extends RowDecoder<CampaignRow> {
+    private static final int CLIENT_ACCOUNT_ID = 0;
+    private static final int CAMPAIGN_ID = 1;
+    private static final int CHANNEL_TYPE = 2;
+    private static final int GOOGLE_SEARCH = 3;
+    private static final int SEARCH_NETWORK = 4;
+    private static final int CONTENT_NETWORK = 5;
+    private static final int PARTNER_SEARCH_NETWORK = 6;
+    private static final int DISPLAY_SELECT = 7;
+
+    /** each channel_type value seen so far, null for those AdWords doesn't have */
+    private final Map<String, AdvertisingChannelType> channelTypes =
+        new HashMap<String, AdvertisingChannelType>();
+
+    CampaignDecoder(String[] header) {
+      super(header, "client_account_id", "campaignid", "channel_type", "google_search",
+          "search_network", "content_network", "partner_search_network", "display_select");
+    }
+
+    @Override
+    protected boolean decodeInto(String[] line, CampaignRow row) {
+      row.clientAccountId = field(line, CLIENT_ACCOUNT_ID);
+      longOf(line, CLIENT_ACCOUNT_ID);
+      row.campaignId = longOf(line, CAMPAIGN_ID);
+      row.channelType = channelTypeOf(field(line, CHANNEL_TYPE));
+      if (row.channelType == null) {
+        fail(CHANNEL_TYPE, field(line, CHANNEL_TYPE),
+            "Field value was expected to be an AdvertisingChannelType");
       }
+      row.googleSearch = booleanOf(line, GOOGLE_SEARCH);
+      row.searchNetwork = booleanOf(line, SEARCH_NETWORK);
+      row.contentNetwork = booleanOf(line, CONTENT_NETWORK);
+      row.partnerSearchNetwork = booleanOf(line, PARTNER_SEARCH_NETWORK);
+      String displaySelect = field(line, DISPLAY_SELECT);
+      row.displaySelect = displaySelect.equalsIgnoreCase("TRUE");
+      row.hasDisplaySelect = row.displaySelect || displaySelect.equalsIgnoreCase("FALSE");
+      return getProblem() == null;
     }
 
-    public static String getFieldValue(String[] lineRay, FieldExtractor field) {
-      return lineRay[field.fieldindex];
+    private AdvertisingChannelType channelTypeOf(String value) {
+      AdvertisingChannelType channelType = channelTypes.get(value);
+      if (channelType == null && !channelTypes.containsKey(value)) {
+        try {
+          channelType = AdvertisingChannelType.fromString(value);
+        } catch (IllegalArgumentException e) {
+          // only thrown the first time each bad value is seen
+          channelType = null;
+        }
+        channelTypes.put(value, channelType);
+      }
+      return channelType;
     }
   }
 
   /**
-   * Check the numeric fields from the CSV are in fact numeric
+   * Decode the current line, and check its fields are what they should be, eg: numeric
    * 
    * @return did they all check out OK?
    */
   public boolean validate() {
-    FieldExtractor[] numericValueCheck = {FieldExtractor.ClientAccountId, FieldExtractor.CampaignId};
-    for (FieldExtractor numericField : numericValueCheck) {
-      String value = FieldExtractor.getFieldValue(lineRay, numericField);
-      try {
-        Long.parseLong(value);
-      } catch (Exception e) {
-        lineProcessor.errorSummaryMessage =
-            String.format(
-                "Problem parsing data in row #%d. Field value was expected to be numeric",
-                currentLineNumber);
-        lineProcessor.errorCauseMessage =
-            String.format("'%s' contains value of '%s'",
-                numericField.getFieldName(), value);
-        lineProcessor.handleFailure((int) currentLineNumber, lineProcessor.errorSummaryMessage);
-        return false;
-      }
+    if (decoder.decode(lineRay, row)) {
+      return true;
     }
-    return true;
+    lineProcessor.errorSummaryMessage =
+        String.format("Problem parsing data in row #%d. %s",
+            currentLineNumber, decoder.getProblem());
+    lineProcessor.errorCauseMessage = decoder.getProblemColumn() == null
+        ? decoder.getProblem()
+        : String.format("'%s' contains value of '%s'",
+            decoder.getProblemColumn(), decoder.getProblemValue());
+    lineProcessor.handleLineFailure(currentLineNumber, lineProcessor.errorSummaryMessage);
+    return false;
   }
 
   /** detailed error reporting 
@@ -147,61 +229,56 @@ public class CampaignMigration extends BasePlugin implements ConstantsIF {
     e2.printStackTrace();
   }
 
+  /** detailed error reporting for a block being mutated, which may be on another thread
+   * @param result the result of the block
+   * @param lineNumber the last line of the block
+   * @param name identifying this block
+   * @param e2 the exception we received 
+   */
+  private void reportError(BlockResult result, long lineNumber, String name, Exception e2) {
+    result.error(String.format(
+        "For line#%d could not Migrate the Campaign named '%s' to this MCC.",
+        lineNumber, name));
+    // no answer came back, so the Campaigns may have been migrated after all
+    result.setInDoubt(e2 instanceof RemoteException);
+    e2.printStackTrace();
+  }
+
   @Override
   public boolean setOperations(String[] lineRay, long currentLineNumber) {
     this.lineRay = lineRay;
     this.currentLineNumber = currentLineNumber;
 
     if (validate()) {
-      // extract all the required fields from the row/line
-      String clientAccountId =
-          FieldExtractor.getFieldValue(lineRay, FieldExtractor.ClientAccountId);
-      String campaignId = 
-          FieldExtractor.getFieldValue(lineRay, FieldExtractor.CampaignId);
-      String advertisingChannelType =
-          FieldExtractor.getFieldValue(lineRay, FieldExtractor.ChannelType);
-      String googleSearch =
-          FieldExtractor.getFieldValue(lineRay, FieldExtractor.GoogleSearch);
-      String searchNetwork =
-          FieldExtractor.getFieldValue(lineRay, FieldExtractor.SearchNetwork);
-      String contentNetwork =
-          FieldExtractor.getFieldValue(lineRay, FieldExtractor.ContentNetwork);
-      String partnerSearchNetwork =
-          FieldExtractor.getFieldValue(lineRay, FieldExtractor.PartnerSearchNetwork);
-      String displaySelect =
-          FieldExtractor.getFieldValue(lineRay, FieldExtractor.DisplaySelect);
-
       try {
 
-        lineProcessor.awapi.addSession(clientAccountId);
+        this.clientAccountId = row.clientAccountId;
+        campaignService =
+            lineProcessor.awapi.addSession(clientAccountId).get(CampaignServiceInterface.class);
         Campaign campaign = new Campaign();
-        campaign.setId(Long.decode(campaignId));
-        campaign.setAdvertisingChannelType(AdvertisingChannelType.fromString(advertisingChannelType));
+        campaign.setId(row.campaignId);
+        campaign.setAdvertisingChannelType(row.channelType);
         // Set the campaign network options to Search and Search Network.
         NetworkSetting networkSetting = new NetworkSetting();
-        networkSetting.setTargetGoogleSearch(Boolean.valueOf(googleSearch));
-        networkSetting.setTargetSearchNetwork(Boolean.valueOf(searchNetwork));
-        networkSetting.setTargetContentNetwork(Boolean.valueOf(contentNetwork));
-        networkSetting.setTargetPartnerSearchNetwork(Boolean.valueOf(partnerSearchNetwork));
+        networkSetting.setTargetGoogleSearch(row.googleSearch);
+        networkSetting.setTargetSearchNetwork(row.searchNetwork);
+        networkSetting.setTargetContentNetwork(row.contentNetwork);
+        networkSetting.setTargetPartnerSearchNetwork(row.partnerSearchNetwork);
         campaign.setNetworkSetting(networkSetting);
-        if (displaySelect.equalsIgnoreCase("TRUE")) {
-          campaign.setDisplaySelect(true);
-        } else if (displaySelect.equalsIgnoreCase("FALSE")) {
-          campaign.setDisplaySelect(false);
+        if (row.hasDisplaySelect) {
+          campaign.setDisplaySelect(row.displaySelect);
         }
 
         // Create operations.
-        CampaignOperation operation = new CampaignOperation();
+        CampaignOperation operation = operations.next(currentLineNumber);
         operation.setOperand(campaign);
         operation.setOperator(Operator.SET);
 
-        operations[operationsIterator++] = operation;
-
         return true;
 
       } catch (Exception generalException) {
         // catch general failures...
-        reportError(campaignId, generalException);
+        reportError(String.valueOf(row.campaignId), generalException);
         return false;
       }
     } else {
@@ -212,14 +289,25 @@ public class CampaignMigration extends BasePlugin implements ConstantsIF {
   }
 
   @Override
-  public boolean mutate() {
+  protected OperationBlock takeOperations() {
+    CampaignBlock block = new CampaignBlock();
+    block.operations = operations;
+    operations = null;
+    // Get the CampaignService.
+    block.campaignService = campaignService;
+    return block;
+  }
+
+  @Override
+  public BlockResult mutate(OperationBlock operationBlock) {
+    CampaignBlock block = (CampaignBlock) operationBlock;
+    BlockResult blockResult = new BlockResult();
     boolean state = true;
     int line = 0;
-    ApiError partialFailures[] = new ApiError[MAX_OPERATIONS];
-    ApiError returnedFailures[] = null;
+    PartialFailureResolver failures =
+        new PartialFailureResolver(block, block.operations, opsPerLine);
 
-    // Get the CampaignService.
-    campaignService = lineProcessor.awapi.campaignService;
+    CampaignServiceInterface campaignService = block.campaignService;
 
     if (campaignService == null) {
       System.err.println("Error fetching CampaignService.");
@@ -229,67 +317,95 @@ public class CampaignMigration extends BasePlugin implements ConstantsIF {
     if (!ConstantsIF.DEBUG_MODE) {
       try {
         // Add campaign.
-        CampaignReturnValue result = campaignService.mutate(operations);
-        lineProcessor.voluntaryWaitLogic();
+        lineProcessor.rateLimiter.acquire(block.clientAccountId, CampaignServiceInterface.class,
+            block.operations.size());
+        CampaignReturnValue result = campaignService.mutate(block.operations.toArray());
 
         if (result != null) {
-          returnedFailures = result.getPartialFailureErrors();
-          if (returnedFailures != null) {
-            for (ApiError apiError : returnedFailures) {
-              Matcher matcher = operationIndexPattern.matcher(apiError.getFieldPath());
-              if (matcher.matches()) {
-                int operationIndex = Integer.parseInt(matcher.group(1));
-                partialFailures[operationIndex] = apiError;
-              }
-            }
-          }
-          for (Campaign campaignResult : result.getValue()) {
+          failures.addAll(result.getPartialFailureErrors());
+          for (Campaign campaignResult : valuesOf(result.getValue())) {
             String message = String.format("Campaign with id '%d' and name '%s' ", 
                 campaignResult.getId(), campaignResult.getName());
+            int operation = failures.outcomeOf(line);
+            ApiError partialFailure = failures.failureOf(line);
 
-            if (partialFailures[line] == null) {
+            if (partialFailure == null) {
               // successfully processed a row of data!
-              lineProcessor.handleSuccess(line, message + "was migrated.");
-            } else if (partialFailures[line] instanceof PolicyViolationError) {
-              lineProcessor.handlePolicyViolation(line, "Campaign", 
-                  (PolicyViolationError) partialFailures[line]);
+              blockResult.success(operation, message + "was migrated.");
+            } else if (partialFailure instanceof PolicyViolationError) {
+              blockResult.policyViolation(operation, "Campaign", 
+                  (PolicyViolationError) partialFailure);
             } else {
-              lineProcessor.handleFailure(line, message + "failed with: " 
-                  + partialFailures[line].getErrorString());
+              blockResult.failure(operation, message + "failed with: " 
+                  + partialFailure.getErrorString());
               state = false;
             }
             line++;
           }
+          for (ApiError apiError : failures.getUnresolved()) {
+            blockResult.error("Campaign mutate failed with: " + apiError.getErrorString());
+            state = false;
+          }
         } else {
-          lineProcessor.handleFailure(line, "No Campaigns were migrated.");
-          lineProcessor.errorCauseMessage = "Campaign Migration failed.";
+          blockResult.failure(failures.outcomeOf(line), "No Campaigns were migrated.");
           state = false;
         }
       } catch (ApiException apiException) {
         // catch specific API errors... eg: RateLimitError...
         ApiError[] errorRay = apiException.getErrors();
+        // None of the block was applied.  validateOnly calls report every bad operation this way,
+        // by its fieldPath.  Otherwise the operations that were fine can go again: without the
+        // ones AdWords named, or in parts if it named none and the error is about the operations.
+        boolean resendable = !lineProcessor.awapi.validateOnly;
+        String blockError = null;
         for (ApiError apiError : errorRay) {
           if (apiError instanceof RateExceededError) {
             // RateExceededError
-            lineProcessor.processRateExceededError(apiException);
-            state = false;
-          } else if (apiError instanceof PolicyViolationError) {
-            lineProcessor.handlePolicyViolation(line, "Campaign", 
-                (PolicyViolationError) apiError);
-          } else {
-            System.err.println(apiError.getErrorString());
-            lineProcessor.handleFailure(line++, apiError.getErrorString());
-            state = false;
+            lineProcessor.processRateExceededError(apiException, blockResult,
+                block.clientAccountId, CampaignServiceInterface.class);
+            resendable = false;
+          } else if (failures.add(apiError) < 0) {
+            blockResult.error("Campaign mutate failed with: " + apiError.getErrorString());
+            if (blockError == null) {
+              blockError = apiError.getErrorString();
+            }
+            resendable &= !PartialFailureResolver.isAccountWide(apiError);
           }
         }
+        boolean named = failures.failureCount() > 0;
+        for (int i = 0; i < block.operations.size(); i++) {
+          ApiError failure = failures.failureOf(i);
+          if (failure instanceof PolicyViolationError) {
+            blockResult.policyViolation(failures.outcomeOf(i), "Campaign",
+                (PolicyViolationError) failure);
+          } else if (failure != null) {
+            blockResult.failure(failures.outcomeOf(i), failure.getErrorString());
+          } else if (resendable && named) {
+            blockResult.notSent(failures.outcomeOf(i),
+                "Not sent, as AdWords refused the rest of its block.");
+          } else if (resendable && blockError != null) {
+            blockResult.notSent(failures.outcomeOf(i),
+                "Not sent, as AdWords refused its block with: " + blockError);
+          } else if (blockError != null) {
+            blockResult.failure(failures.outcomeOf(i), "Campaign mutate failed with: "
+                + blockError);
+          }
+        }
+        if (resendable && named) {
+          blockResult.setRefused(failures.getFailed());
+        } else if (resendable && blockError != null) {
+          blockResult.setRejected(true);
+        }
+        state = false;
       } catch (Exception generalException) {
         // catch general failures...
-        reportError("Failed to migrate Campaigns", generalException);
+        reportError(blockResult, block.lastLineNumber, "Failed to migrate Campaigns",
+            generalException);
         state = false;
-        generalException.printStackTrace();
       }
     }
-    return state;
+    blockResult.setSuccess(state);
+    return blockResult;
   }
 
 
@@ -307,17 +423,25 @@ public class CampaignMigration extends BasePlugin implements ConstantsIF {
   @Override
   public void setup(String[] lineRay, LineProcessor parent) {
     lineProcessor = parent;
-    FieldExtractor.setup(lineRay);
-    operations = new CampaignOperation[MAX_OPERATIONS];
-    operationsIterator = 0;
+    decoder = new CampaignDecoder(lineRay);
+    if (!decoder.getMissingColumns().isEmpty()) {
+      System.err.println("Header line contains spaces or invalid column name, it has no "
+          + decoder.getMissingColumns());
+      System.exit(1);
+    }
+    operations = BATCHES.take();
     opsPerLine = 1;
     idColumns = 1;
   }
 
   @Override
   public void clearOperations(){
-    operations = new CampaignOperation[MAX_OPERATIONS];
-    operationsIterator = 0;
+    // the last batch went with its block, unless the block failed before it was taken
+    if (operations == null) {
+      operations = BATCHES.take();
+    } else {
+      operations.clear();
+    }
     lastBlockLineNumber = currentLineNumber;
   }
 
@@ -14,7 +14,6 @@ package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
 //See the License for the specific language governing permissions and
 //limitations under the License.
 
-import com.google.api.ads.adwords.axis.factory.AdWordsServices;
 import com.google.api.ads.adwords.axis.v201402.cm.AdGroupAdOperation;
 import com.google.api.ads.adwords.axis.v201402.cm.ApiError;
 import com.google.api.ads.adwords.axis.v201402.cm.ApiException;
@@ -38,7 +37,6 @@ import com.google.api.ads.adwords.axis.v201402.cm.FeedOperation;
 import com.google.api.ads.adwords.axis.v201402.cm.FeedPage;
 import com.google.api.ads.adwords.axis.v201402.cm.FeedReturnValue;
 import com.google.api.ads.adwords.axis.v201402.cm.FeedServiceInterface;
-import com.google.api.ads.adwords.axis.v201402.cm.Operator;
 import com.google.api.ads.adwords.axis.v201402.cm.OrderBy;
 import com.google.api.ads.adwords.axis.v201402.cm.PolicyViolationError;
 import com.google.api.ads.adwords.axis.v201402.cm.Predicate;
@@ -46,13 +44,24 @@ import com.google.api.ads.adwords.axis.v201402.cm.PredicateOperator;
 import com.google.api.ads.adwords.axis.v201402.cm.RateExceededError;
 import com.google.api.ads.adwords.axis.v201402.cm.Selector;
 import com.google.api.ads.adwords.axis.v201402.cm.SortOrder;
-import com.google.api.ads.adwords.lib.client.AdWordsSession;
 
 import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.AWAPI;
+import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.AdaptiveBatchSizer;
 import com.google.api.ads.adwords.axis.templateengine.extension.engine.LineProcessor;
 import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.Metrics;
 
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Handle cleaning out Feeds for the Package
  * @author Mark Bowyer
@@ -63,105 +72,120 @@ public class FeedDeletingPlugin extends BasePlugin implements ConstantsIF {
   public AdGroupAdOperation[] operations = null;
   public int operationsIterator = 0;
 
-  private static FeedMappingServiceInterface feedMappingService = null;
-  private static FeedServiceInterface feedService = null;
-  private static FeedItemServiceInterface feedItemService = null;
-  private static CampaignFeedServiceInterface campaignFeedService = null;
+  private FeedMappingServiceInterface feedMappingService = null;
+  private FeedServiceInterface feedService = null;
+  private FeedItemServiceInterface feedItemService = null;
+  private CampaignFeedServiceInterface campaignFeedService = null;
+
+  /** the REMOVE operations for each chunk, shared by every worker */
+  private static final OperationBatch.Pool<CampaignFeedOperation> CAMPAIGN_FEED_BATCHES =
+      new OperationBatch.Pool<CampaignFeedOperation>(CampaignFeedOperation.class, MAX_OPERATIONS);
+  private static final OperationBatch.Pool<FeedOperation> FEED_BATCHES =
+      new OperationBatch.Pool<FeedOperation>(FeedOperation.class, MAX_OPERATIONS);
+  private static final OperationBatch.Pool<FeedItemOperation> FEED_ITEM_BATCHES =
+      new OperationBatch.Pool<FeedItemOperation>(FeedItemOperation.class, MAX_OPERATIONS);
+  private static final OperationBatch.Pool<FeedMappingOperation> FEED_MAPPING_BATCHES =
+      new OperationBatch.Pool<FeedMappingOperation>(FeedMappingOperation.class, MAX_OPERATIONS);
 
-  private CampaignFeedPage campaignFeedPage = null;
-  private FeedPage feedPage = null;
-  private FeedItemPage feedItemPage = null;
-  private FeedMappingPage feedMappingPage = null;
+  /**
+   * Runs each block's lookups and removals side by side.  A removal is only handed to it once what
+   * it depends on has finished, so every thread is busy with AdWords rather than waiting.
+   */
+  private static final ExecutorService PARALLEL = Executors.newFixedThreadPool(
+      FEED_DELETE_THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "feed-delete");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
 
-  private CampaignFeedOperation[] campaignFeedOperation = null;
-  private FeedOperation[] feedOperation = null;
-  private FeedItemOperation[] feedItemOperation = null;
-  private FeedMappingOperation[] feedMappingOperation = null;
+  /**
+   * Makes FeedDeletingPlugins for FEEDDELETE files.  Each account is cleaned out on its own, and
+   * cleaning one out again only finds what is left.
+   */
+  public static class Provider implements PluginProvider {
+    private static final PluginCapabilities CAPABILITIES = new PluginCapabilities(true, true,
+        new Class<?>[] {FeedMappingServiceInterface.class, FeedServiceInterface.class,
+            FeedItemServiceInterface.class, CampaignFeedServiceInterface.class},
+        MAX_OPERATIONS);
+
+    @Override
+    public String getName() {
+      return "FEEDDELETE";
+    }
 
-  private int cFOperationsIterator = 0;
-  private int fOperationsIterator = 0;
-  private int fIOperationsIterator = 0;
-  private int fMOperationsIterator = 0;
+    @Override
+    public PluginCapabilities getCapabilities() {
+      return CAPABILITIES;
+    }
 
-  /** holds the fields in a single row, from the CSV file */
-  private String[] lineRay = null;
+    @Override
+    public BasePlugin newPlugin() {
+      return new FeedDeletingPlugin();
+    }
+  }
 
   /**
-   * This enumeration pulls field values out of the given line (String[]). The field names and
-   * indices are mapped at runtime, based on the information in the header of the CSV file.
+   * One account to clean out, and its Services.  The entities are found and REMOVEd a page at a
+   * time when the block is mutated, in batches of as many as the {@link AdaptiveBatchSizer} allows.
    */
-  enum FieldExtractor {
-    ClientAccountId("client_account_id");
+  static class FeedBlock extends OperationBlock {
+    CampaignFeedServiceInterface campaignFeedService;
+    FeedServiceInterface feedService;
+    FeedItemServiceInterface feedItemService;
+    FeedMappingServiceInterface feedMappingService;
+  }
 
-    String fieldname;
-    int fieldindex = -1;
+  /** holds the fields in a single row, from the CSV file */
+  private String[] lineRay = null;
 
-    public String getFieldName() {
-      return fieldname;
-    }
+  /** finds the columns in each row, as set up from the header line */
+  private FeedDecoder decoder = null;
 
-    public int getFieldIndex() {
-      return fieldindex;
-    }
+  /** the columns of the current row */
+  private final FeedRow row = new FeedRow();
 
-    FieldExtractor(String fieldname) {
-      this.fieldname = fieldname;
-    }
+  /** The columns of one FEEDDELETE line, converted; reused for every line */
+  static class FeedRow {
+    String clientAccountId;
+  }
 
-    /** 
-     * calculate all the field indices in lineRay for all the desired fields 
-     * 
-     * @param lineRay the incoming line of entries from the CSV file
-     */
-    public static void setup(String[] lineRay) {
-      for (String fieldname : lineRay) {
-        FieldExtractor[] values = values();
-        FieldExtractor extractor = null;
-        for (int i = 0, length = values.length; i < length; i++) {
-          extractor = values[i];
-          if (extractor.fieldname.equals(fieldname)) {
-            extractor.fieldindex = i;
-            break;
-          }
-        }
-        if (extractor.fieldindex == -1) {
-          System.err.println("Header line contains spaces or invalid column name.");
-          System.exit(1);
-        }
-      }
+  /** Finds the FEEDDELETE columns by the header line, and checks each line's. */
+  static class FeedDecoder extends RowDecoder<FeedRow> {
+    private static final int CLIENT_ACCOUNT_ID = 0;
+
+    FeedDecoder(String[] header) {
+      super(header, "client_account_id");
     }
 
-    public static String getFieldValue(String[] lineRay, FieldExtractor field) {
-      return lineRay[field.fieldindex];
+    @Override
+    protected boolean decodeInto(String[] line, FeedRow row) {
+      row.clientAccountId = field(line, CLIENT_ACCOUNT_ID);
+      longOf(line, CLIENT_ACCOUNT_ID);
+      return getProblem() == null;
     }
   }
 
   /**
-   * Check the numeric fields from the CSV are in fact numeric
+   * Decode the current line, and check its fields are what they should be, eg: numeric
    * 
    * @return did they all check out OK?
    */
   public boolean validate() {
-    FieldExtractor[] numericValueCheck =
-      {FieldExtractor.ClientAccountId};
-
-    for (FieldExtractor numericField : numericValueCheck) {
-      String value = FieldExtractor.getFieldValue(lineRay, numericField);
-      try {
-        Long.parseLong(value);
-      } catch (Exception e) {
-        lineProcessor.errorSummaryMessage =
-            String.format(
-                "Problem parsing data in row #%d. Field value was expected to be numeric",
-                currentLineNumber);
-        lineProcessor.errorCauseMessage =
-            String.format("'%s' contains value of '%s'",
-                numericField.getFieldName(), value);
-        lineProcessor.handleFailure((int) currentLineNumber, lineProcessor.errorSummaryMessage);
-        return false;
-      }
+    if (decoder.decode(lineRay, row)) {
+      return true;
     }
-    return true;
+    lineProcessor.errorSummaryMessage =
+        String.format("Problem parsing data in row #%d. %s",
+            currentLineNumber, decoder.getProblem());
+    lineProcessor.errorCauseMessage = decoder.getProblemColumn() == null
+        ? decoder.getProblem()
+        : String.format("'%s' contains value of '%s'",
+            decoder.getProblemColumn(), decoder.getProblemValue());
+    lineProcessor.handleLineFailure(currentLineNumber, lineProcessor.errorSummaryMessage);
+    return false;
   }
 
 
@@ -179,24 +203,37 @@ public class FeedDeletingPlugin extends BasePlugin implements ConstantsIF {
     e2.printStackTrace();
   }
 
+  /** detailed error reporting for a block being mutated, which may be on another thread
+   * @param result the result of the block
+   * @param lineNumber the line the block was built from
+   * @param name identifying this block
+   * @param e2 the exception we received 
+   */
+  private void reportError(BlockResult result, long lineNumber, String name, Exception e2) {
+    result.error(String.format(
+        "For line#%d could not add the TextAd with URL '%s' to this MCC.",
+        lineNumber, name));
+    // no answer came back, so some may have been removed after all
+    result.setInDoubt(e2 instanceof RemoteException);
+    e2.printStackTrace();
+  }
+
   /**
    * Create the various Services required by this Plugin
    * @param clientCustomerId which CCID to use to base these Services on
    */
-  private static void setupServices(String clientCustomerId) {
+  private void setupServices(String clientCustomerId) {
 
-    AWAPI.ObjectReferences objectReferences = lineProcessor.awapi.authCache.get(clientCustomerId);
-    AdWordsSession session = objectReferences.session;
-    AdWordsServices adWordsServices = new AdWordsServices();
+    AWAPI.ObjectReferences objectReferences = lineProcessor.awapi.addSession(clientCustomerId);
 
     // Get the FeedMappingService.
-    feedMappingService = adWordsServices.get(session, FeedMappingServiceInterface.class);
+    feedMappingService = objectReferences.get(FeedMappingServiceInterface.class);
     // Get the FeedService.
-    feedService = adWordsServices.get(session, FeedServiceInterface.class);
+    feedService = objectReferences.get(FeedServiceInterface.class);
     // Get the FeedItemService.
-    feedItemService = adWordsServices.get(session, FeedItemServiceInterface.class);
+    feedItemService = objectReferences.get(FeedItemServiceInterface.class);
     // Get the CampaignFeedService.
-    campaignFeedService = adWordsServices.get(session, CampaignFeedServiceInterface.class);
+    campaignFeedService = objectReferences.get(CampaignFeedServiceInterface.class);
   }
 
   @Override
@@ -210,293 +247,451 @@ public class FeedDeletingPlugin extends BasePlugin implements ConstantsIF {
     this.lineRay = lineRay;
     this.currentLineNumber = currentLineNumber;
     if (validate()) {
-      // extract all the required fields from the row/line
-      String clientAccountId =
-          FieldExtractor.getFieldValue(lineRay, FieldExtractor.ClientAccountId);
+      String clientAccountId = row.clientAccountId;
+
+      this.clientAccountId = clientAccountId;
+      try {
+        setupServices(clientAccountId); // We know we only process blocks of the same ID.
+      } catch (Exception generalException) {
+        // eg: no session could be made for the account; the next line for it tries again
+        reportError(clientAccountId, generalException);
+        return false;
+      }
 
-      lineProcessor.awapi.addSession(clientAccountId);
-      setupServices(clientAccountId); // We know we only process blocks of the same ID.
+      // The Feeds etc. are found and removed a page at a time when the block is mutated, so
+      // there is nothing to build here.
+      return true;
 
-      String[] deleted = new String[] {"DELETED"};
-      String[] user = new String[] {"USER"};
+    }
+    return false;
+  }
 
+  @Override
+  protected OperationBlock takeOperations() {
+    FeedBlock block = new FeedBlock();
+    block.campaignFeedService = campaignFeedService;
+    block.feedService = feedService;
+    block.feedItemService = feedItemService;
+    block.feedMappingService = feedMappingService;
+    return block;
+  }
 
-      try {
-        // Create selector.
-        Selector cfSelector = new Selector();
-        cfSelector.setFields(new String[] {"FeedId"});
-        cfSelector.setOrdering(new OrderBy[] {new OrderBy("FeedId", SortOrder.ASCENDING)});
-        // Create predicates.
-        Predicate cfPredicate = new Predicate(
-            "Status", PredicateOperator.NOT_EQUALS, deleted);
-        cfSelector.setPredicates(new Predicate[] {cfPredicate});
-        campaignFeedPage = campaignFeedService.get(cfSelector);
-
-        Selector fSelector = new Selector();
-        fSelector.setFields(new String[] {"Id", "Origin"});
-        fSelector.setOrdering(new OrderBy[] {new OrderBy("Origin", SortOrder.ASCENDING)});
-        // Create predicates.
-        Predicate fdPredicate = new Predicate(
-            "FeedStatus", PredicateOperator.NOT_EQUALS, deleted);
-        Predicate foPredicate = new Predicate(
-            "Origin", PredicateOperator.EQUALS, user);
-        fSelector.setPredicates(new Predicate[] {fdPredicate, foPredicate});
-        feedPage = feedService.get(fSelector);
-        System.err.println(feedPage.getTotalNumEntries() + " Feeds found!");
-
-        Selector fiSelector = new Selector();
-        fiSelector.setFields(new String[] {"FeedItemId"});
-        fiSelector.setOrdering(new OrderBy[] {new OrderBy("FeedItemId", SortOrder.ASCENDING)});
-        // Create predicates.
-        Predicate fiPredicate = new Predicate(
-            "Status", PredicateOperator.NOT_EQUALS, deleted);
-        fiSelector.setPredicates(new Predicate[] {fiPredicate});
-        feedItemPage = feedItemService.get(fiSelector);
-        System.err.println(feedItemPage.getTotalNumEntries() + " FeedItems found!");
-
-
-        Selector fmSelector = new Selector();
-        fmSelector.setFields(new String[] {"FeedMappingId"});
-        fmSelector.setOrdering(new OrderBy[] {new OrderBy("FeedMappingId", SortOrder.ASCENDING)});
-        // Create predicates.
-        Predicate fmPredicate = new Predicate(
-            "Status", PredicateOperator.NOT_EQUALS, deleted);
-        fmSelector.setPredicates(new Predicate[] {fmPredicate});
-        feedMappingPage = feedMappingService.get(fmSelector);
-        System.err.println(feedMappingPage.getTotalNumEntries() + " FeedMappings found!");
-
-      } catch (ApiException e) {
-        e.printStackTrace();
-      } catch (RemoteException e) {
-        e.printStackTrace();
-      }
-
-      if (campaignFeedPage != null && campaignFeedPage.getEntries() != null) {
-        for (CampaignFeed campaignFeed : campaignFeedPage.getEntries()) {
-          CampaignFeedOperation cfo = new CampaignFeedOperation();
-          cfo.setOperator(Operator.REMOVE);
-          cfo.setOperand(campaignFeed);
-          campaignFeedOperation[cFOperationsIterator++] = cfo;
-        }
+  /**
+   * Build a Selector for everything not yet deleted, with only the id fields
+   * @param statusField the field holding the status
+   * @param fields the id fields, which the results are also ordered by
+   * @param predicates any other predicates
+   */
+  private static Selector idSelector(String statusField, String[] fields,
+      Predicate... predicates) {
+    Selector selector = new Selector();
+    selector.setFields(fields);
+    OrderBy[] ordering = new OrderBy[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      ordering[i] = new OrderBy(fields[i], SortOrder.ASCENDING);
+    }
+    selector.setOrdering(ordering);
+    Predicate[] allPredicates = new Predicate[predicates.length + 1];
+    allPredicates[0] = new Predicate(statusField, PredicateOperator.NOT_EQUALS,
+        new String[] {"DELETED"});
+    System.arraycopy(predicates, 0, allPredicates, 1, predicates.length);
+    selector.setPredicates(allPredicates);
+    return selector;
+  }
+
+  /**
+   * @return the removers for each type of entity, each after the ones it depends on: a Feed can
+   *     only go once nothing uses it and its FeedItems and FeedMappings have gone, and a
+   *     FeedMapping once no CampaignFeed uses its placeholder type.  CampaignFeeds and FeedItems
+   *     don't depend on anything.
+   */
+  private List<PagedRemover<?, ?, ?>> removers(final FeedBlock block) {
+    PagedRemover<?, ?, ?> campaignFeeds =
+        new PagedRemover<CampaignFeedPage, CampaignFeed, CampaignFeedOperation>("CampaignFeed",
+            CampaignFeedServiceInterface.class, CAMPAIGN_FEED_BATCHES, block, opsPerLine) {
+      @Override
+      Selector selector() {
+        return idSelector("Status", new String[] {"FeedId", "CampaignId"});
       }
-      if (feedPage != null && feedPage.getEntries() != null) {
-        for (Feed feed : feedPage.getEntries()) {
-          FeedOperation fo = new FeedOperation();
-          fo.setOperator(Operator.REMOVE);
-          fo.setOperand(feed);
-          feedOperation[fOperationsIterator++] = fo;
+
+      @Override
+      CampaignFeedPage get(Selector selector) throws RemoteException {
+        return block.campaignFeedService.get(selector);
+      }
+
+      @Override
+      CampaignFeed[] entries(CampaignFeedPage page) {
+        return page.getEntries();
+      }
+
+      @Override
+      Integer totalNumEntries(CampaignFeedPage page) {
+        return page.getTotalNumEntries();
+      }
+
+      @Override
+      void setOperand(CampaignFeedOperation operation, CampaignFeed entity) {
+        operation.setOperand(entity);
+      }
+
+      @Override
+      Object[] mutate(CampaignFeedOperation[] operations, PartialFailureResolver failures)
+          throws RemoteException {
+        CampaignFeedReturnValue result = block.campaignFeedService.mutate(operations);
+        if (result == null) {
+          return null;
         }
+        failures.addAll(result.getPartialFailureErrors());
+        return result.getValue();
+      }
+    };
+    PagedRemover<?, ?, ?> feeds = new PagedRemover<FeedPage, Feed, FeedOperation>("Feed",
+        FeedServiceInterface.class, FEED_BATCHES, block, opsPerLine) {
+      @Override
+      Selector selector() {
+        return idSelector("FeedStatus", new String[] {"Id"},
+            new Predicate("Origin", PredicateOperator.EQUALS, new String[] {"USER"}));
       }
-      if (feedItemPage != null && feedItemPage.getEntries() != null) {
-        for (FeedItem feedItem : feedItemPage.getEntries()) {
-          FeedItemOperation fio = new FeedItemOperation();
-          fio.setOperator(Operator.REMOVE);
-          fio.setOperand(feedItem);
-          feedItemOperation[fIOperationsIterator++] = fio;
+
+      @Override
+      FeedPage get(Selector selector) throws RemoteException {
+        return block.feedService.get(selector);
+      }
+
+      @Override
+      Feed[] entries(FeedPage page) {
+        return page.getEntries();
+      }
+
+      @Override
+      Integer totalNumEntries(FeedPage page) {
+        return page.getTotalNumEntries();
+      }
+
+      @Override
+      void setOperand(FeedOperation operation, Feed entity) {
+        operation.setOperand(entity);
+      }
+
+      @Override
+      Object[] mutate(FeedOperation[] operations, PartialFailureResolver failures)
+          throws RemoteException {
+        FeedReturnValue result = block.feedService.mutate(operations);
+        if (result == null) {
+          return null;
         }
+        failures.addAll(result.getPartialFailureErrors());
+        return result.getValue();
+      }
+    };
+    PagedRemover<?, ?, ?> feedItems =
+        new PagedRemover<FeedItemPage, FeedItem, FeedItemOperation>("FeedItem",
+            FeedItemServiceInterface.class, FEED_ITEM_BATCHES, block, opsPerLine) {
+      @Override
+      Selector selector() {
+        return idSelector("Status", new String[] {"FeedId", "FeedItemId"});
+      }
+
+      @Override
+      FeedItemPage get(Selector selector) throws RemoteException {
+        return block.feedItemService.get(selector);
       }
-      if (feedMappingPage != null && feedMappingPage.getEntries() != null) {
-        for (FeedMapping feedMapping : feedMappingPage.getEntries()) {
-          FeedMappingOperation fmo = new FeedMappingOperation();
-          fmo.setOperator(Operator.REMOVE);
-          fmo.setOperand(feedMapping);
-          feedMappingOperation[fMOperationsIterator++] = fmo;
+
+      @Override
+      FeedItem[] entries(FeedItemPage page) {
+        return page.getEntries();
+      }
+
+      @Override
+      Integer totalNumEntries(FeedItemPage page) {
+        return page.getTotalNumEntries();
+      }
+
+      @Override
+      void setOperand(FeedItemOperation operation, FeedItem entity) {
+        operation.setOperand(entity);
+      }
+
+      @Override
+      Object[] mutate(FeedItemOperation[] operations, PartialFailureResolver failures)
+          throws RemoteException {
+        FeedItemReturnValue result = block.feedItemService.mutate(operations);
+        if (result == null) {
+          return null;
         }
+        failures.addAll(result.getPartialFailureErrors());
+        return result.getValue();
+      }
+    };
+    PagedRemover<?, ?, ?> feedMappings =
+        new PagedRemover<FeedMappingPage, FeedMapping, FeedMappingOperation>("FeedMapping",
+            FeedMappingServiceInterface.class, FEED_MAPPING_BATCHES, block, opsPerLine) {
+      @Override
+      Selector selector() {
+        return idSelector("Status", new String[] {"FeedId", "FeedMappingId"});
       }
-      return true;
 
-    }
-    return false;
+      @Override
+      FeedMappingPage get(Selector selector) throws RemoteException {
+        return block.feedMappingService.get(selector);
+      }
+
+      @Override
+      FeedMapping[] entries(FeedMappingPage page) {
+        return page.getEntries();
+      }
+
+      @Override
+      Integer totalNumEntries(FeedMappingPage page) {
+        return page.getTotalNumEntries();
+      }
+
+      @Override
+      void setOperand(FeedMappingOperation operation, FeedMapping entity) {
+        operation.setOperand(entity);
+      }
+
+      @Override
+      Object[] mutate(FeedMappingOperation[] operations, PartialFailureResolver failures)
+          throws RemoteException {
+        FeedMappingReturnValue result = block.feedMappingService.mutate(operations);
+        if (result == null) {
+          return null;
+        }
+        failures.addAll(result.getPartialFailureErrors());
+        return result.getValue();
+      }
+    };
+    feedMappings.after(campaignFeeds);
+    feeds.after(campaignFeeds, feedItems, feedMappings);
+    return Arrays.<PagedRemover<?, ?, ?>>asList(campaignFeeds, feedItems, feedMappings, feeds);
   }
 
   @Override
-  public boolean mutate() {
-
+  public BlockResult mutate(OperationBlock operationBlock) {
+    final FeedBlock block = (FeedBlock) operationBlock;
+    BlockResult blockResult = new BlockResult();
+    // everything in the block is for one account, so the outcomes all go against its last line
+    int line = block.operationOf(block.lastLineNumber, opsPerLine);
     boolean state = true;
 
-    if (!ConstantsIF.DEBUG_MODE) { 
-      try {
-        if (campaignFeedOperation[0] != null) {
-          CampaignFeedReturnValue result = campaignFeedService.mutate(campaignFeedOperation);
-
-          if (result != null) {
-            for (CampaignFeed campaignFeed : result.getValue()) {
-              lineProcessor.handleSuccess(currentLineNumber, String.format(
-                  "CampaignFeed for CampaignId \"%d\" now has Status %s.",
-                  campaignFeed.getCampaignId(), campaignFeed.getStatus()));
-            }
-          } else {
-            lineProcessor.handleFailure((int) currentLineNumber, "No CampaignFeeds were deleted.");
-            lineProcessor.errorCauseMessage = "CampaignFeed delete failed.";
-            state = false;
-          }
+    if (!ConstantsIF.DEBUG_MODE && block.campaignFeedService != null) { 
+      List<PagedRemover<?, ?, ?>> removers = removers(block);
+      CountDownLatch finished = new CountDownLatch(removers.size());
+      Map<PagedRemover<?, ?, ?>, Removal> removals =
+          new HashMap<PagedRemover<?, ?, ?>, Removal>();
+      for (PagedRemover<?, ?, ?> remover : removers) {
+        Removal removal = new Removal(block, remover, line, finished);
+        for (PagedRemover<?, ?, ?> prerequisite : remover.prerequisites) {
+          removals.get(prerequisite).dependents.add(removal);
         }
-      } catch (ApiException apiException) {
-        ApiError[] errorRay = apiException.getErrors();
-        for (ApiError apiError : errorRay) {
-          if (apiError instanceof RateExceededError) {
-            lineProcessor.processRateExceededError(apiException);
-            state = false;
-          } else if (apiError instanceof PolicyViolationError) {
-            lineProcessor.handlePolicyViolation((int) currentLineNumber, "CampaignFeed", 
-                (PolicyViolationError) apiError);
-          } else {
-            System.err.println(apiError.getErrorString());
-            lineProcessor.handleFailure((int) currentLineNumber, 
-                apiError.getErrorString());
-            state = false;
-          }
-        } 
-      } catch (Exception generalException) {
-        reportError("Failed to Delete CampaignFeed", generalException);
-        state = false;
-        generalException.printStackTrace();
+        removals.put(remover, removal);
       }
-
-      try {
-        if (feedOperation[0] != null) {
-          FeedReturnValue result = feedService.mutate(feedOperation);
-
-          if (result != null) {
-            for (Feed feed : result.getValue()) {
-              lineProcessor.handleSuccess(currentLineNumber, String.format(
-                  "Feed of Id \"%d\" now has Status %s.",
-                  feed.getId(), feed.getStatus()));
+      // look every type up at once; each removal starts itself once it has all it waits for
+      for (final Removal removal : removals.values()) {
+        PARALLEL.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              removal.remover.lookup(block.clientAccountId, lineProcessor.rateLimiter,
+                  FEED_PAGE_SIZE);
+            } catch (Throwable t) {
+              removal.lookupFailure = t;
             }
-          } else {
-            lineProcessor.handleFailure((int) currentLineNumber, "No Feeds were deleted.");
-            lineProcessor.errorCauseMessage = "Feed delete failed.";
-            state = false;
+            removal.ready();
           }
+        });
+      }
+      try {
+        finished.await();
+        // every type answers for the same line, which gets one outcome for them all
+        List<BlockResult> results = new ArrayList<BlockResult>();
+        for (PagedRemover<?, ?, ?> remover : removers) {
+          BlockResult result = removals.get(remover).result;
+          results.add(result);
+          state &= result.isSuccess();
         }
-      } catch (ApiException apiException) {
-        ApiError[] errorRay = apiException.getErrors();
-        for (ApiError apiError : errorRay) {
-          if (apiError instanceof RateExceededError) {
-            lineProcessor.processRateExceededError(apiException);
-            state = false;
-          } else if (apiError instanceof PolicyViolationError) {
-            lineProcessor.handlePolicyViolation((int) currentLineNumber, "Feed", 
-                (PolicyViolationError) apiError);
-          } else {
-            System.err.println(apiError.getErrorString());
-            lineProcessor.handleFailure((int) currentLineNumber, apiError.getErrorString());
-            state = false;
-          }
-        } 
-      } catch (Exception generalException) {
-        reportError("Failed to Delete Feed", generalException);
+        blockResult.addCombined(results);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        blockResult.error("Interrupted while cleaning out account " + block.clientAccountId);
         state = false;
-        generalException.printStackTrace();
       }
 
-      try {
-        if (feedItemOperation[0] != null) {
-          FeedItemReturnValue result = feedItemService.mutate(feedItemOperation);
-
-          if (result != null) {
-            for (FeedItem feedItem : result.getValue()) {
-              lineProcessor.handleSuccess(currentLineNumber, String.format(
-                  "FeedItem of Id \"%d\" now has Status %s.",
-                  feedItem.getFeedItemId(), feedItem.getStatus()));
-            }
-          } else {
-            lineProcessor.handleFailure((int) currentLineNumber, "No FeedItems were deleted.");
-            lineProcessor.errorCauseMessage = "FeedItem delete failed.";
-            state = false;
-          }
+      // any earlier lines of the block name the same account, so they share its outcome
+      for (int i = 0; i + 1 < block.lineNumbers.length && block.lineNumbers[i] > 0; i++) {
+        if (state) {
+          blockResult.success(i * opsPerLine, String.format(
+              "Cleaned out with line %d, which is for the same account.", block.lastLineNumber));
+        } else {
+          blockResult.failure(i * opsPerLine, String.format(
+              "Not cleaned out, see line %d, which is for the same account.",
+              block.lastLineNumber));
         }
-      } catch (ApiException apiException) {
-        ApiError[] errorRay = apiException.getErrors();
-        for (ApiError apiError : errorRay) {
-          if (apiError instanceof RateExceededError) {
-            lineProcessor.processRateExceededError(apiException);
-            state = false;
-          } else if (apiError instanceof PolicyViolationError) {
-            lineProcessor.handlePolicyViolation((int) currentLineNumber, "FeedItem", 
-                (PolicyViolationError) apiError);
-          } else {
-            System.err.println(apiError.getErrorString());
-            lineProcessor.handleFailure((int) currentLineNumber, apiError.getErrorString());
-            state = false;
-          }
-        } 
-      } catch (Exception generalException) {
-        reportError("Failed to Delete FeedItem", generalException);
-        state = false;
-        generalException.printStackTrace();
       }
+    } 
+
+    blockResult.setSuccess(state);
+    return blockResult;
+
+  }
+
+  /**
+   * The removal of one type of entity from an account.  It is run on {@link #PARALLEL} by
+   * whichever of its lookup and the removals it depends on finishes last, so no thread is ever
+   * held waiting for another.  Runs on its own thread, so reports to a result of its own.
+   */
+  private class Removal implements Runnable {
+    final FeedBlock block;
+    final PagedRemover<?, ?, ?> remover;
+    final int line;
+    final CountDownLatch finished;
+
+    /** the removals that wait for this one */
+    final List<Removal> dependents = new ArrayList<Removal>();
+
+    /** the lookup, and the removals this one depends on, still to finish */
+    private final AtomicInteger waiting;
+
+    /** what the lookup threw, if it failed */
+    volatile Throwable lookupFailure = null;
+
+    /** set if a removal this one depends on didn't remove everything */
+    volatile boolean blocked = false;
+
+    /** what happened, once {@link #finished} has counted this one down */
+    BlockResult result = null;
+
+    /**
+     * @param block the account being cleaned out
+     * @param remover the type to remove
+     * @param line the operation the outcomes go against
+     * @param finished counted down when this removal is done
+     */
+    Removal(FeedBlock block, PagedRemover<?, ?, ?> remover, int line, CountDownLatch finished) {
+      this.block = block;
+      this.remover = remover;
+      this.line = line;
+      this.finished = finished;
+      waiting = new AtomicInteger(1 + remover.prerequisites.size());
+    }
+
+    /** Called as the lookup and each prerequisite finishes; the last one starts the removal */
+    void ready() {
+      if (waiting.decrementAndGet() == 0) {
+        PARALLEL.execute(this);
+      }
+    }
 
+    @Override
+    public void run() {
       try {
-        if (feedMappingOperation[0] != null) {
-          FeedMappingReturnValue result = feedMappingService.mutate(feedMappingOperation);
-
-          if (result != null) {
-            for (FeedMapping feedMapping : result.getValue()) {
-              lineProcessor.handleSuccess(currentLineNumber, String.format(
-                  "FeedMapping of Id \"%d\" now has Status %s.",
-                  feedMapping.getFeedMappingId(), feedMapping.getStatus()));
-            }
-          } else {
-            lineProcessor.handleFailure((int) currentLineNumber, "No FeedMappings were deleted.");
-            lineProcessor.errorCauseMessage = "FeedMapping delete failed.";
-            state = false;
-          }
+        if (blocked) {
+          result = new BlockResult();
+          result.failure(line, String.format(
+              "%ss were not removed, as something they depend on wasn't.", remover.type));
+          result.setSuccess(false);
+        } else {
+          result = removeAll(block, remover, lookupFailure, line);
         }
-      } catch (ApiException apiException) {
-        ApiError[] errorRay = apiException.getErrors();
-        for (ApiError apiError : errorRay) {
-          if (apiError instanceof RateExceededError) {
-            lineProcessor.processRateExceededError(apiException);
-            state = false;
-          } else if (apiError instanceof PolicyViolationError) {
-            lineProcessor.handlePolicyViolation((int) currentLineNumber, "FeedMapping", 
-                (PolicyViolationError) apiError);
-          } else {
-            System.err.println(apiError.getErrorString());
-            lineProcessor.handleFailure((int) currentLineNumber, apiError.getErrorString());
-            state = false;
+      } catch (Throwable t) {
+        result = BlockResult.failed(t);
+        result.failure(line, String.format("Failed to Delete %ss: %s", remover.type, t));
+      } finally {
+        for (Removal dependent : dependents) {
+          if (!result.isSuccess()) {
+            dependent.blocked = true;
           }
-        } 
-      } catch (Exception generalException) {
-        reportError("Failed to Delete FeedMapping", generalException);
-        state = false;
-        generalException.printStackTrace();
+          dependent.ready();
+        }
+        finished.countDown();
       }
+    }
+  }
 
-    } 
-
-    return state;
-
+  /**
+   * Remove one type of entity, once its lookup is back and the types it depends on have gone
+   * @param block the account being cleaned out
+   * @param remover the type to remove
+   * @param lookupFailure what the lookup of its first page threw, or null
+   * @param line the operation the outcomes go against
+   * @return what happened
+   */
+  private BlockResult removeAll(FeedBlock block, PagedRemover<?, ?, ?> remover,
+      Throwable lookupFailure, int line) {
+    BlockResult blockResult = new BlockResult();
+    boolean state = true;
+    try {
+      if (lookupFailure instanceof Exception) {
+        throw (Exception) lookupFailure;
+      } else if (lookupFailure != null) {
+        throw (Error) lookupFailure;
+      }
+      PagedRemover.Outcome outcome = remover.removeAll(block.clientAccountId,
+          lineProcessor.rateLimiter, FEED_PAGE_SIZE,
+          Math.min(capabilities.preferredOperations,
+              lineProcessor.batchSizer.operations(remover.service)));
+      Metrics.counter("feed_entities_removed_total", "type", remover.type).add(outcome.removed);
+      Metrics.counter("feed_remove_calls_total", "type", remover.type).add(outcome.calls);
+      if (outcome.failed > 0) {
+        blockResult.failure(line, String.format("Removed %d %ss but not %d, eg: %s.",
+            outcome.removed, remover.type, outcome.failed, outcome.example));
+        state = false;
+      } else {
+        blockResult.success(line, String.format("Removed %d %ss.", outcome.removed,
+            remover.type));
+      }
+    } catch (ApiException apiException) {
+      ApiError[] errorRay = apiException.getErrors();
+      for (ApiError apiError : errorRay) {
+        if (apiError instanceof RateExceededError) {
+          lineProcessor.processRateExceededError(apiException, blockResult,
+              block.clientAccountId, remover.service);
+          state = false;
+        } else if (apiError instanceof PolicyViolationError) {
+          blockResult.policyViolation(line, remover.type, 
+              (PolicyViolationError) apiError);
+        } else {
+          System.err.println(apiError.getErrorString());
+          blockResult.failure(line, 
+              apiError.getErrorString());
+          state = false;
+        }
+      } 
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      blockResult.error("Interrupted while removing " + remover.type + "s");
+      state = false;
+    } catch (Exception generalException) {
+      reportError(blockResult, block.lastLineNumber, "Failed to Delete " + remover.type,
+          generalException);
+      state = false;
+    }
+    blockResult.setSuccess(state);
+    return blockResult;
   }
 
   @Override
   public void clearOperations() {
     lastBlockLineNumber = currentLineNumber;
-    campaignFeedPage = null;
-    feedPage = null;
-    feedItemPage = null;
-    feedMappingPage = null;
-    campaignFeedOperation = new CampaignFeedOperation[MAX_OPERATIONS];
-    feedOperation = new FeedOperation[MAX_OPERATIONS];
-    feedItemOperation = new FeedItemOperation[MAX_OPERATIONS];
-    feedMappingOperation = new FeedMappingOperation[MAX_OPERATIONS];
-    cFOperationsIterator = 0;
-    fOperationsIterator = 0;
-    fIOperationsIterator = 0;
-    fMOperationsIterator = 0;
+    // so a block whose lines all failed validate() doesn't clean out the last account again
+    feedMappingService = null;
+    feedService = null;
+    feedItemService = null;
+    campaignFeedService = null;
   }
 
   @Override
   public void setup(String[] lineRay, LineProcessor parent) {
     lineProcessor = parent;
-    FieldExtractor.setup(lineRay);
+    decoder = new FeedDecoder(lineRay);
+    if (!decoder.getMissingColumns().isEmpty()) {
+      System.err.println("Header line contains spaces or invalid column name, it has no "
+          + decoder.getMissingColumns());
+      System.exit(1);
+    }
     opsPerLine = 4;
     idColumns = 1;
-    campaignFeedOperation = new CampaignFeedOperation[MAX_OPERATIONS];
-    feedOperation = new FeedOperation[MAX_OPERATIONS];
-    feedItemOperation = new FeedItemOperation[MAX_OPERATIONS];
-    feedMappingOperation = new FeedMappingOperation[MAX_OPERATIONS];
   }
 
 }
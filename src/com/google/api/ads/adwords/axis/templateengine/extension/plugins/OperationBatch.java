@@ -0,0 +1,193 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The Operations for one mutate, with the line of the CSV file each was built from.  The arrays
+ * behind a batch are taken from a {@link Pool} and go back to it once the block they were sent in
+ * has been recorded, so once there are enough for every block in flight, building and sending
+ * blocks allocates no more of them.
+ *
+ * The Operation objects themselves are kept too: {@link #next(long)} hands back the one left in
+ * the slot by an earlier block, which the caller fills in again.
+ *
+ * @param <T> the Operation type, eg: CampaignOperation
+ */
+public class OperationBatch<T> {
+
+  /**
+   * Free batches of one Operation type, shared by every worker's Plugin
+   * @param <T> the Operation type
+   */
+  public static class Pool<T> {
+    private final Class<T> type;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<OperationBatch<T>> free =
+        new ConcurrentLinkedQueue<OperationBatch<T>>();
+
+    /**
+     * @param type the Operation type, which must have a no argument constructor
+     * @param capacity the most Operations in one batch, eg: MAX_OPERATIONS
+     */
+    public Pool(Class<T> type, int capacity) {
+      this.type = type;
+      this.capacity = capacity;
+    }
+
+    /** @return an empty batch, a free one if there is one */
+    public OperationBatch<T> take() {
+      OperationBatch<T> batch = free.poll();
+      return batch != null ? batch : new OperationBatch<T>(this);
+    }
+  }
+
+  private final Pool<T> pool;
+
+  /** false for a {@link #slice}, which shares its Operations, so mustn't go back to the pool */
+  private final boolean pooled;
+  private final T[] operations;
+  private final long[] lineNumbers;
+
+  /** how many slots have had an Operation made for them, by this or an earlier block */
+  private int made = 0;
+  private int size = 0;
+
+  /** the array last given to mutate(), kept for the next batch of the same size */
+  private T[] view = null;
+
+  private OperationBatch(Pool<T> pool) {
+    this(pool, pool.capacity, true);
+  }
+
+  @SuppressWarnings("unchecked")
+  private OperationBatch(Pool<T> pool, int capacity, boolean pooled) {
+    this.pool = pool;
+    this.pooled = pooled;
+    this.operations = (T[]) Array.newInstance(pool.type, capacity);
+    this.lineNumbers = new long[capacity];
+  }
+
+  /**
+   * Add an Operation made by the caller
+   * @param operation the Operation
+   * @param lineNumber the line of the CSV file it was built from
+   */
+  public void add(T operation, long lineNumber) {
+    operations[size] = operation;
+    lineNumbers[size++] = lineNumber;
+    made = Math.max(made, size);
+  }
+
+  /**
+   * Add the next Operation, reusing the one an earlier block left in its slot.  It still holds
+   * that block's operator and operand, so both must be set.
+   * @param lineNumber the line of the CSV file it is built from
+   * @return the Operation to fill in
+   */
+  public T next(long lineNumber) {
+    if (size == made) {
+      try {
+        operations[made++] = pool.type.newInstance();
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Can't make a " + pool.type.getSimpleName(), e);
+      }
+    }
+    lineNumbers[size] = lineNumber;
+    return operations[size++];
+  }
+
+  /** @return how many Operations are in the batch */
+  public int size() {
+    return size;
+  }
+
+  /** @return true if there are no Operations in the batch */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @param operation the index of an Operation in the batch, as given in a partial failure
+   * @return the line of the CSV file it was built from, or -1 if there is no such Operation
+   */
+  public long lineNumberOf(int operation) {
+    return operation >= 0 && operation < size ? lineNumbers[operation] : -1;
+  }
+
+  /**
+   * The Operations as an array of exactly {@link #size()}, for mutate(), so no trailing nulls go
+   * over the wire.  The same array is reused while the size stays the same.
+   * @return the Operations
+   */
+  @SuppressWarnings("unchecked")
+  public T[] toArray() {
+    if (view == null || view.length != size) {
+      view = (T[]) Array.newInstance(pool.type, size);
+    }
+    System.arraycopy(operations, 0, view, 0, size);
+    return view;
+  }
+
+  /**
+   * Make a batch of some of these Operations, eg: to send half of a refused block again.  It holds
+   * the same Operation objects, so is never pooled.
+   * @param from the first Operation
+   * @param to the Operation after the last
+   * @return the new batch
+   */
+  public OperationBatch<T> slice(int from, int to) {
+    OperationBatch<T> slice = new OperationBatch<T>(pool, to - from, false);
+    for (int i = from; i < to; i++) {
+      slice.add(operations[i], lineNumbers[i]);
+    }
+    return slice;
+  }
+
+  /**
+   * Make a batch of the Operations that aren't in a set, eg: to send the rest of a block again
+   * without the ones AdWords refused it for.  Like a {@link #slice}, it is never pooled.
+   * @param left the Operations to leave out
+   * @return the new batch
+   */
+  public OperationBatch<T> except(BitSet left) {
+    OperationBatch<T> rest =
+        new OperationBatch<T>(pool, size - left.get(0, size).cardinality(), false);
+    for (int i = left.nextClearBit(0); i < size; i = left.nextClearBit(i + 1)) {
+      rest.add(operations[i], lineNumbers[i]);
+    }
+    return rest;
+  }
+
+  /** Empty the batch, keeping its Operations to be filled in again */
+  public void clear() {
+    size = 0;
+    if (view != null) {
+      Arrays.fill(view, null);
+    }
+  }
+
+  /** Empty the batch and give it back to its pool.  It mustn't be used after this. */
+  public void release() {
+    clear();
+    if (pooled) {
+      pool.free.offer(this);
+    }
+  }
+}
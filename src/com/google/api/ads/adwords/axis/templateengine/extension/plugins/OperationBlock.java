@@ -0,0 +1,135 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.RowStore;
+
+import java.util.BitSet;
+
+/**
+ * The Operations built for one block of lines, detached from the Plugin that built them so the
+ * Plugin can start on the next block while this one is being sent.  Each Plugin extends this with
+ * its own Operations arrays and the Services they should be sent to.
+ */
+public class OperationBlock {
+
+  /** The line number of the last line before this block, used to map operations to lines */
+  public long lastBlockLineNumber;
+
+  /** The line number of the last line in this block */
+  public long lastLineNumber;
+
+  /** The client account the Operations are for */
+  public String clientAccountId;
+
+  /** The CSV lines this block was built from, so failed lines can go to the FixUp file */
+  public RowStore rows;
+
+  /** The line number of each of those lines, as they may not be consecutive after a restart */
+  public long[] lineNumbers;
+
+  /** false for a {@link #slice}, which shares its rows with the block it was cut from */
+  private boolean ownsRows = true;
+
+  /**
+   * Find the first operation built from a line, for reporting outcomes against that line.
+   * @param lineNumber the line of the CSV file
+   * @param opsPerLine how many operations the Plugin builds from each line
+   * @return the index of the operation, counted on from the line before the block if the line
+   *     numbers aren't known
+   */
+  public int operationOf(long lineNumber, int opsPerLine) {
+    if (lineNumbers != null) {
+      for (int i = 0; i < lineNumbers.length && lineNumbers[i] > 0; i++) {
+        if (lineNumbers[i] == lineNumber) {
+          return i * opsPerLine;
+        }
+      }
+    }
+    return (int) (lineNumber - lastBlockLineNumber - 1) * opsPerLine;
+  }
+
+  /**
+   * Find where the outcome of each line with operations in this block goes, eg: to fail them all
+   * if the block can't be sent
+   * @param opsPerLine how many operations the Plugin builds from each line
+   * @return the index to give to {@link BlockResult} for each line
+   */
+  public int[] outcomes(int opsPerLine) {
+    int lines = 0;
+    while (lineNumbers != null && lines < lineNumbers.length && lineNumbers[lines] > 0) {
+      lines++;
+    }
+    int[] outcomes = new int[lines];
+    for (int i = 0; i < lines; i++) {
+      outcomes[i] = i * opsPerLine;
+    }
+    return outcomes;
+  }
+
+  /** @return how many operations the block holds, or 0 if it can't be split up */
+  public int size() {
+    return 0;
+  }
+
+  /**
+   * Make a block of some of this block's operations, to send again on their own.  Outcomes are
+   * still recorded against this block's lines.
+   * @param from the first operation
+   * @param to the operation after the last
+   * @return the new block, or null if this kind of block can't be split up
+   */
+  public OperationBlock slice(int from, int to) {
+    return null;
+  }
+
+  /**
+   * Make a block of the operations that aren't in a set, to send again without the others.
+   * Outcomes are still recorded against this block's lines.
+   * @param left the operations to leave out
+   * @return the new block, or null if this kind of block can't be split up
+   */
+  public OperationBlock except(BitSet left) {
+    return null;
+  }
+
+  /**
+   * Copy the lines this block was built from into part of it
+   * @param slice the new block
+   * @return the new block
+   */
+  protected <B extends OperationBlock> B sliceOf(B slice) {
+    slice.lastBlockLineNumber = lastBlockLineNumber;
+    slice.lastLineNumber = lastLineNumber;
+    slice.clientAccountId = clientAccountId;
+    slice.rows = rows;
+    ((OperationBlock) slice).ownsRows = false;
+    slice.lineNumbers = lineNumbers;
+    return slice;
+  }
+
+  /**
+   * Called once the block's result has been recorded and it won't be sent again, so anything it
+   * borrowed, eg: an {@link OperationBatch} or its {@link RowStore}, can be given back.
+   * Subclasses must call this too.
+   */
+  public void release() {
+    if (rows != null && ownsRows) {
+      rows.release();
+    }
+    rows = null;
+  }
+
+}
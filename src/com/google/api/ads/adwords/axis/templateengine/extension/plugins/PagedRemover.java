@@ -0,0 +1,249 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.v201402.cm.ApiError;
+import com.google.api.ads.adwords.axis.v201402.cm.ApiException;
+import com.google.api.ads.adwords.axis.v201402.cm.Operation;
+import com.google.api.ads.adwords.axis.v201402.cm.Operator;
+import com.google.api.ads.adwords.axis.v201402.cm.Paging;
+import com.google.api.ads.adwords.axis.v201402.cm.Selector;
+
+import com.google.api.ads.adwords.axis.templateengine.extension.adwordsintegration.RateLimiter;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds every entity of one type in an account, a page at a time, and REMOVEs them in chunks of
+ * at most chunkSize, so only a page and a chunk are ever held however many there are.
+ *
+ * Pages are read from the last one back to the first.  Removing an entity takes it out of the
+ * results, which moves everything after it up; going backwards, the pages still to be read are
+ * all in front of anything removed so far, so none are skipped.
+ *
+ * Each type of entity only has to say how to get a page of them and how to mutate; the REMOVE
+ * operations are built here, in batches from the type's {@link OperationBatch.Pool}.
+ *
+ * @param <P> the Page type the Service's get() returns
+ * @param <E> the entity type
+ * @param <O> the Operation type the Service's mutate() takes
+ */
+abstract class PagedRemover<P, E, O extends Operation> {
+
+  /** the entity type, eg: "FeedItem", for the messages */
+  final String type;
+
+  /** the Service interface, for the rate limiter */
+  final Class<?> service;
+
+  /** the entity types that must be removed before this one can be */
+  final List<PagedRemover<?, ?, ?>> prerequisites = new ArrayList<PagedRemover<?, ?, ?>>();
+
+  /** where the REMOVE operations for each chunk come from */
+  private final OperationBatch.Pool<O> batches;
+
+  /** the account being cleaned out, whose last line the operations are built for */
+  private final OperationBlock block;
+  private final int opsPerLine;
+
+  /** the first page, once {@link #lookup} has got it */
+  private P firstPage = null;
+  private int lookupCalls = 0;
+
+  /** How the chunks got on, all told, so the account's line gets one outcome for the type */
+  static class Outcome {
+    int removed = 0;
+    int failed = 0;
+    int calls = 0;
+
+    /** why the first entity that wasn't removed wasn't, or null if they all were */
+    String example = null;
+  }
+
+  /**
+   * @param type the entity type, eg: "FeedItem"
+   * @param service the Service interface
+   * @param batches where the REMOVE operations come from
+   * @param block the account being cleaned out
+   * @param opsPerLine how many operations the Plugin builds from each line
+   */
+  PagedRemover(String type, Class<?> service, OperationBatch.Pool<O> batches,
+      OperationBlock block, int opsPerLine) {
+    this.type = type;
+    this.service = service;
+    this.batches = batches;
+    this.block = block;
+    this.opsPerLine = opsPerLine;
+  }
+
+  /**
+   * Only remove this type once these have been
+   * @param removers the entity types this one depends on
+   * @return this
+   */
+  PagedRemover<P, E, O> after(PagedRemover<?, ?, ?>... removers) {
+    prerequisites.addAll(Arrays.asList(removers));
+    return this;
+  }
+
+  /** @return a Selector with the (id only) fields, predicates and ordering; paging is added */
+  abstract Selector selector();
+
+  abstract P get(Selector selector) throws RemoteException;
+
+  abstract E[] entries(P page);
+
+  abstract Integer totalNumEntries(P page);
+
+  /** Set the entity an operation is for */
+  abstract void setOperand(O operation, E entity);
+
+  /**
+   * Send the operations to the Service
+   * @param operations the REMOVE operations
+   * @param failures takes in the mutate's partial failures
+   * @return the values the mutate returned, or null if it returned nothing
+   */
+  abstract Object[] mutate(O[] operations, PartialFailureResolver failures)
+      throws RemoteException;
+
+  /**
+   * REMOVE some entities
+   * @param entities what to remove
+   * @param partialFailures filled in with any partial failures
+   * @return how many came back as removed, ie: are not nulls and had no partial failure; none
+   *     if the mutate returned nothing
+   */
+  private int remove(List<E> entities, List<ApiError> partialFailures) throws RemoteException {
+    OperationBatch<O> operations = batches.take();
+    try {
+      for (E entity : entities) {
+        O operation = operations.next(block.lastLineNumber);
+        operation.setOperator(Operator.REMOVE);
+        setOperand(operation, entity);
+      }
+      PartialFailureResolver failures =
+          new PartialFailureResolver(block, operations, opsPerLine);
+      Object[] values = mutate(operations.toArray(), failures);
+      partialFailures.addAll(failures.getFailures());
+      partialFailures.addAll(failures.getUnresolved());
+      if (values == null) {
+        return 0;
+      }
+      int removed = 0;
+      for (int operation = 0; operation < values.length; operation++) {
+        if (values[operation] != null && !failures.isFailed(operation)) {
+          removed++;
+        }
+      }
+      return removed;
+    } finally {
+      operations.release();
+    }
+  }
+
+  /**
+   * Get the first page, which also says how many there are.  This doesn't depend on any other
+   * type being removed first, so can be done as early as we like.
+   * @param clientAccountId the account, for the rate limiter
+   * @param rateLimiter where every get and mutate waits its turn
+   * @param pageSize how many entities to get at a time
+   */
+  void lookup(String clientAccountId, RateLimiter rateLimiter, int pageSize)
+      throws RemoteException, InterruptedException {
+    Outcome outcome = new Outcome();
+    firstPage = getPage(clientAccountId, rateLimiter, 0, pageSize, outcome);
+    lookupCalls = outcome.calls;
+  }
+
+  /**
+   * Remove everything the selector finds, starting from the page {@link #lookup} got if it has
+   * been called
+   * @param clientAccountId the account, for the rate limiter
+   * @param rateLimiter where every get and mutate waits its turn
+   * @param pageSize how many entities to get at a time
+   * @param chunkSize the most to REMOVE in one mutate
+   * @return how it went, over every chunk
+   * @throws ApiException for the caller to handle, eg: a RateExceededError
+   */
+  Outcome removeAll(String clientAccountId, RateLimiter rateLimiter, int pageSize, int chunkSize)
+      throws ApiException, RemoteException, InterruptedException {
+    Outcome outcome = new Outcome();
+    List<E> chunk = new ArrayList<E>(Math.min(chunkSize, 1024));
+
+    // the first page says how many pages there are; it is removed last
+    if (firstPage == null) {
+      lookup(clientAccountId, rateLimiter, pageSize);
+    }
+    outcome.calls = lookupCalls;
+    Integer total = totalNumEntries(firstPage);
+    int lastStart = total == null || total <= pageSize ? 0 : (total - 1) / pageSize * pageSize;
+    for (int start = lastStart; start > 0; start -= pageSize) {
+      P page = getPage(clientAccountId, rateLimiter, start, pageSize, outcome);
+      add(entries(page), chunk, chunkSize, clientAccountId, rateLimiter, outcome);
+    }
+    add(entries(firstPage), chunk, chunkSize, clientAccountId, rateLimiter, outcome);
+    if (!chunk.isEmpty()) {
+      flush(chunk, clientAccountId, rateLimiter, outcome);
+    }
+    firstPage = null;
+    return outcome;
+  }
+
+  private P getPage(String clientAccountId, RateLimiter rateLimiter, int start, int pageSize,
+      Outcome outcome) throws RemoteException, InterruptedException {
+    Selector selector = selector();
+    Paging paging = new Paging();
+    paging.setStartIndex(start);
+    paging.setNumberResults(pageSize);
+    selector.setPaging(paging);
+    rateLimiter.acquire(clientAccountId, service, 1);
+    outcome.calls++;
+    return get(selector);
+  }
+
+  private void add(E[] entries, List<E> chunk, int chunkSize, String clientAccountId,
+      RateLimiter rateLimiter, Outcome outcome) throws RemoteException, InterruptedException {
+    if (entries == null) {
+      return;
+    }
+    for (E entity : entries) {
+      chunk.add(entity);
+      if (chunk.size() == chunkSize) {
+        flush(chunk, clientAccountId, rateLimiter, outcome);
+      }
+    }
+  }
+
+  private void flush(List<E> chunk, String clientAccountId, RateLimiter rateLimiter,
+      Outcome outcome) throws RemoteException, InterruptedException {
+    List<ApiError> partialFailures = new ArrayList<ApiError>();
+    rateLimiter.acquire(clientAccountId, service, chunk.size());
+    outcome.calls++;
+    int removed = remove(chunk, partialFailures);
+    // anything not removed failed, including the whole chunk if the mutate returned nothing
+    int failed = chunk.size() - removed;
+    outcome.removed += removed;
+    outcome.failed += failed;
+    if (failed > 0 && outcome.example == null) {
+      outcome.example = partialFailures.isEmpty() ? "the mutate returned nothing"
+          : partialFailures.get(0).getErrorString();
+    }
+    chunk.clear();
+  }
+}
@@ -0,0 +1,243 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.v201402.cm.ApiError;
+import com.google.api.ads.adwords.axis.v201402.cm.AuthenticationError;
+import com.google.api.ads.adwords.axis.v201402.cm.AuthorizationError;
+import com.google.api.ads.adwords.axis.v201402.cm.InternalApiError;
+import com.google.api.ads.adwords.axis.v201402.cm.QuotaCheckError;
+import com.google.api.ads.adwords.axis.v201402.cm.RateExceededError;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matches the partial failures a mutate returned to the operations they were for, and each
+ * operation to the line of the CSV file it was built from, for a Plugin to report outcomes
+ * against.  Most mutates have few or no failures, so they are kept as a bit per failed operation
+ * plus a short list of the errors, rather than an array with a slot for every operation.
+ */
+public class PartialFailureResolver {
+
+  private static final String OPERATIONS = "operations[";
+
+  private final OperationBlock block;
+  private final OperationBatch<?> batch;
+  private final int opsPerLine;
+
+  private final BitSet failed = new BitSet();
+
+  /** the failed operations' errors, in the order {@link #failed} has them */
+  private List<ApiError> errors = null;
+  private int[] errorOperations = null;
+
+  /** errors whose fieldPath didn't say which operation they were for */
+  private List<ApiError> unresolved = null;
+
+  /** where the last {@link #outcomeOf} found its line, as the next is usually just after it */
+  private int lastOperation = -1;
+  private int lastSlot = 0;
+
+  /**
+   * @param block the block that was sent, whose lines the outcomes go against
+   * @param batch the operations sent, with the line each was built from
+   * @param opsPerLine how many operations the Plugin builds from each line
+   */
+  public PartialFailureResolver(OperationBlock block, OperationBatch<?> batch, int opsPerLine) {
+    this.block = block;
+    this.batch = batch;
+    this.opsPerLine = opsPerLine;
+  }
+
+  /**
+   * Find which operation a partial failure was for
+   * @param fieldPath the fieldPath of the ApiError, eg: "operations[3].operand.name"
+   * @return the index of the operation, or -1 if the fieldPath doesn't say
+   */
+  public static int operationIndexOf(String fieldPath) {
+    if (fieldPath == null) {
+      return -1;
+    }
+    // the last one that parses, as a nested path may mention operations more than once
+    for (int at = fieldPath.lastIndexOf(OPERATIONS); at >= 0;
+        at = fieldPath.lastIndexOf(OPERATIONS, at - 1)) {
+      int index = indexAt(fieldPath, at + OPERATIONS.length());
+      if (index >= 0) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param error an error that names no operation
+   * @return true if it is about the account or the call rather than the operations, eg: an
+   *     AuthenticationError or a RateExceededError, so every part of the block would get it too
+   */
+  public static boolean isAccountWide(ApiError error) {
+    return error instanceof AuthenticationError || error instanceof AuthorizationError
+        || error instanceof QuotaCheckError || error instanceof RateExceededError
+        || error instanceof InternalApiError;
+  }
+
+  /** @return the number starting at start and ending with a ']', or -1 if there isn't one */
+  private static int indexAt(String fieldPath, int start) {
+    int index = 0;
+    int i = start;
+    // nine digits can't overflow; a tenth is left unread, so fails the ']' check
+    for (; i < fieldPath.length() && i - start < 9; i++) {
+      char c = fieldPath.charAt(i);
+      if (c < '0' || c > '9') {
+        break;
+      }
+      index = index * 10 + (c - '0');
+    }
+    if (i == start || i == fieldPath.length() || fieldPath.charAt(i) != ']') {
+      return -1;
+    }
+    return index;
+  }
+
+  /**
+   * Take in the partial failures from a mutate
+   * @param partialFailures the ReturnValue's getPartialFailureErrors(), which may be null
+   */
+  public void addAll(ApiError[] partialFailures) {
+    if (partialFailures == null) {
+      return;
+    }
+    for (ApiError error : partialFailures) {
+      add(error);
+    }
+  }
+
+  /**
+   * Take in one error, eg: from an ApiException for a validateOnly mutate
+   * @param error the error
+   * @return the operation it was for, or -1 if it doesn't say
+   */
+  public int add(ApiError error) {
+    int operation = operationIndexOf(error.getFieldPath());
+    if (operation < 0) {
+      if (unresolved == null) {
+        unresolved = new ArrayList<ApiError>(2);
+      }
+      unresolved.add(error);
+      return -1;
+    }
+    if (failed.get(operation)) {
+      // only the first error for each operation is kept
+      return operation;
+    }
+    failed.set(operation);
+    if (errors == null) {
+      errors = new ArrayList<ApiError>(4);
+      errorOperations = new int[4];
+    }
+    // keep them in operation order, so they can be found by a binary search
+    int at = errors.size();
+    while (at > 0 && errorOperations[at - 1] > operation) {
+      at--;
+    }
+    if (errors.size() == errorOperations.length) {
+      int[] grown = new int[errorOperations.length * 2];
+      System.arraycopy(errorOperations, 0, grown, 0, errorOperations.length);
+      errorOperations = grown;
+    }
+    System.arraycopy(errorOperations, at, errorOperations, at + 1, errors.size() - at);
+    errorOperations[at] = operation;
+    errors.add(at, error);
+    return operation;
+  }
+
+  /** @return true if the operation had a partial failure */
+  public boolean isFailed(int operation) {
+    return operation >= 0 && failed.get(operation);
+  }
+
+  /** @return the partial failure for the operation, or null if it didn't fail */
+  public ApiError failureOf(int operation) {
+    if (!isFailed(operation)) {
+      return null;
+    }
+    int low = 0;
+    int high = errors.size() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (errorOperations[middle] < operation) {
+        low = middle + 1;
+      } else if (errorOperations[middle] > operation) {
+        high = middle - 1;
+      } else {
+        return errors.get(middle);
+      }
+    }
+    return null;
+  }
+
+  /** @return which operations had a partial failure, as a copy */
+  public BitSet getFailed() {
+    return (BitSet) failed.clone();
+  }
+
+  /** @return how many operations had a partial failure */
+  public int failureCount() {
+    return errors == null ? 0 : errors.size();
+  }
+
+  /** @return the first error for each failed operation, in operation order */
+  public List<ApiError> getFailures() {
+    return errors == null ? Collections.<ApiError>emptyList() : errors;
+  }
+
+  /** @return the errors that didn't say which operation they were for */
+  public List<ApiError> getUnresolved() {
+    return unresolved == null ? Collections.<ApiError>emptyList() : unresolved;
+  }
+
+  /**
+   * Find which line of the block an operation was built from, for recording its outcome.  Lines
+   * that failed to build have no operation, so the operations don't line up with the lines; the
+   * batch knows each one's line number.
+   * @param operation the index of the operation in the batch
+   * @return the index to give to {@link BlockResult}, ie: the first operation slot of its line
+   */
+  public int outcomeOf(int operation) {
+    long lineNumber = batch.lineNumberOf(operation);
+    long[] lineNumbers = block.lineNumbers;
+    if (lineNumber < 0) {
+      return operation;
+    }
+    if (lineNumbers == null) {
+      return block.operationOf(lineNumber, opsPerLine);
+    }
+    // the batch was built from the block's lines in order, so carry on from the last one found
+    int slot = operation >= lastOperation ? lastSlot : 0;
+    for (int tried = 0; tried < 2; tried++) {
+      for (int i = slot; i < lineNumbers.length && lineNumbers[i] > 0; i++) {
+        if (lineNumbers[i] == lineNumber) {
+          lastOperation = operation;
+          lastSlot = i;
+          return i * opsPerLine;
+        }
+      }
+      slot = 0;
+    }
+    return block.operationOf(lineNumber, opsPerLine);
+  }
+}
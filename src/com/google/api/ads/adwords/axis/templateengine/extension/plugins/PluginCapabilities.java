@@ -0,0 +1,56 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import com.google.api.ads.adwords.axis.templateengine.extension.shared.ConstantsIF;
+
+/**
+ * What a Plugin tells the engine about its blocks, so they can be spread over workers, sent again
+ * and sized without the engine knowing which Plugin it is running.
+ */
+public class PluginCapabilities {
+
+  /** what is assumed of a Plugin that says nothing: one block at a time, and no retries */
+  public static final PluginCapabilities NONE =
+      new PluginCapabilities(false, false, new Class<?>[0], ConstantsIF.MAX_OPERATIONS);
+
+  /**
+   * Blocks for different account keys don't depend on each other, so they may be mutated at the
+   * same time, on different workers.  Blocks for the same key are always sent in file order.
+   */
+  public final boolean independentKeys;
+
+  /**
+   * Sending a block again does no harm even if the first attempt went through, so a block whose
+   * mutate failed without an answer, eg: on a timeout, may be sent again.  Blocks AdWords
+   * answered with a RateExceededError, or refused as a whole, were not carried out, and are sent
+   * again whatever this says.
+   */
+  public final boolean idempotent;
+
+  /** the Service interfaces the Plugin calls, eg: CampaignServiceInterface.class */
+  public final Class<?>[] services;
+
+  /** the most operations the Plugin would like in one mutate */
+  public final int preferredOperations;
+
+  public PluginCapabilities(boolean independentKeys, boolean idempotent, Class<?>[] services,
+      int preferredOperations) {
+    this.independentKeys = independentKeys;
+    this.idempotent = idempotent;
+    this.services = services;
+    this.preferredOperations = preferredOperations;
+  }
+}
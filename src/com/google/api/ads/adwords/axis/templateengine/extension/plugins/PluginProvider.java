@@ -0,0 +1,33 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+/**
+ * Makes one kind of Plugin, and says what it is capable of.  Providers are found with a
+ * {@link java.util.ServiceLoader}, so a new Plugin is added by listing its provider in
+ * META-INF/services/com.google.api.ads.adwords.axis.templateengine.extension.plugins.PluginProvider
+ * on the classpath, rather than by changing the engine.  See {@link Plugins}.
+ */
+public interface PluginProvider {
+
+  /** @return the name given as the first word of the CSV file, eg: CAMPAIGNMIGRATION */
+  String getName();
+
+  /** @return what the engine may do with this Plugin's blocks */
+  PluginCapabilities getCapabilities();
+
+  /** @return a new Plugin; each worker has its own */
+  BasePlugin newPlugin();
+}
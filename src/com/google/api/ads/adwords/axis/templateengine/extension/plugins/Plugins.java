@@ -0,0 +1,77 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** The {@link PluginProvider}s found on the classpath, by name. */
+public final class Plugins {
+
+  private static final Map<String, PluginProvider> PROVIDERS = load();
+
+  private Plugins() {
+  }
+
+  /**
+   * @param name the first word of the CSV file, eg: CAMPAIGNMIGRATION
+   * @return the provider of that Plugin
+   * @throws IllegalArgumentException if there is no Plugin of that name
+   */
+  public static PluginProvider get(String name) {
+    PluginProvider provider = PROVIDERS.get(name);
+    if (provider == null) {
+      throw new IllegalArgumentException(
+          String.format("No Plugin called '%s', only %s", name, names()));
+    }
+    return provider;
+  }
+
+  /** @return the names of every Plugin found */
+  public static Set<String> names() {
+    return PROVIDERS.keySet();
+  }
+
+  private static Map<String, PluginProvider> load() {
+    Map<String, PluginProvider> providers = new TreeMap<String, PluginProvider>();
+    ServiceLoader<PluginProvider> loader =
+        ServiceLoader.load(PluginProvider.class, Plugins.class.getClassLoader());
+    Iterator<PluginProvider> iterator = loader.iterator();
+    while (true) {
+      PluginProvider provider;
+      try {
+        if (!iterator.hasNext()) {
+          break;
+        }
+        provider = iterator.next();
+      } catch (ServiceConfigurationError e) {
+        // a broken provider shouldn't hide the others
+        e.printStackTrace();
+        continue;
+      }
+      if (providers.containsKey(provider.getName())) {
+        System.err.println("Plugin " + provider.getName() + " is provided twice, keeping "
+            + providers.get(provider.getName()).getClass().getName());
+        continue;
+      }
+      providers.put(provider.getName(), provider);
+    }
+    return providers;
+  }
+}
@@ -0,0 +1,188 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.plugins;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pulls the columns a Plugin needs out of each CSV line and converts them, in one pass, into a
+ * holder the Plugin reuses for every line.  Where each column is in the line is worked out once,
+ * from the header line, so each Plugin has its own decoder and nothing about the file is kept in
+ * static fields.
+ *
+ * A bad line is reported through {@link #getProblem()}, {@link #getProblemColumn()} and
+ * {@link #getProblemValue()} rather than by throwing, as a file with many bad lines would
+ * otherwise spend most of its time making exceptions.
+ *
+ * @param <R> the holder the columns are decoded into
+ */
+public abstract class RowDecoder<R> {
+
+  /** the names of the columns, as given in the header line, in the order the subclass asks */
+  private final String[] names;
+
+  /** where each of those columns is in a line, or -1 if the header doesn't have it */
+  private final int[] columns;
+
+  /** the shortest a line can be and still have every column */
+  private final int width;
+
+  private String problem = null;
+  private String problemColumn = null;
+  private String problemValue = null;
+
+  /**
+   * @param header the header line of the CSV file
+   * @param names the columns the Plugin needs, which the subclass then refers to by their index
+   *     in this list
+   */
+  protected RowDecoder(String[] header, String... names) {
+    this.names = names;
+    this.columns = new int[names.length];
+    int width = 0;
+    for (int i = 0; i < names.length; i++) {
+      columns[i] = -1;
+      for (int j = 0; j < header.length; j++) {
+        if (header[j].equals(names[i])) {
+          columns[i] = j;
+          width = Math.max(width, j + 1);
+          break;
+        }
+      }
+    }
+    this.width = width;
+  }
+
+  /** @return the names of the columns the header line is missing, empty if it has them all */
+  public List<String> getMissingColumns() {
+    List<String> missing = new ArrayList<String>();
+    for (int i = 0; i < names.length; i++) {
+      if (columns[i] < 0) {
+        missing.add(names[i]);
+      }
+    }
+    return missing;
+  }
+
+  /**
+   * Decode a line
+   * @param line the fields of the CSV line
+   * @param row where to put the converted columns, overwriting what the last line left there
+   * @return true if every column was good; if not, the problem is given by {@link #getProblem()}
+   */
+  public boolean decode(String[] line, R row) {
+    problem = null;
+    problemColumn = null;
+    problemValue = null;
+    if (line.length < width) {
+      return fail(-1, String.valueOf(line.length),
+          String.format("Line has %d fields, not the %d the header line has", line.length, width));
+    }
+    return decodeInto(line, row);
+  }
+
+  /**
+   * Convert every column of a line that is long enough to have them all
+   * @param line the fields of the CSV line
+   * @param row where to put them
+   * @return true if every column was good; otherwise {@link #fail} has been called
+   */
+  protected abstract boolean decodeInto(String[] line, R row);
+
+  /**
+   * @param line the fields of the CSV line
+   * @param column the index of the column in the names given to the constructor
+   * @return its value
+   */
+  protected String field(String[] line, int column) {
+    return line[columns[column]];
+  }
+
+  /**
+   * Read a column as a decimal number, the way Long.parseLong() does, but without throwing
+   * @param line the fields of the CSV line
+   * @param column the index of the column in the names given to the constructor
+   * @return its value, or -1 after calling {@link #fail} if it isn't a number
+   */
+  protected long longOf(String[] line, int column) {
+    String value = field(line, column);
+    int length = value.length();
+    int i = 0;
+    boolean negative = false;
+    if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+      negative = value.charAt(0) == '-';
+      i++;
+    }
+    if (i == length) {
+      fail(column, value, "Field value was expected to be numeric");
+      return -1;
+    }
+    // counted down from 0, as Long.MIN_VALUE has no positive twin
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long result = 0;
+    for (; i < length; i++) {
+      int digit = value.charAt(i) - '0';
+      if (digit < 0 || digit > 9 || result < (limit + digit) / 10) {
+        fail(column, value, "Field value was expected to be numeric");
+        return -1;
+      }
+      result = result * 10 - digit;
+    }
+    return negative ? result : -result;
+  }
+
+  /**
+   * Read a column the way Boolean.valueOf() does: "true" in any case is true, anything else false
+   * @param line the fields of the CSV line
+   * @param column the index of the column in the names given to the constructor
+   * @return its value
+   */
+  protected boolean booleanOf(String[] line, int column) {
+    return field(line, column).equalsIgnoreCase("true");
+  }
+
+  /**
+   * Note why a line is bad
+   * @param column the index of the column in the names given to the constructor, or -1 if the
+   *     problem isn't with one column
+   * @param value what the line had
+   * @param problem what is wrong with it
+   * @return false, to return from {@link #decodeInto}
+   */
+  protected boolean fail(int column, String value, String problem) {
+    if (this.problem == null) {
+      this.problem = problem;
+      this.problemColumn = column < 0 ? null : names[column];
+      this.problemValue = value;
+    }
+    return false;
+  }
+
+  /** @return what was wrong with the last line, or null if it was good */
+  public String getProblem() {
+    return problem;
+  }
+
+  /** @return the name of the column that was wrong with the last line, or null */
+  public String getProblemColumn() {
+    return problemColumn;
+  }
+
+  /** @return the value the last line had where it was wrong */
+  public String getProblemValue() {
+    return problemValue;
+  }
+}
@@ -31,6 +31,27 @@ static final String ROOTPATH = "";
 /** location of the csv file that has all the data */
 static final String SOURCE_DATA_FILE = "data.csv";
 
+/** the character set the {@link #SOURCE_DATA_FILE} is written in */
+static final String CSV_CHARSET = "UTF-8";
+
+/** how many bytes of the {@link #SOURCE_DATA_FILE} are mapped into memory at a time */
+static final int CSV_MAP_WINDOW_BYTES = 64 * 1024 * 1024;
+
+/**
+ * true groups the rows of the {@link #SOURCE_DATA_FILE} by the Plugin's idColumns before making
+ * blocks, so it doesn't have to be sorted first
+ */
+static final boolean GROUP_BY_ID_COLUMNS = true;
+
+/** how many bytes of rows are sorted in memory before a sorted run is written to disk */
+static final long GROUP_MEMORY_BYTES = 256 * 1024 * 1024;
+
+/** the most sorted runs merged together at once */
+static final int GROUP_MERGE_FAN_IN = 64;
+
+/** sorted runs are temporary files with this prefix, next to the {@link #SOURCE_DATA_FILE} */
+static final String GROUP_RUN_FILE_PREFIX = "group-run-";
+
 /** location of the output log file (with errors) */
 static final String SUCCESS_LOG_FILE = "success-output.txt";
 
@@ -43,6 +64,24 @@ static final String FIX_UP_FILE = "fix-up.csv";
 /** stores the current line that's been processed in the {@link #SOURCE_DATA_FILE} */
 static final String EXECUTION_CURSOR_FILE = "current-exection-line.txt";
 
+/**
+ * the outcome of every line in the {@link #SOURCE_DATA_FILE}, so a restart only sends the lines
+ * that never got an answer
+ */
+static final String OUTCOME_LEDGER_FILE = "outcome-ledger.dat";
+
+/** how many bytes of the journal are mapped into memory at a time */
+static final int JOURNAL_REGION_BYTES = 4 * 1024 * 1024;
+
+/**
+ * when journal commits are forced to disk: EVERY_COMMIT is safest, INTERVAL groups the commits
+ * made within {@link #JOURNAL_SYNC_INTERVAL_MS} into one force, OS leaves it to the OS
+ */
+MappedJournal.SyncPolicy JOURNAL_SYNC_POLICY = MappedJournal.SyncPolicy.INTERVAL;
+
+/** how often (in ms) the journal is forced to disk with the INTERVAL sync policy */
+static final long JOURNAL_SYNC_INTERVAL_MS = 1000;
+
 /** The following are required for OAuth2.0 use */
 static final String SCOPE = "https://adwords.google.com/api/adwords";
 
@@ -54,21 +93,200 @@ static final String CALLBACK_URL = "urn:ietf:wg:oauth:2.0:oob";
 static final boolean DEBUG_MODE = false;
 
 /**
- * this is the number of ms that the program waits (6 mins) in case there are some retryable
- * errors
+ * true sends every call to an in-process fake of the AdWords API instead, for load testing; see
+ * the FAKE_ settings below
+ */
+static final boolean FAKE_SERVICES = false;
+
+/** the median latency (in ms) of a call to the fake */
+static final long FAKE_LATENCY_MEDIAN_MS = 150;
+
+/** the 99th percentile latency (in ms) of a call to the fake */
+static final long FAKE_LATENCY_P99_MS = 1500;
+
+/** the extra latency (in microseconds) for each operation in a call to the fake */
+static final long FAKE_LATENCY_PER_OPERATION_MICROS = 200;
+
+/** operations per second the fake allows before throwing RateExceededErrors; 0 for no limit */
+static final double FAKE_RATE_LIMIT_OPERATIONS_PER_SECOND = 0;
+
+/** the chance of any call to the fake throwing a RateExceededError anyway */
+static final double FAKE_RATE_EXCEEDED_PROBABILITY = 0;
+
+/** the retryAfterSeconds in the fake's RateExceededErrors */
+static final int FAKE_RETRY_AFTER_SECONDS = 30;
+
+/** the chance of each operation sent to the fake coming back as a partial failure */
+static final double FAKE_PARTIAL_FAILURE_PROBABILITY = 0.01;
+
+/**
+ * the chance of each operation sent to the fake being one it refuses the whole mutate for; which
+ * ones are bad is fixed, so they are still bad when sent again
+ */
+static final double FAKE_REJECTION_PROBABILITY = 0;
+
+/** true for the fake to name the bad operations when it refuses a mutate, false to name none */
+static final boolean FAKE_REJECTION_NAMES_OPERATIONS = true;
+
+/** the chance of any call to the fake throwing an AuthenticationError */
+static final double FAKE_AUTHENTICATION_ERROR_PROBABILITY = 0;
+
+/** how many entities each get() on the fake finds in all, returned a page at a time */
+static final int FAKE_PAGE_ENTRIES = 10;
+
+/**
+ * this is the number of ms that calls for an account are held back (6 mins) after an
+ * AuthenticationError
  */
 static final long SLOW_DOWN_TIMEOUT_MS = 6 * 60 * 1000;
 
-/** the program pauses execution after processing the following number of rows/lines */
-static final int PROGRAM_PAUSE_AFTER_PROCESSING_RECORD_BLOCK = 100;
+/** operations per second allowed across the whole developer token */
+static final double DEVELOPER_OPERATIONS_PER_SECOND = 10000;
+
+/** operations per second allowed for any one client account */
+static final double ACCOUNT_OPERATIONS_PER_SECOND = 2500;
 
-/** the program pauses for the following number of ms (1 min) */
-static final long PROGRAM_PAUSE_LENGTH_MS = 0; //1 * 1000:
+/** operations per second allowed for any one Service */
+static final double SERVICE_OPERATIONS_PER_SECOND = 5000;
 
-/** the program pauses for the following number of ms after each execution */
-static final long PROGRAM_SMALL_PAUSE_LENGTH_MS = (long) (0.4f * 1000f);
+/** how many seconds' worth of operations a rate limit bucket can save up for a burst */
+static final double RATE_LIMIT_BURST_SECONDS = 2;
+
+/** how long (in seconds) to hold a scope when a RateExceededError doesn't say */
+static final int RATE_LIMIT_DEFAULT_RETRY_SECONDS = 30;
+
+/**
+ * true tunes the operations per mutate for each Service from how its mutates are going, between
+ * {@link #ADAPTIVE_MIN_OPERATIONS} and {@link #MAX_OPERATIONS}; false always uses MAX_OPERATIONS
+ */
+static final boolean ADAPTIVE_BATCH_SIZING = true;
+
+/** the fewest operations per mutate the adaptive sizing goes down to */
+static final int ADAPTIVE_MIN_OPERATIONS = 100;
+
+/** a mutate taking longer than this (in ms) makes the next ones smaller */
+static final long ADAPTIVE_TARGET_LATENCY_MS = 30000;
+
+/** how many operations per mutate are added after each mutate that went well */
+static final int ADAPTIVE_INCREASE_OPERATIONS = 250;
+
+/** what the operations per mutate are multiplied by after a RateExceededError or timeout */
+static final double ADAPTIVE_DECREASE_FACTOR = 0.5;
+
+/** and after a mutate that took longer than {@link #ADAPTIVE_TARGET_LATENCY_MS} */
+static final double ADAPTIVE_SLOW_DECREASE_FACTOR = 0.75;
 
 /** the maximum lines in a single set of Operations sent to the API */
 static final int MAX_OPERATIONS = 5000;
 
+/**
+ * how many bytes of off-heap memory each block's {@link RowStore} starts with; it grows if a block
+ * needs more, and keeps the space when it is reused
+ */
+static final int ROW_STORE_BYTES = 256 * 1024;
+
+/**
+ * the number of workers mutating blocks for different accounts at the same time; 1 keeps the
+ * original one-block-at-a-time behaviour
+ */
+static final int WORKER_THREADS = 1;
+
+/** how many blocks can wait for each worker before reading the CSV file blocks */
+static final int WORKER_QUEUE_CAPACITY = 4;
+
+/**
+ * how many blocks each worker may have waiting on a mutate while it builds the next one; 1 means
+ * wait for each mutate before building the next block
+ */
+static final int MAX_IN_FLIGHT_BLOCKS = 4;
+
+/** how many finished blocks can wait for their results to be written before mutates block */
+static final int RECORD_QUEUE_CAPACITY = 16;
+
+/** how often (in ms) each pipeline stage's throughput is printed */
+static final long STAGE_REPORT_INTERVAL_MS = 30 * 1000;
+
+/**
+ * how many accounts' sessions (each with its Services) are kept; the least recently used are
+ * dropped and built again if needed
+ */
+static final int SESSION_CACHE_SIZE = 1000;
+
+/** how long (in ms) a cached session is used before it is built again; 0 means no limit */
+static final long SESSION_CACHE_EXPIRY_MS = 0;
+
+/**
+ * with no {@link #SESSION_CACHE_EXPIRY_MS}, build sessions again once the OAuth2 credential they
+ * were made with has expired.  Off, as the Credential refreshes its own token, so sessions made
+ * with it keep working and needn't be built again
+ */
+static final boolean SESSION_EXPIRY_FOLLOWS_CREDENTIAL = false;
+
+/** how many Feeds, FeedItems etc. the FEEDDELETE Plugin gets in each page */
+static final int FEED_PAGE_SIZE = 500;
+
+/** how many lookups and removals the FEEDDELETE Plugin runs at once, across every account */
+static final int FEED_DELETE_THREADS = 8;
+
+/**
+ * a header naming this as its first column, instead of client_account_id, makes each row stand
+ * for every client account under that manager account, found with the ManagedCustomerService
+ */
+static final String MANAGER_ACCOUNT_COLUMN = "manager_account_id";
+
+/** how many accounts are got in each page while walking a manager account's hierarchy */
+static final int MANAGED_CUSTOMER_PAGE_SIZE = 500;
+
+/** how many pages of accounts are got at once while walking the hierarchies */
+static final int HIERARCHY_WALK_THREADS = 4;
+
+/** how many times a block is sent again after a retryable error, eg: RateExceededError */
+static final int MAX_BLOCK_RETRIES = 3;
+
+/**
+ * true sends the rest of a block that AdWords refused as a whole (so none of it was applied) for
+ * the operations it named, once, without them
+ */
+static final boolean RESEND_REFUSED_BLOCKS = true;
+
+/**
+ * true sends each half of a block that AdWords refused as a whole without naming any operations
+ * again, and so on down to {@link #BISECT_MIN_OPERATIONS}, so only the bad lines fail
+ */
+static final boolean BISECT_REJECTED_BLOCKS = true;
+
+/** the smallest block that is split in half again when it is refused */
+static final int BISECT_MIN_OPERATIONS = 1;
+
+/** how many result lines can wait to be written before the workers have to wait for the disk */
+static final int RESULT_QUEUE_CAPACITY = 10000;
+
+/** how many bytes of each output file are buffered before being written */
+static final int RESULT_BUFFER_BYTES = 64 * 1024;
+
+/** how often (in ms) the buffered results are written out, however few there are */
+static final long RESULT_FLUSH_INTERVAL_MS = 1000;
+
+/** where the Prometheus text file of run metrics is written, for the node exporter to pick up */
+static final String METRICS_FILE = "metrics.prom";
+
+/** how often (in ms) the metrics file is rewritten */
+static final long METRICS_EXPORT_INTERVAL_MS = 15 * 1000;
+
+/** the JMX name the run metrics are published under */
+static final String METRICS_MBEAN_NAME =
+    "com.google.api.ads.adwords.axis.templateengine.extension:type=Metrics";
+
+/**
+ * check every line before the real run: each is validated and built on all cores, and the lines
+ * that fail go to the FixUp file and the ledger, so the real run only sends clean lines
+ */
+static final boolean PREFLIGHT_VALIDATION = false;
+
+/**
+ * also send the pre-flight blocks to AdWords with the validateOnly header, to catch what only the
+ * API can; this runs on {@link #WORKER_THREADS} workers and uses some quota
+ */
+static final boolean PREFLIGHT_VALIDATE_ONLY = false;
+
 }
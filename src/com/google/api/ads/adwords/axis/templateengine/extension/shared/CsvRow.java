@@ -0,0 +1,190 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.shared;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * One row of a CSV file, as views onto the bytes {@link MappedCsvReader} mapped it from.  No
+ * Strings are made until a field is actually asked for, so reading a row costs little more than
+ * finding its commas.
+ */
+public class CsvRow {
+
+  private final ByteBuffer buffer;
+  private final Charset charset;
+
+  /** start and end offsets into the buffer for each field, end exclusive, quotes removed */
+  private final int[] bounds;
+
+  /** bit i is set if field i had doubled quotes ("") inside it */
+  private final long[] escaped;
+
+  private final int size;
+
+  CsvRow(ByteBuffer buffer, Charset charset, int[] bounds, long[] escaped, int size) {
+    this.buffer = buffer;
+    this.charset = charset;
+    this.bounds = bounds;
+    this.escaped = escaped;
+    this.size = size;
+  }
+
+  /**
+   * Make a row that didn't come from a file, eg: for an account found in AdWords
+   * @param fields the values of its fields
+   * @return the row
+   */
+  public static CsvRow of(String... fields) {
+    Charset utf8 = Charset.forName("UTF-8");
+    byte[][] values = new byte[fields.length][];
+    int length = 0;
+    for (int i = 0; i < fields.length; i++) {
+      values[i] = fields[i].getBytes(utf8);
+      length += values[i].length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    int[] bounds = new int[2 * fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      bounds[2 * i] = buffer.position();
+      buffer.put(values[i]);
+      bounds[2 * i + 1] = buffer.position();
+    }
+    return new CsvRow(buffer, utf8, bounds, new long[(fields.length >> 6) + 1], fields.length);
+  }
+
+  /** @return how many fields the row has */
+  public int size() {
+    return size;
+  }
+
+  /** @return roughly how many bytes of the file the row covers */
+  public int length() {
+    return size == 0 ? 0 : bounds[2 * size - 1] - bounds[0];
+  }
+
+  /**
+   * View the row without its first few fields, still without copying anything
+   * @param firstField the field that becomes field 0
+   * @return the rest of the row
+   */
+  public CsvRow subRow(int firstField) {
+    int subSize = Math.max(0, size - firstField);
+    int[] subBounds = new int[2 * subSize];
+    long[] subEscaped = new long[(subSize >> 6) + 1];
+    for (int i = 0; i < subSize; i++) {
+      int field = firstField + i;
+      subBounds[2 * i] = bounds[2 * field];
+      subBounds[2 * i + 1] = bounds[2 * field + 1];
+      if ((escaped[field >> 6] & (1L << field)) != 0) {
+        subEscaped[i >> 6] |= 1L << i;
+      }
+    }
+    return new CsvRow(buffer, charset, subBounds, subEscaped, subSize);
+  }
+
+  /**
+   * Make the String for one field
+   * @param field the index of the field, from 0
+   * @return its value, with any quoting removed
+   */
+  public String get(int field) {
+    int start = bounds[2 * field];
+    int length = bounds[2 * field + 1] - start;
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buffer.get(start + i);
+    }
+    String value = new String(bytes, charset);
+    if ((escaped[field >> 6] & (1L << field)) != 0) {
+      value = value.replace("\"\"", "\"");
+    }
+    return value;
+  }
+
+  /**
+   * Check whether a field holds the same bytes as the same field of another row, without making
+   * Strings of either
+   */
+  public boolean fieldEquals(int field, CsvRow other) {
+    int start = bounds[2 * field];
+    int length = bounds[2 * field + 1] - start;
+    int otherStart = other.bounds[2 * field];
+    if (other.bounds[2 * field + 1] - otherStart != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (buffer.get(start + i) != other.buffer.get(otherStart + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return the Charset the row's bytes are in */
+  Charset charset() {
+    return charset;
+  }
+
+  /** @return true if the field has doubled quotes ("") in it, still to be undone */
+  boolean isEscaped(int field) {
+    return (escaped[field >> 6] & (1L << field)) != 0;
+  }
+
+  /**
+   * Copy the bytes of a field, still escaped, to the end of a buffer
+   * @param field the index of the field, from 0
+   * @param destination where to put them, which must have room
+   */
+  void copyField(int field, ByteBuffer destination) {
+    ByteBuffer source = buffer.duplicate();
+    source.limit(bounds[2 * field + 1]);
+    source.position(bounds[2 * field]);
+    destination.put(source);
+  }
+
+  /** @return every field as a String, the way CSVReader.readNext() returned them */
+  public String[] toArray() {
+    String[] fields = new String[size];
+    for (int i = 0; i < size; i++) {
+      fields[i] = get(i);
+    }
+    return fields;
+  }
+
+  /**
+   * Add a field to a CSV line being written, in quotes (with any quotes in it doubled) if it has a
+   * comma, quote, CR or LF in it, as RFC 4180 says
+   * @param line the line so far
+   * @param field the value of the field
+   * @return the line
+   */
+  public static StringBuilder appendField(StringBuilder line, String field) {
+    if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0
+        && field.indexOf('\r') < 0) {
+      return line.append(field);
+    }
+    line.append('"');
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (c == '"') {
+        line.append('"');
+      }
+      line.append(c);
+    }
+    return line.append('"');
+  }
+}
@@ -0,0 +1,228 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.shared;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads a CSV file (RFC 4180: comma separated, CRLF or LF line endings, fields optionally quoted
+ * with "" for a quote inside them) straight out of a memory-mapped view of the file.  Each row
+ * comes back as a {@link CsvRow} of offsets into the mapping, and a field only becomes a String
+ * when something reads it.
+ *
+ * The file is mapped {@link ConstantsIF#CSV_MAP_WINDOW_BYTES} at a time, so files far bigger
+ * than the heap (or 2GB) can be read; a row is never split across two windows.
+ */
+public class MappedCsvReader implements ConstantsIF {
+
+  private static final byte COMMA = ',';
+  private static final byte QUOTE = '"';
+  private static final byte CR = '\r';
+  private static final byte LF = '\n';
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long fileSize;
+  private final Charset charset;
+
+  private MappedByteBuffer window;
+  private long windowOffset = 0;
+
+  /** where the next row starts, within the window */
+  private int position = 0;
+
+  /** where the field being read ended, set by the parse methods */
+  private int fieldEnd;
+  private boolean fieldEscaped;
+
+  public MappedCsvReader(File csvFile) throws IOException {
+    this(csvFile, Charset.forName(CSV_CHARSET));
+  }
+
+  public MappedCsvReader(File csvFile, Charset charset) throws IOException {
+    this.file = new RandomAccessFile(csvFile, "r");
+    this.channel = file.getChannel();
+    this.fileSize = channel.size();
+    this.charset = charset;
+    map(0);
+  }
+
+  /**
+   * Read the next row
+   * @return the row, or null at the end of the file
+   */
+  public CsvRow nextRow() throws IOException {
+    if (windowOffset + position >= fileSize) {
+      return null;
+    }
+    CsvRow row = parseRow();
+    if (row == null) {
+      // the row runs past the end of the window, so move the window up to it and try again
+      map(windowOffset + position);
+      row = parseRow();
+      if (row == null) {
+        throw new IOException(String.format("CSV row at byte %d is longer than %d bytes",
+            windowOffset, CSV_MAP_WINDOW_BYTES));
+      }
+    }
+    return row;
+  }
+
+  /**
+   * Read the next row as Strings, like CSVReader.readNext()
+   * @return the fields of the row, or null at the end of the file
+   */
+  public String[] readNext() throws IOException {
+    CsvRow row = nextRow();
+    return row == null ? null : row.toArray();
+  }
+
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+    file.close();
+  }
+
+  private void map(long offset) throws IOException {
+    windowOffset = offset;
+    window = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+        Math.min(CSV_MAP_WINDOW_BYTES, fileSize - offset));
+    position = 0;
+  }
+
+  /** @return true if the window reaches the end of the file */
+  private boolean lastWindow() {
+    return windowOffset + window.limit() >= fileSize;
+  }
+
+  /**
+   * Parse the row starting at {@link #position}
+   * @return the row, or null if it isn't complete in this window
+   */
+  private CsvRow parseRow() {
+    int[] bounds = new int[16];
+    long[] escaped = new long[1];
+    int size = 0;
+    int limit = window.limit();
+    int pos = position;
+    while (true) {
+      if (2 * size + 2 > bounds.length) {
+        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+      }
+      if ((size >> 6) >= escaped.length) {
+        escaped = Arrays.copyOf(escaped, escaped.length * 2);
+      }
+      int start;
+      int next;
+      if (pos < limit && window.get(pos) == QUOTE) {
+        start = pos + 1;
+        next = parseQuoted(start, limit);
+      } else {
+        start = pos;
+        next = parseUnquoted(start, limit);
+        fieldEscaped = false;
+      }
+      if (next < 0) {
+        return null;
+      }
+      bounds[2 * size] = start;
+      bounds[2 * size + 1] = fieldEnd;
+      if (fieldEscaped) {
+        escaped[size >> 6] |= 1L << size;
+      }
+      size++;
+      pos = next;
+      if (pos >= limit) {
+        if (!lastWindow()) {
+          return null;
+        }
+        break;
+      }
+      byte b = window.get(pos);
+      if (b == COMMA) {
+        pos++;
+        continue;
+      }
+      // end of the row: CRLF or LF
+      pos++;
+      if (b == CR) {
+        if (pos >= limit && !lastWindow()) {
+          return null;
+        }
+        if (pos < limit && window.get(pos) == LF) {
+          pos++;
+        }
+      }
+      break;
+    }
+    position = pos;
+    return new CsvRow(window, charset, bounds, escaped, size);
+  }
+
+  /** @return where the field stopped (at a comma, line ending or the limit) */
+  private int parseUnquoted(int pos, int limit) {
+    while (pos < limit) {
+      byte b = window.get(pos);
+      if (b == COMMA || b == LF || b == CR) {
+        break;
+      }
+      pos++;
+    }
+    fieldEnd = pos;
+    return pos;
+  }
+
+  /** @return where the field stopped after its closing quote, or -1 if it has none yet */
+  private int parseQuoted(int pos, int limit) {
+    fieldEscaped = false;
+    while (pos < limit) {
+      if (window.get(pos) == QUOTE) {
+        if (pos + 1 < limit && window.get(pos + 1) == QUOTE) {
+          fieldEscaped = true;
+          pos += 2;
+          continue;
+        }
+        if (pos + 1 >= limit && !lastWindow()) {
+          // can't tell yet whether this quote is doubled
+          return -1;
+        }
+        fieldEnd = pos;
+        pos++;
+        // anything between the closing quote and the next comma is kept out of the field
+        while (pos < limit) {
+          byte b = window.get(pos);
+          if (b == COMMA || b == LF || b == CR) {
+            break;
+          }
+          pos++;
+        }
+        return pos;
+      }
+      pos++;
+    }
+    if (lastWindow()) {
+      // unterminated quote at the end of the file: take what there is
+      fieldEnd = pos;
+      return pos;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,182 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.shared;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of small records, written through a memory-mapped file so that appending a
+ * record is a memory copy rather than a system call.  The file is mapped in regions of
+ * {@link ConstantsIF#JOURNAL_REGION_BYTES}; a record never spans two regions.
+ *
+ * Each record is stored as its length, a CRC32 of its bytes, then the bytes, so a record torn by a
+ * crash is simply where reading stops.  Records survive the process dying as soon as they are
+ * appended; {@link #commit()} forces them to disk according to the {@link SyncPolicy}, so several
+ * appends can share one fsync.
+ */
+public class MappedJournal implements ConstantsIF {
+
+  /** When appended records are forced to disk */
+  public enum SyncPolicy {
+    /** force on every commit: nothing is lost, even on power failure */
+    EVERY_COMMIT,
+    /** force at most once every {@link ConstantsIF#JOURNAL_SYNC_INTERVAL_MS} */
+    INTERVAL,
+    /** never force; leave it to the operating system to write the pages back */
+    OS
+  };
+
+  /** the length written at the end of a region that had no room for the next record */
+  private static final int END_OF_REGION = -1;
+
+  /** length + crc */
+  private static final int RECORD_HEADER_BYTES = 8;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final SyncPolicy syncPolicy;
+  private MappedByteBuffer region;
+  private long regionOffset = 0;
+  private long lastForceMillis = System.currentTimeMillis();
+  private boolean dirty = false;
+  private final List<byte[]> recoveredRecords = new ArrayList<byte[]>();
+
+  /**
+   * Open a journal, creating it if needed.  Any records already in it are read back first (see
+   * {@link #getRecoveredRecords()}), and new records are appended after the last complete one.
+   * @param journalFile where to keep it
+   * @param syncPolicy when to force appended records to disk
+   */
+  public MappedJournal(File journalFile, SyncPolicy syncPolicy) throws IOException {
+    this.file = new RandomAccessFile(journalFile, "rw");
+    this.channel = file.getChannel();
+    this.syncPolicy = syncPolicy;
+    long end = scan(channel, recoveredRecords);
+    this.regionOffset = end - end % JOURNAL_REGION_BYTES;
+    this.region = channel.map(FileChannel.MapMode.READ_WRITE, regionOffset, JOURNAL_REGION_BYTES);
+    region.position((int) (end - regionOffset));
+  }
+
+  /** @return the records that were already in the journal when it was opened */
+  public List<byte[]> getRecoveredRecords() {
+    return recoveredRecords;
+  }
+
+  /**
+   * Add a record to the end of the journal.  It is not forced to disk until {@link #commit()}.
+   * @param record the bytes to store
+   */
+  public synchronized void append(byte[] record) throws IOException {
+    if (record.length + 2 * RECORD_HEADER_BYTES > JOURNAL_REGION_BYTES) {
+      throw new IOException("Journal record of " + record.length + " bytes is too big");
+    }
+    // leave room for this record and the zero length that marks the end of the journal
+    if (region.remaining() < record.length + 2 * RECORD_HEADER_BYTES) {
+      region.putInt(END_OF_REGION);
+      force();
+      regionOffset += JOURNAL_REGION_BYTES;
+      region = channel.map(FileChannel.MapMode.READ_WRITE, regionOffset, JOURNAL_REGION_BYTES);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    int start = region.position();
+    // write the body before the length, so a half written record never looks complete
+    region.position(start + RECORD_HEADER_BYTES);
+    region.put(record);
+    int end = region.position();
+    region.putInt(start + 4, (int) crc.getValue());
+    region.putInt(start, record.length);
+    region.position(end);
+    dirty = true;
+  }
+
+  /** Make the records appended so far durable, as far as the {@link SyncPolicy} asks. */
+  public synchronized void commit() {
+    switch (syncPolicy) {
+    case EVERY_COMMIT:
+      force();
+      break;
+    case INTERVAL:
+      if (System.currentTimeMillis() - lastForceMillis >= JOURNAL_SYNC_INTERVAL_MS) {
+        force();
+      }
+      break;
+    default:
+      break;
+    }
+  }
+
+  private void force() {
+    if (dirty) {
+      region.force();
+      dirty = false;
+    }
+    lastForceMillis = System.currentTimeMillis();
+  }
+
+  /** Force everything to disk and close the file. */
+  public synchronized void close() throws IOException {
+    force();
+    channel.close();
+    file.close();
+  }
+
+  /**
+   * Read back every complete record in a journal, stopping at the first missing or torn one.
+   * @param channel the journal to read
+   * @param records where to put the records, in the order they were appended
+   * @return the offset just after the last complete record, where the next one should go
+   */
+  private static long scan(FileChannel channel, List<byte[]> records) throws IOException {
+    long size = channel.size();
+    for (long offset = 0; offset < size; offset += JOURNAL_REGION_BYTES) {
+      MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+          Math.min(JOURNAL_REGION_BYTES, size - offset));
+      boolean endOfRegion = false;
+      while (!endOfRegion && region.remaining() >= RECORD_HEADER_BYTES) {
+        int start = region.position();
+        int length = region.getInt();
+        if (length == END_OF_REGION) {
+          endOfRegion = true;
+          continue;
+        }
+        int expectedCrc = region.getInt();
+        if (length <= 0 || length > region.remaining()) {
+          return offset + start;
+        }
+        byte[] record = new byte[length];
+        region.get(record);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != expectedCrc) {
+          return offset + start;
+        }
+        records.add(record);
+      }
+      if (!endOfRegion) {
+        return offset + region.position();
+      }
+    }
+    return size;
+  }
+}
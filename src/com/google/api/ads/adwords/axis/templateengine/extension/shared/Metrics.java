@@ -0,0 +1,214 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.shared;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, histograms and gauges for the whole run, kept in one registry so
+ * {@link MetricsExporter} can publish them.  Each series is a name plus optional label pairs, eg:
+ * counter("adwords_mutate_calls_total", "service", "CampaignServiceInterface").  Asking for the
+ * same counter or histogram twice gives the same instance, so callers can either hold on to it or
+ * look it up each time; a gauge registered again replaces the old one.
+ *
+ * Histograms keep counts in log-scaled buckets rather than every sample, so recording costs the
+ * same however long the run, and percentiles are accurate to within about 10%.
+ */
+public class Metrics {
+
+  /** A value that only goes up */
+  public static class Counter {
+    private final AtomicLong count = new AtomicLong();
+
+    public void inc() {
+      count.incrementAndGet();
+    }
+
+    public void add(long delta) {
+      count.addAndGet(delta);
+    }
+
+    public long get() {
+      return count.get();
+    }
+  }
+
+  /** A value read when the metrics are published, eg: a queue depth */
+  public interface Gauge {
+    double value();
+  }
+
+  /**
+   * The spread of a non-negative value, eg: a latency in ms.  Buckets double in width every
+   * {@link #SUB_BUCKETS} buckets.
+   */
+  public static class Histogram {
+    static final int SUB_BUCKETS = 8;
+    static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** @return the bucket a value falls in */
+    static int bucketOf(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) Math.max(0, value);
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);  // >= 3
+      int mantissa = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+      return (exponent - 2) * SUB_BUCKETS + mantissa;
+    }
+
+    /** @return the smallest value in a bucket */
+    static long lowerBoundOf(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + 2;
+      long mantissa = bucket % SUB_BUCKETS;
+      return (SUB_BUCKETS + mantissa) << (exponent - 3);
+    }
+
+    public void record(long value) {
+      buckets.incrementAndGet(bucketOf(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long seen;
+      while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+        // another thread moved it, try again
+      }
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getSum() {
+      return sum.get();
+    }
+
+    /**
+     * @param quantile eg: 0.99
+     * @return the middle of the bucket the quantile falls in, or 0 if nothing was recorded
+     */
+    public long percentile(double quantile) {
+      long total = count.get();
+      if (total == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          long low = lowerBoundOf(i);
+          long high = i + 1 < BUCKETS ? lowerBoundOf(i + 1) - 1 : Long.MAX_VALUE;
+          return Math.min(max.get(), low + (high - low) / 2);
+        }
+      }
+      return max.get();
+    }
+  }
+
+  /** One registered series */
+  public static class Series {
+    public final String name;
+    public final String labels;
+    public final Object metric;
+
+    Series(String name, String labels, Object metric) {
+      this.name = name;
+      this.labels = labels;
+      this.metric = metric;
+    }
+  }
+
+  private static final ConcurrentHashMap<String, Series> REGISTRY =
+      new ConcurrentHashMap<String, Series>();
+
+  /**
+   * @param labels name, value pairs
+   * @return the labels in Prometheus form, eg: {service="CampaignService"}, or "" if none
+   */
+  static String labelsOf(String... labels) {
+    if (labels.length == 0) {
+      return "";
+    }
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(labels[i]).append("=\"")
+          .append(String.valueOf(labels[i + 1]).replace("\\", "\\\\").replace("\"", "\\\""))
+          .append('"');
+    }
+    return sb.append('}').toString();
+  }
+
+  private static Object register(String name, String[] labels, Object metric) {
+    String labelText = labelsOf(labels);
+    Series series = REGISTRY.get(name + labelText);
+    if (series == null) {
+      Series created = new Series(name, labelText, metric);
+      series = REGISTRY.putIfAbsent(name + labelText, created);
+      if (series == null) {
+        series = created;
+      }
+    }
+    return series.metric;
+  }
+
+  /**
+   * @param name the metric name, eg: rows_read_total
+   * @param labels name, value pairs
+   * @return the counter for that series
+   */
+  public static Counter counter(String name, String... labels) {
+    return (Counter) register(name, labels, new Counter());
+  }
+
+  /**
+   * @param name the metric name, eg: mutate_latency_ms
+   * @param labels name, value pairs
+   * @return the histogram for that series
+   */
+  public static Histogram histogram(String name, String... labels) {
+    return (Histogram) register(name, labels, new Histogram());
+  }
+
+  /**
+   * Register a gauge, in place of any the series already has.  A gauge reads something live, so
+   * the latest one wins, eg: the main pass's session cache rather than the pre-flight pass's.
+   * @param name the metric name, eg: queue_depth
+   * @param gauge reads the value
+   * @param labels name, value pairs
+   */
+  public static void gauge(String name, Gauge gauge, String... labels) {
+    String labelText = labelsOf(labels);
+    REGISTRY.put(name + labelText, new Series(name, labelText, gauge));
+  }
+
+  /** @return every series registered so far */
+  public static List<Series> all() {
+    return new ArrayList<Series>(REGISTRY.values());
+  }
+}
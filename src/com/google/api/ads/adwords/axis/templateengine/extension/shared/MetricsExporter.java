@@ -0,0 +1,236 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.shared;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the {@link Metrics} registry two ways while a run is going: as a Prometheus text file,
+ * rewritten every {@link ConstantsIF#METRICS_EXPORT_INTERVAL_MS} (point the node exporter's
+ * textfile collector at it), and as a JMX MBean named {@link ConstantsIF#METRICS_MBEAN_NAME}, for
+ * jconsole or any JMX agent.  Histograms are exported as summaries, with p50, p95 and p99.
+ */
+public class MetricsExporter implements ConstantsIF, DynamicMBean {
+
+  private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+
+  private final File file;
+  private Thread exportThread = null;
+  private ObjectName mbeanName = null;
+
+  public MetricsExporter() {
+    this.file = FileUtils.getFile(METRICS_FILE);
+  }
+
+  /** Register the MBean and start rewriting the metrics file */
+  public void start() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      mbeanName = new ObjectName(METRICS_MBEAN_NAME);
+      if (!server.isRegistered(mbeanName)) {
+        server.registerMBean(this, mbeanName);
+      }
+    } catch (JMException e) {
+      System.err.println("Metrics not published over JMX: " + e);
+      mbeanName = null;
+    }
+
+    exportThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            Thread.sleep(METRICS_EXPORT_INTERVAL_MS);
+            export();
+          }
+        } catch (InterruptedException e) {
+          // we're done
+        }
+      }
+    }, "metrics-exporter");
+    exportThread.setDaemon(true);
+    exportThread.start();
+  }
+
+  /** Stop exporting, leaving the final values in the metrics file */
+  public void close() {
+    if (exportThread != null) {
+      exportThread.interrupt();
+    }
+    export();
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (JMException e) {
+        // already gone
+      }
+    }
+  }
+
+  /** Write the metrics file, replacing the old one in one step so readers never see half of it */
+  void export() {
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      Files.write(tmp.toPath(), toPrometheus().getBytes(Charset.forName("UTF-8")));
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println("Could not write " + file + ": " + e);
+    }
+  }
+
+  private static List<Metrics.Series> sortedSeries() {
+    List<Metrics.Series> all = Metrics.all();
+    Collections.sort(all, new Comparator<Metrics.Series>() {
+      @Override
+      public int compare(Metrics.Series a, Metrics.Series b) {
+        int byName = a.name.compareTo(b.name);
+        return byName != 0 ? byName : a.labels.compareTo(b.labels);
+      }
+    });
+    return all;
+  }
+
+  /** @return the labels with one more added */
+  private static String withLabel(String labels, String name, String value) {
+    String label = name + "=\"" + value + "\"";
+    return labels.isEmpty() ? "{" + label + "}"
+        : labels.substring(0, labels.length() - 1) + "," + label + "}";
+  }
+
+  /** @return every series in the Prometheus text exposition format */
+  public static String toPrometheus() {
+    StringBuilder sb = new StringBuilder();
+    String lastName = null;
+    for (Metrics.Series series : sortedSeries()) {
+      if (!series.name.equals(lastName)) {
+        String type = series.metric instanceof Metrics.Counter ? "counter"
+            : series.metric instanceof Metrics.Histogram ? "summary" : "gauge";
+        sb.append("# TYPE ").append(series.name).append(' ').append(type).append('\n');
+        lastName = series.name;
+      }
+      if (series.metric instanceof Metrics.Histogram) {
+        Metrics.Histogram histogram = (Metrics.Histogram) series.metric;
+        for (double quantile : QUANTILES) {
+          sb.append(series.name)
+              .append(withLabel(series.labels, "quantile", String.valueOf(quantile)))
+              .append(' ').append(histogram.percentile(quantile)).append('\n');
+        }
+        sb.append(series.name).append("_sum").append(series.labels)
+            .append(' ').append(histogram.getSum()).append('\n');
+        sb.append(series.name).append("_count").append(series.labels)
+            .append(' ').append(histogram.getCount()).append('\n');
+      } else {
+        sb.append(series.name).append(series.labels).append(' ')
+            .append(valueOf(series.metric)).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  private static Object valueOf(Object metric) {
+    if (metric instanceof Metrics.Counter) {
+      return ((Metrics.Counter) metric).get();
+    }
+    return ((Metrics.Gauge) metric).value();
+  }
+
+  /** @return every value as a JMX attribute, with a .count, .p50, .p95 and .p99 per histogram */
+  private static Map<String, Object> attributes() {
+    Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+    for (Metrics.Series series : sortedSeries()) {
+      String key = series.name + series.labels;
+      if (series.metric instanceof Metrics.Histogram) {
+        Metrics.Histogram histogram = (Metrics.Histogram) series.metric;
+        attributes.put(key + ".count", histogram.getCount());
+        for (double quantile : QUANTILES) {
+          attributes.put(key + ".p" + Math.round(quantile * 100), histogram.percentile(quantile));
+        }
+      } else {
+        attributes.put(key, valueOf(series.metric));
+      }
+    }
+    return attributes;
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    Object value = attributes().get(attribute);
+    if (value == null) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    return value;
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] names) {
+    Map<String, Object> attributes = attributes();
+    AttributeList list = new AttributeList();
+    for (String name : names) {
+      if (attributes.containsKey(name)) {
+        list.add(new Attribute(name, attributes.get(name)));
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("metrics are read only");
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) {
+    throw new UnsupportedOperationException(actionName);
+  }
+
+  /** The attributes change as new series are registered, so this is rebuilt each time */
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+    for (Map.Entry<String, Object> attribute : attributes().entrySet()) {
+      infos.add(new MBeanAttributeInfo(attribute.getKey(),
+          attribute.getValue().getClass().getName(), attribute.getKey(), true, false, false));
+    }
+    return new MBeanInfo(getClass().getName(), "CSV-AdWords run metrics",
+        infos.toArray(new MBeanAttributeInfo[infos.size()]), null, null, null);
+  }
+}
@@ -0,0 +1,191 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.shared;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the success, error and FixUp outputs as the results come in, instead of holding them all
+ * until the end of the run.  Every {@link Stream} hands its lines to one writer thread through a
+ * bounded queue of {@link ConstantsIF#RESULT_QUEUE_CAPACITY}, so memory stays flat however big the
+ * input is, and a slow disk holds back the workers rather than filling the heap.  The writer
+ * buffers each file in {@link ConstantsIF#RESULT_BUFFER_BYTES} and writes it out through its
+ * FileChannel when the buffer fills, and at least every
+ * {@link ConstantsIF#RESULT_FLUSH_INTERVAL_MS} so a crash loses very little.
+ */
+public class ResultWriter implements ConstantsIF {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** An output file that lines can be added to from any thread */
+  public class Stream {
+    private final String filePath;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(RESULT_BUFFER_BYTES);
+    private final AtomicInteger count = new AtomicInteger();
+
+    private Stream(String filePath) throws IOException {
+      this.filePath = filePath;
+      this.channel = new FileOutputStream(FileUtils.getFile(filePath), true).getChannel();
+    }
+
+    /**
+     * Queue a line to be written, waiting if the writer has fallen behind
+     * @param message the line, without a line ending
+     */
+    public boolean add(String message) {
+      count.incrementAndGet();
+      try {
+        queue.put(new Line(this, message));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        System.out.println(message);
+      }
+      return true;
+    }
+
+    /** @return how many lines have been added */
+    public int size() {
+      return count.get();
+    }
+
+    /** write, called on the writer thread only */
+    private void write(String message) throws IOException {
+      byte[] bytes = (message + "\n").getBytes(UTF8);
+      if (bytes.length > buffer.remaining()) {
+        flush();
+      }
+      if (bytes.length > buffer.capacity()) {
+        ByteBuffer large = ByteBuffer.wrap(bytes);
+        while (large.hasRemaining()) {
+          channel.write(large);
+        }
+      } else {
+        buffer.put(bytes);
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+
+  private static class Line {
+    final Stream stream;
+    final String message;
+
+    Line(Stream stream, String message) {
+      this.stream = stream;
+      this.message = message;
+    }
+  }
+
+  /** put on the queue to tell the writer to finish */
+  private static final Line END = new Line(null, null);
+
+  private final BlockingQueue<Line> queue = new ArrayBlockingQueue<Line>(RESULT_QUEUE_CAPACITY);
+  private final List<Stream> streams = new ArrayList<Stream>();
+  private final Thread writer;
+
+  public ResultWriter() {
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "result-writer");
+  }
+
+  /**
+   * Open a file to append results to.  Open every file before calling {@link #start()}.
+   * @param filePath the file, relative to the root path
+   * @return the Stream to add lines to
+   */
+  public Stream open(String filePath) throws IOException {
+    Stream stream = new Stream(filePath);
+    streams.add(stream);
+    return stream;
+  }
+
+  public void start() {
+    writer.start();
+  }
+
+  /** Write out everything still queued, then close the files. */
+  public void close() throws InterruptedException {
+    queue.put(END);
+    writer.join();
+  }
+
+  private void drain() {
+    long lastFlush = System.currentTimeMillis();
+    try {
+      Line line;
+      while ((line = queue.poll(RESULT_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS)) != END) {
+        if (line != null) {
+          write(line);
+        }
+        if (System.currentTimeMillis() - lastFlush >= RESULT_FLUSH_INTERVAL_MS) {
+          flushAll();
+          lastFlush = System.currentTimeMillis();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      flushAll();
+      for (Stream stream : streams) {
+        try {
+          stream.channel.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private void write(Line line) {
+    try {
+      line.stream.write(line.message);
+    } catch (IOException e) {
+      // don't lose the result altogether
+      System.out.println(line.stream.filePath + ": " + line.message);
+    }
+  }
+
+  private void flushAll() {
+    for (Stream stream : streams) {
+      try {
+        stream.flush();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
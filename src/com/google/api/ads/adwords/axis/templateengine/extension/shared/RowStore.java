@@ -0,0 +1,172 @@
+package com.google.api.ads.adwords.axis.templateengine.extension.shared;
+
+//Copyright 2012 Google Inc. All Rights Reserved.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The CSV lines of one block, kept as their raw bytes in an off-heap buffer with an index of
+ * where each field ends, rather than as a String[] per line.  They are only needed again for the
+ * few lines that fail, to write them to the FixUp file, so only those are ever made back into
+ * Strings.
+ *
+ * Stores are taken from a shared pool and go back to it once the block they hold has been
+ * recorded.  Emptying one only resets its counts, and a reused store keeps its buffer and index,
+ * so once there are enough for every block in flight, holding lines allocates nothing.
+ */
+public class RowStore implements ConstantsIF {
+
+  private static final ConcurrentLinkedQueue<RowStore> FREE =
+      new ConcurrentLinkedQueue<RowStore>();
+
+  private ByteBuffer bytes = ByteBuffer.allocateDirect(ROW_STORE_BYTES);
+  private Charset charset = null;
+
+  /** the index in fieldEnds of the first field of each row; one more entry than there are rows */
+  private int[] rowStarts = new int[1024 + 1];
+  private long[] lineNumbers = new long[1024];
+
+  /** where in the buffer each field ends; each starts where the one before ends */
+  private int[] fieldEnds = new int[8 * 1024];
+
+  /** bit i is set if field i (counted over every row) had doubled quotes ("") inside it */
+  private long[] escaped = new long[(fieldEnds.length >> 6) + 1];
+
+  private int rows = 0;
+  private int fields = 0;
+
+  private RowStore() {
+  }
+
+  /** @return an empty store, a free one if there is one */
+  public static RowStore take() {
+    RowStore store = FREE.poll();
+    return store != null ? store : new RowStore();
+  }
+
+  /**
+   * Copy a row's bytes to the end of the store
+   * @param row the fields of the CSV line
+   * @param lineNumber the line number it came from
+   * @return its index in the store
+   */
+  public int add(CsvRow row, long lineNumber) {
+    int size = row.size();
+    if (rows + 1 >= rowStarts.length) {
+      rowStarts = Arrays.copyOf(rowStarts, 2 * rowStarts.length);
+      lineNumbers = Arrays.copyOf(lineNumbers, rowStarts.length - 1);
+    }
+    if (fields + size > fieldEnds.length) {
+      fieldEnds = Arrays.copyOf(fieldEnds, Math.max(2 * fieldEnds.length, fields + size));
+      escaped = Arrays.copyOf(escaped, (fieldEnds.length >> 6) + 1);
+    }
+    // the row's span in its file covers every field, and more if any were quoted
+    if (bytes.remaining() < row.length()) {
+      grow(row.length());
+    }
+    charset = row.charset();
+    for (int i = 0; i < size; i++) {
+      row.copyField(i, bytes);
+      fieldEnds[fields] = bytes.position();
+      if (row.isEscaped(i)) {
+        escaped[fields >> 6] |= 1L << fields;
+      } else {
+        escaped[fields >> 6] &= ~(1L << fields);
+      }
+      fields++;
+    }
+    lineNumbers[rows] = lineNumber;
+    rows++;
+    rowStarts[rows] = fields;
+    return rows - 1;
+  }
+
+  /** @return how many rows the store holds */
+  public int size() {
+    return rows;
+  }
+
+  /** @return the line number of a row, or 0 if there is no such row */
+  public long lineNumberOf(int row) {
+    return row >= 0 && row < rows ? lineNumbers[row] : 0;
+  }
+
+  /** @return the index of the row from a line of the CSV file, or -1 if it isn't here */
+  public int indexOf(long lineNumber) {
+    for (int i = 0; i < rows; i++) {
+      if (lineNumbers[i] == lineNumber) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** @return the line number of every row, in order, in an array of their own */
+  public long[] lineNumbers() {
+    return Arrays.copyOf(lineNumbers, rows);
+  }
+
+  /**
+   * Make a row back into Strings
+   * @param row the index of the row
+   * @return its fields, the way {@link CsvRow#toArray()} returned them, or null if there is no
+   *     such row
+   */
+  public String[] get(int row) {
+    if (row < 0 || row >= rows) {
+      return null;
+    }
+    String[] values = new String[rowStarts[row + 1] - rowStarts[row]];
+    ByteBuffer view = bytes.duplicate();
+    for (int i = 0; i < values.length; i++) {
+      int field = rowStarts[row] + i;
+      int start = field == 0 ? 0 : fieldEnds[field - 1];
+      byte[] value = new byte[fieldEnds[field] - start];
+      view.limit(fieldEnds[field]);
+      view.position(start);
+      view.get(value);
+      values[i] = new String(value, charset);
+      if ((escaped[field >> 6] & (1L << field)) != 0) {
+        values[i] = values[i].replace("\"\"", "\"");
+      }
+    }
+    return values;
+  }
+
+  /** Empty the store, keeping its buffer and index for the next block. */
+  public void clear() {
+    bytes.clear();
+    rows = 0;
+    fields = 0;
+  }
+
+  /** Empty the store and give it back to the pool; it mustn't be used after this. */
+  public void release() {
+    clear();
+    FREE.offer(this);
+  }
+
+  /** Move to a bigger buffer with room for at least this many more bytes. */
+  private void grow(int needed) {
+    ByteBuffer bigger = ByteBuffer.allocateDirect(
+        Math.max(2 * bytes.capacity(), bytes.position() + needed));
+    bytes.flip();
+    bigger.put(bytes);
+    bytes = bigger;
+  }
+}